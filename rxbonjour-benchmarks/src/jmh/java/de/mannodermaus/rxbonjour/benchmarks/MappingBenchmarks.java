@@ -0,0 +1,49 @@
+package de.mannodermaus.rxbonjour.benchmarks;
+
+import de.mannodermaus.rxbonjour.BonjourService;
+import de.mannodermaus.rxbonjour.drivers.jmdns.JmDNSDiscoveryEngineKt;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.jmdns.ServiceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of mapping the service model of a driver to the one of the library,
+ * which happens for every resolved service.
+ * <p>
+ * Written in Java, because the mapping functions are internal to the Kotlin module of their driver.
+ * NsdManager's model is missing, since the Android framework can't run on a desktop JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MappingBenchmarks {
+
+  @Param({"0", "4", "16"})
+  public int txtRecordCount;
+
+  private ServiceInfo jmdnsService;
+
+  @Setup
+  public void setup() {
+    Map<String, String> txtRecords = new HashMap<>();
+    for (int i = 0; i < txtRecordCount; i++) {
+      txtRecords.put("key" + i, "value" + i);
+    }
+
+    jmdnsService = ServiceInfo.create("_http._tcp.local.", "Service", 8080, 0, 0, true, txtRecords);
+  }
+
+  @Benchmark
+  public BonjourService jmdnsToLibraryModel() {
+    return JmDNSDiscoveryEngineKt.toLibraryModel(jmdnsService);
+  }
+}
@@ -0,0 +1,96 @@
+package de.mannodermaus.rxbonjour.benchmarks
+
+import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
+import de.mannodermaus.rxbonjour.BonjourService
+import de.mannodermaus.rxbonjour.BroadcastCallback
+import de.mannodermaus.rxbonjour.BroadcastEngine
+import de.mannodermaus.rxbonjour.DiscoveryCallback
+import de.mannodermaus.rxbonjour.DiscoveryEngine
+import de.mannodermaus.rxbonjour.Driver
+import de.mannodermaus.rxbonjour.Platform
+import de.mannodermaus.rxbonjour.PlatformConnection
+import io.reactivex.disposables.Disposable
+import io.reactivex.disposables.Disposables
+import java.net.Inet4Address
+import java.net.InetAddress
+
+/*
+ * Implementations of the Driver & Platform interfaces without any I/O,
+ * so that benchmarks only measure the work done by the library itself.
+ */
+
+/** Creates services with distinct names & addresses, like those found on a busy network */
+internal fun createServices(type: String, count: Int): List<BonjourService> =
+    (0 until count).map {
+      BonjourService(
+          type = type,
+          name = "Service $it",
+          v4Host = InetAddress.getByAddress(
+              byteArrayOf(10, 0, (it shr 8).toByte(), it.toByte())) as Inet4Address,
+          v6Host = null,
+          port = 8080,
+          txtRecords = mapOf("path" to "/", "id" to it.toString()))
+    }
+
+/**
+ * Driver whose discoveries report the given services right away, synchronously on discover().
+ * If requested, every service is lost again right after it was found.
+ */
+internal class BenchmarkDriver(
+    private val services: List<BonjourService>,
+    private val loseServices: Boolean = false) : Driver {
+
+  override val name = "benchmark"
+
+  override fun createDiscovery(type: String): DiscoveryEngine =
+      BenchmarkDiscoveryEngine(services, loseServices)
+
+  override fun createBroadcast(): BroadcastEngine = BenchmarkBroadcastEngine
+}
+
+private class BenchmarkDiscoveryEngine(
+    private val services: List<BonjourService>,
+    private val loseServices: Boolean) : DiscoveryEngine {
+
+  override fun initialize() {
+  }
+
+  override fun discover(address: InetAddress, callback: DiscoveryCallback) {
+    services.forEach {
+      callback.serviceResolved(it)
+      if (loseServices) callback.serviceLost(it)
+    }
+  }
+
+  override fun teardown() {
+  }
+}
+
+/** Broadcasts aren't benchmarked, so they don't do anything */
+private object BenchmarkBroadcastEngine : BroadcastEngine {
+  override fun initialize() {
+  }
+
+  override fun start(address: InetAddress, config: BonjourBroadcastConfig,
+      callback: BroadcastCallback) {
+  }
+
+  override fun teardown() {
+  }
+}
+
+internal class BenchmarkPlatform : Platform {
+  private val address = InetAddress.getLoopbackAddress()
+
+  override fun getWifiAddress(): InetAddress = address
+  override fun runOnTeardown(action: () -> Unit): Disposable = Disposables.fromAction(action)
+  override fun createConnection(): PlatformConnection = BenchmarkConnection
+
+  private object BenchmarkConnection : PlatformConnection {
+    override fun initialize() {
+    }
+
+    override fun teardown() {
+    }
+  }
+}
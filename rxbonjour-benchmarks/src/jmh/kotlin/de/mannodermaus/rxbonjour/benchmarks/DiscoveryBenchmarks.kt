@@ -0,0 +1,63 @@
+package de.mannodermaus.rxbonjour.benchmarks
+
+import de.mannodermaus.rxbonjour.RxBonjour
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+private val TYPE = "_http._tcp"
+// Constant, since it is used in annotations
+private const val EVENTS_PER_DISCOVERY = 1000
+
+/**
+ * Throughput of the event pipeline behind RxBonjour#newDiscovery(String),
+ * from the callback of the engine down to the subscriber.
+ * Every invocation runs a full discovery, but the scores are normalized to single events,
+ * so that the "gc.alloc.rate.norm" of the GC profiler reads as the bytes allocated per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+open class DiscoveryBenchmarks {
+
+  private lateinit var added: RxBonjour
+  private lateinit var addedAndRemoved: RxBonjour
+
+  @Setup
+  fun setup() {
+    val services = createServices(TYPE, EVENTS_PER_DISCOVERY)
+    added = RxBonjour.Builder()
+        .driver(BenchmarkDriver(services))
+        .platform(BenchmarkPlatform())
+        .create()
+
+    // Half of the events are Added, the other half Removed
+    addedAndRemoved = RxBonjour.Builder()
+        .driver(BenchmarkDriver(services.take(EVENTS_PER_DISCOVERY / 2), loseServices = true))
+        .platform(BenchmarkPlatform())
+        .create()
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EVENTS_PER_DISCOVERY)
+  fun servicesAdded(blackhole: Blackhole) {
+    added.newDiscovery(TYPE)
+        .subscribe { blackhole.consume(it) }
+        .dispose()
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EVENTS_PER_DISCOVERY)
+  fun servicesAddedAndRemoved(blackhole: Blackhole) {
+    addedAndRemoved.newDiscovery(TYPE)
+        .subscribe { blackhole.consume(it) }
+        .dispose()
+  }
+}
@@ -0,0 +1,24 @@
+package de.mannodermaus.rxbonjour.benchmarks
+
+import de.mannodermaus.rxbonjour.isBonjourType
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/** Cost of validating a type with String#isBonjourType(), which every new stream does */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class TypeBenchmarks {
+
+  @Param("_http._tcp", "_http._tcp.local.", "Totally Not Valid")
+  var type: String = ""
+
+  @Benchmark
+  fun isBonjourType() = type.isBonjourType()
+}
@@ -0,0 +1,71 @@
+package de.mannodermaus.rxbonjour.benchmarks.loopback
+
+import java.net.InetAddress
+
+/** Command line options of the loopback harness */
+internal class HarnessOptions(
+    val address: InetAddress,
+    val broadcasts: Int,
+    val discoveries: Int,
+    val rounds: Int,
+    val isolated: Boolean,
+    val batch: Boolean,
+    val timeoutSeconds: Long,
+    val settleMillis: Long,
+    val output: String?) {
+
+  companion object {
+    val USAGE = """
+      |Usage: loopback-harness [options]
+      |  --address <ip>        Address of the interface under test (default: 127.0.0.1)
+      |  --broadcasts <n>      Services to advertise per round (default: 10)
+      |  --discoveries <m>     Discoveries browsing for them (default: 1)
+      |  --rounds <r>          Rounds to run, for soak testing (default: 1)
+      |  --isolated            Give each discovery a driver of its own, like separate clients
+      |  --batch               Advertise all services through a single batch broadcast
+      |  --timeout <seconds>   Time to wait for each stage of a round (default: 60)
+      |  --settle <millis>     Time to let discoveries start & teardowns finish (default: 2000)
+      |  --output <file>       Write the JSON report to a file instead of stdout
+      """.trimMargin()
+
+    fun parse(args: Array<String>): HarnessOptions {
+      var address = InetAddress.getByName("127.0.0.1")
+      var broadcasts = 10
+      var discoveries = 1
+      var rounds = 1
+      var isolated = false
+      var batch = false
+      var timeoutSeconds = 60L
+      var settleMillis = 2000L
+      var output: String? = null
+
+      val queue = args.toMutableList()
+      fun value(option: String): String {
+        require(queue.isNotEmpty(), { "Missing value for $option" })
+        return queue.removeAt(0)
+      }
+
+      fun count(option: String) = value(option).toIntOrNull()?.takeIf { it > 0 }
+          ?: throw IllegalArgumentException("$option needs to be a positive number")
+
+      while (queue.isNotEmpty()) {
+        val option = queue.removeAt(0)
+        when (option) {
+          "--address" -> address = InetAddress.getByName(value(option))
+          "--broadcasts" -> broadcasts = count(option)
+          "--discoveries" -> discoveries = count(option)
+          "--rounds" -> rounds = count(option)
+          "--isolated" -> isolated = true
+          "--batch" -> batch = true
+          "--timeout" -> timeoutSeconds = count(option).toLong()
+          "--settle" -> settleMillis = count(option).toLong()
+          "--output" -> output = value(option)
+          else -> throw IllegalArgumentException("Unknown option: $option")
+        }
+      }
+
+      return HarnessOptions(address, broadcasts, discoveries, rounds, isolated, batch,
+          timeoutSeconds, settleMillis, output)
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package de.mannodermaus.rxbonjour.benchmarks.loopback
+
+/** Latencies observed by a single discovery, in milliseconds. Null if it never got there */
+internal class ProbeResult(
+    val firstAdded: Double?,
+    val allResolved: Double?,
+    val allRemoved: Double?)
+
+internal class RoundReport(
+    val round: Int,
+    val probes: List<ProbeResult>,
+    val baseline: ResourceUsage,
+    val running: ResourceUsage,
+    val afterTeardown: ResourceUsage)
+
+/**
+ * Results of all rounds, written as JSON. Latencies are summarized over all discoveries of a round,
+ * counting those that didn't reach a stage before the timeout as "missing".
+ */
+internal class HarnessReport(
+    private val options: HarnessOptions,
+    private val rounds: List<RoundReport>) {
+
+  fun toJson(): String {
+    val json = StringBuilder()
+    json.append("{\n")
+    json.append("  \"options\": {")
+    json.append("\"address\": \"${options.address.hostAddress}\", ")
+    json.append("\"broadcasts\": ${options.broadcasts}, ")
+    json.append("\"discoveries\": ${options.discoveries}, ")
+    json.append("\"rounds\": ${options.rounds}, ")
+    json.append("\"isolated\": ${options.isolated}, ")
+    json.append("\"batch\": ${options.batch}, ")
+    json.append("\"timeoutSeconds\": ${options.timeoutSeconds}")
+    json.append("},\n")
+    json.append("  \"rounds\": [")
+
+    rounds.forEachIndexed { index, round ->
+      if (index > 0) json.append(",")
+      json.append("\n    {\"round\": ${round.round},\n")
+      json.append("     \"timeToFirstAddedMillis\": ")
+          .append(round.probes.map { it.firstAdded }.toStatsJson()).append(",\n")
+      json.append("     \"timeToAllResolvedMillis\": ")
+          .append(round.probes.map { it.allResolved }.toStatsJson()).append(",\n")
+      json.append("     \"timeToAllRemovedMillis\": ")
+          .append(round.probes.map { it.allRemoved }.toStatsJson()).append(",\n")
+      json.append("     \"resources\": {")
+      json.append("\"baseline\": ").append(round.baseline.toJson()).append(", ")
+      json.append("\"running\": ").append(round.running.toJson()).append(", ")
+      json.append("\"afterTeardown\": ").append(round.afterTeardown.toJson())
+      json.append("}}")
+    }
+
+    json.append("\n  ]\n}\n")
+    return json.toString()
+  }
+}
+
+/* Extension Functions */
+
+private fun List<Double?>.toStatsJson(): String {
+  val values = this.filterNotNull().sorted()
+  val missing = this.size - values.size
+  if (values.isEmpty()) return "{\"count\": 0, \"missing\": $missing}"
+
+  return "{\"count\": ${values.size}, \"missing\": $missing, " +
+      "\"min\": ${values.first().format()}, " +
+      "\"median\": ${values.percentile(50).format()}, " +
+      "\"p95\": ${values.percentile(95).format()}, " +
+      "\"max\": ${values.last().format()}}"
+}
+
+// Nearest-rank percentile of a sorted list
+private fun List<Double>.percentile(percent: Int): Double {
+  val rank = Math.ceil(percent / 100.0 * this.size).toInt()
+  return this[Math.max(rank - 1, 0)]
+}
+
+private fun Double.format() = String.format(java.util.Locale.ROOT, "%.3f", this)
+
+private fun ResourceUsage.toJson() =
+    "{\"threads\": $threads, \"peakThreads\": $peakThreads, " +
+        "\"sockets\": $sockets, \"heapUsedBytes\": $heapUsedBytes}"
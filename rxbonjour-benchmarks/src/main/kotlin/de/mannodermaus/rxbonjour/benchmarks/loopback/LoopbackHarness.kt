@@ -0,0 +1,194 @@
+package de.mannodermaus.rxbonjour.benchmarks.loopback
+
+import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
+import de.mannodermaus.rxbonjour.BonjourEvent
+import de.mannodermaus.rxbonjour.Platform
+import de.mannodermaus.rxbonjour.RxBonjour
+import de.mannodermaus.rxbonjour.drivers.jmdns.JmDNSDriver
+import de.mannodermaus.rxbonjour.platforms.desktop.DesktopPlatform
+import io.reactivex.disposables.CompositeDisposable
+import java.io.File
+import java.net.InetAddress
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+private val SERVICE_TYPE = "_rxbonjour-bench._tcp"
+private val FIRST_PORT = 20000
+
+/**
+ * End-to-end harness for discoveries & broadcasts through the JmDNS driver on a single machine.
+ * Every round advertises a number of services, browses for them with a number of discoveries,
+ * and then stops advertising them again. The JSON report contains the latencies observed
+ * by every discovery, along with the threads, sockets & heap in use at each stage of the round.
+ * <p>
+ * Running multiple rounds turns this into a soak test: resources still growing after the teardown
+ * of later rounds point to leaks, while latencies growing with the number of services
+ * show the point at which a single JVM starts to degrade.
+ * <p>
+ * The address needs to belong to a multicast-capable interface. To stay off the network on Linux,
+ * enable multicast on the loopback interface first:
+ * <pre>
+ *   ip link set lo multicast on
+ *   ip route add 224.0.0.0/4 dev lo
+ * </pre>
+ * Alternatively, use the address of a dummy interface ("ip link add bench0 type dummy").
+ */
+fun main(args: Array<String>) {
+  val options = try {
+    HarnessOptions.parse(args)
+  } catch (ex: IllegalArgumentException) {
+    System.err.println(ex.message)
+    System.err.println(HarnessOptions.USAGE)
+    System.exit(1)
+    return
+  }
+
+  val report = LoopbackHarness(options).run()
+  val json = report.toJson()
+  if (options.output != null) {
+    File(options.output).writeText(json)
+    log("Report written to ${options.output}")
+  } else {
+    println(json)
+  }
+  System.exit(0)
+}
+
+internal class LoopbackHarness(private val options: HarnessOptions) {
+
+  fun run(): HarnessReport {
+    val rounds = (1..options.rounds).map { round ->
+      log("Round $round of ${options.rounds}")
+      runRound(round)
+    }
+    return HarnessReport(options, rounds)
+  }
+
+  private fun runRound(round: Int): RoundReport {
+    val baseline = ResourceUsage.sample()
+    val names = (1..options.broadcasts).map { "Service $it" }
+
+    // Advertising & browsing use separate drivers, so that services are found through the network
+    // rather than through the cache of a shared JmDNS instance
+    val advertiser = newRxBonjour()
+    val browser = newRxBonjour()
+    val browsers = List(options.discoveries) { if (options.isolated) newRxBonjour() else browser }
+
+    val probes = List(options.discoveries) { DiscoveryProbe(names.toSet()) }
+    val resolvedLatch = CountDownLatch(probes.size)
+    val removedLatch = CountDownLatch(probes.size)
+    val discoveries = CompositeDisposable()
+    val broadcasts = CompositeDisposable()
+
+    val running = try {
+      // 1. Start browsing, and give the discoveries a moment to settle
+      probes.forEachIndexed { index, probe ->
+        discoveries.add(browsers[index].newDiscovery(SERVICE_TYPE).subscribe(
+            { event -> probe.onEvent(event, resolvedLatch, removedLatch) },
+            { error -> log("Discovery failed: $error") }))
+      }
+      Thread.sleep(options.settleMillis)
+
+      // 2. Start advertising
+      val configs = names.mapIndexed { index, name ->
+        BonjourBroadcastConfig(type = SERVICE_TYPE, name = name, address = options.address,
+            port = FIRST_PORT + index)
+      }
+      val broadcastStreams = if (options.batch) listOf(advertiser.newBroadcast(configs))
+      else configs.map { advertiser.newBroadcast(it) }
+
+      probes.forEach { it.startPhase() }
+      broadcastStreams.forEach {
+        broadcasts.add(it.subscribe({}, { error -> log("Broadcast failed: $error") }))
+      }
+      if (!resolvedLatch.await(options.timeoutSeconds, TimeUnit.SECONDS)) {
+        log("Not all discoveries found all services within ${options.timeoutSeconds}s")
+      }
+      val running = ResourceUsage.sample()
+
+      // 3. Stop advertising
+      probes.forEach { it.startPhase() }
+      broadcasts.dispose()
+      if (!removedLatch.await(options.timeoutSeconds, TimeUnit.SECONDS)) {
+        log("Not all discoveries lost all services within ${options.timeoutSeconds}s")
+      }
+      running
+
+    } finally {
+      broadcasts.dispose()
+      discoveries.dispose()
+    }
+
+    // Leave time for the teardown, which happens in the background
+    Thread.sleep(options.settleMillis)
+    return RoundReport(round, probes.map { it.result() }, baseline, running,
+        ResourceUsage.sample())
+  }
+
+  private fun newRxBonjour() = RxBonjour.Builder()
+      .platform(HarnessPlatform(options.address))
+      .driver(JmDNSDriver.Builder()
+          // Release JmDNS instances right away, so that the usage after teardown is accurate
+          .idleTimeout(0L, TimeUnit.SECONDS)
+          .create())
+      .create()
+}
+
+/** Platform advertising & browsing on the address under test */
+private class HarnessPlatform(private val address: InetAddress)
+  : Platform by DesktopPlatform.create() {
+  override fun getWifiAddress() = address
+}
+
+/**
+ * Observer of a single discovery, measuring the time since the start of the current phase
+ * until its first Added event, until it found all services, and until it lost all of them.
+ */
+internal class DiscoveryProbe(private val expected: Set<String>) {
+
+  private val found = HashSet<String>()
+  private val lost = HashSet<String>()
+  private var phaseStart = System.nanoTime()
+  private var firstAdded: Long? = null
+  private var allResolved: Long? = null
+  private var allRemoved: Long? = null
+
+  fun startPhase() {
+    synchronized(this) { phaseStart = System.nanoTime() }
+  }
+
+  fun onEvent(event: BonjourEvent, resolvedLatch: CountDownLatch, removedLatch: CountDownLatch) {
+    synchronized(this) {
+      val name = event.service.name
+      if (name !in expected) return
+      val elapsed = System.nanoTime() - phaseStart
+
+      when (event) {
+        is BonjourEvent.Added -> {
+          if (firstAdded == null) firstAdded = elapsed
+          if (found.add(name) && found.size == expected.size) {
+            allResolved = elapsed
+            resolvedLatch.countDown()
+          }
+        }
+        is BonjourEvent.Removed -> {
+          if (lost.add(name) && lost.size == expected.size) {
+            allRemoved = elapsed
+            removedLatch.countDown()
+          }
+        }
+        else -> Unit
+      }
+    }
+  }
+
+  fun result() = synchronized(this) {
+    ProbeResult(firstAdded.toMillis(), allResolved.toMillis(), allRemoved.toMillis())
+  }
+}
+
+/* Extension Functions */
+
+private fun Long?.toMillis() = this?.let { it / 1_000_000.0 }
+
+internal fun log(message: String) = System.err.println("[loopback] $message")
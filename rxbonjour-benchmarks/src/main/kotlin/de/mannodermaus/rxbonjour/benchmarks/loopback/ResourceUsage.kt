@@ -0,0 +1,37 @@
+package de.mannodermaus.rxbonjour.benchmarks.loopback
+
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+
+/** Snapshot of the resources held by the JVM */
+internal class ResourceUsage(
+    val threads: Int,
+    val peakThreads: Int,
+    /** Open sockets, or -1 if they can't be counted on this system */
+    val sockets: Int,
+    val heapUsedBytes: Long) {
+
+  companion object {
+    fun sample(): ResourceUsage {
+      // Only count the heap that's actually reachable
+      System.gc()
+
+      val threads = ManagementFactory.getThreadMXBean()
+      val heap = ManagementFactory.getMemoryMXBean().heapMemoryUsage
+      return ResourceUsage(threads.threadCount, threads.peakThreadCount, countSockets(), heap.used)
+    }
+
+    // Linux exposes the file descriptors of a process, with sockets linking to "socket:[inode]"
+    private fun countSockets(): Int {
+      val descriptors = File("/proc/self/fd").listFiles() ?: return -1
+      return descriptors.count {
+        try {
+          Files.readSymbolicLink(it.toPath()).toString().startsWith("socket:")
+        } catch (ignored: Exception) {
+          false
+        }
+      }
+    }
+  }
+}
@@ -1,45 +1,122 @@
 package de.mannodermaus.rxbonjour.drivers.jmdns
 
+import de.mannodermaus.rxbonjour.AsyncEngine
 import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
-import de.mannodermaus.rxbonjour.BonjourSchedulers
 import de.mannodermaus.rxbonjour.BroadcastCallback
-import de.mannodermaus.rxbonjour.BroadcastEngine
+import de.mannodermaus.rxbonjour.MultiServiceBroadcastEngine
+import de.mannodermaus.rxbonjour.TraceStage
+import de.mannodermaus.rxbonjour.TxtRecords
+import de.mannodermaus.rxbonjour.UpdatableBroadcastEngine
 import io.reactivex.Completable
+import io.reactivex.Scheduler
 import java.net.InetAddress
 import javax.jmdns.JmDNS
 import javax.jmdns.ServiceInfo
 
 private val LOCAL_DOMAIN_SUFFIX = ".local."
 
-internal class JmDNSBroadcastEngine : BroadcastEngine {
+internal class JmDNSBroadcastEngine(
+    private val pool: JmDNSPool,
+    private val scheduler: Scheduler)
+  : MultiServiceBroadcastEngine, UpdatableBroadcastEngine, AsyncEngine {
 
-  private var jmdns: JmDNS? = null
-  private var jmdnsService: ServiceInfo? = null
+  // Owns the state of the engine, and runs the calls into JmDNS one after another.
+  // Only registrations run outside of it, since they block for a long time
+  private val worker = scheduler.createWorker()
+
+  private val registrations = ArrayList<Registration>()
+  private var pendingRegistrations = 0
+  private val deferred = ArrayList<() -> Unit>()
 
   override fun initialize() {
   }
 
+  override fun initializeAsync(): Completable =
+      Completable.fromAction { initialize() }.subscribeOn(scheduler)
+
   override fun start(address: InetAddress, config: BonjourBroadcastConfig,
       callback: BroadcastCallback) {
-    val jmdns = JmDNS.create(address, address.toString())
-    this.jmdns = jmdns
-    this.jmdnsService = config.toJmDNSModel()
+    start(address, listOf(config), callback)
+  }
+
+  override fun start(address: InetAddress, configs: List<BonjourBroadcastConfig>,
+      callback: BroadcastCallback) {
+    val services = configs.map { Pair(it.address ?: address, it.toJmDNSModel()) }
+
+    // Creating JmDNS & probing for the names both block, so they're done in the background
+    worker.schedule {
+      val started = ArrayList<Registration>()
+      try {
+        services.forEach { (address, jmdnsService) ->
+          val jmdns = pool.acquire(address)
+          callback.trace(TraceStage.DRIVER_CONNECTED, address)
+          started += Registration(address, jmdns, jmdnsService)
+        }
+      } catch (ex: Exception) {
+        callback.broadcastFailed(ex)
+        return@schedule
+      } finally {
+        // Instances acquired so far are released on teardown
+        registrations += started
+      }
+
+      // Each registration blocks until its name is probed for. Running them at the same time
+      // lets JmDNS probe & announce the services of an instance together,
+      // so that starting many of them takes about as long as starting one
+      pendingRegistrations += started.size
+      started.forEach { registration ->
+        scheduler.scheduleDirect {
+          try {
+            val start = System.nanoTime()
+            registration.jmdns.registerService(registration.service)
+            callback.broadcastRegistered(registration.service.type, registration.service.name,
+                System.nanoTime() - start)
+          } catch (ex: Exception) {
+            callback.broadcastFailed(ex)
+          } finally {
+            worker.schedule { onRegistrationDone() }
+          }
+        }
+      }
+    }
+  }
 
-    // This will start the broadcast immediately
-    jmdns.registerService(jmdnsService)
+  override fun updateTxtRecords(txtRecords: TxtRecords) {
+    // JmDNS announces the new records of registered services on its own
+    worker.schedule {
+      afterRegistrations { registrations.forEach { it.service.setText(txtRecords) } }
+    }
   }
 
   override fun teardown() {
-    jmdns?.let { jmdns ->
-      jmdnsService?.let { jmdns.unregisterService(it) }
-
-      // Closing JmDNS might take a while, so defer it to a background thread
-      Completable.fromAction { jmdns.close() }
-          .compose(BonjourSchedulers.completableAsync())
-          .onErrorComplete()
-          .subscribe()
+    worker.schedule {
+      afterRegistrations {
+        registrations.forEach {
+          it.jmdns.unregisterService(it.service)
+          pool.release(it.address)
+        }
+        registrations.clear()
+        worker.dispose()
+      }
     }
   }
+
+  override fun teardownAsync(): Completable =
+      Completable.fromAction { teardown() }.subscribeOn(scheduler)
+
+  /** Runs the action once registrations in progress are done, in case there are any */
+  private fun afterRegistrations(action: () -> Unit) {
+    if (pendingRegistrations == 0) action() else deferred += action
+  }
+
+  private fun onRegistrationDone() {
+    if (--pendingRegistrations > 0) return
+    val actions = ArrayList(deferred)
+    deferred.clear()
+    actions.forEach { it() }
+  }
+
+  private class Registration(val address: InetAddress, val jmdns: JmDNS, val service: ServiceInfo)
 }
 
 /* Extension Functions */
@@ -1,10 +1,15 @@
 package de.mannodermaus.rxbonjour.drivers.jmdns
 
-import de.mannodermaus.rxbonjour.BonjourSchedulers
+import de.mannodermaus.rxbonjour.AsyncEngine
 import de.mannodermaus.rxbonjour.BonjourService
 import de.mannodermaus.rxbonjour.DiscoveryCallback
-import de.mannodermaus.rxbonjour.DiscoveryEngine
+import de.mannodermaus.rxbonjour.LazyDiscoveryEngine
+import de.mannodermaus.rxbonjour.MultiTypeDiscoveryEngine
+import de.mannodermaus.rxbonjour.PrioritizedDiscoveryEngine
+import de.mannodermaus.rxbonjour.ResolvePriority
+import de.mannodermaus.rxbonjour.TraceStage
 import io.reactivex.Completable
+import io.reactivex.Scheduler
 import java.net.InetAddress
 import java.util.logging.Level
 import java.util.logging.Logger
@@ -19,14 +24,23 @@ import javax.jmdns.impl.constants.DNSRecordType
 private val BONJOUR_TYPE_LOCAL_SUFFIX = ".local."
 
 internal class JmDNSDiscoveryEngine
-constructor(type: String) : DiscoveryEngine {
+constructor(
+    private val pool: JmDNSPool,
+    private val resolver: JmDNSResolver,
+    type: String,
+    private val scheduler: Scheduler)
+  : MultiTypeDiscoveryEngine, PrioritizedDiscoveryEngine, LazyDiscoveryEngine, AsyncEngine {
+
+  // Runs the blocking calls into JmDNS, one after another
+  private val worker = scheduler.createWorker()
 
   // Append type suffix in order to have JmDNS pick up on the resolved services
-  private val serviceType = if (type.endsWith(
-      BONJOUR_TYPE_LOCAL_SUFFIX)) type else type + BONJOUR_TYPE_LOCAL_SUFFIX
+  private val serviceTypes = mutableSetOf(type.toServiceType())
 
+  private var address: InetAddress? = null
   private var jmdns: JmDNS? = null
   private var listener: JmDNSListener? = null
+  private var lazy = false
 
   override fun initialize() {
     // Disable logging for some JmDNS classes, since those severely clutter log output
@@ -36,33 +50,98 @@ constructor(type: String) : DiscoveryEngine {
     Logger.getLogger(DNSIncoming.MessageInputStream::class.java.name).level = Level.OFF
   }
 
-  override fun discover(address: InetAddress, callback: DiscoveryCallback) {
-    val jmdns = JmDNS.create(address, address.toString())
-    this.jmdns = jmdns
-    this.listener = JmDNSListener(callback)
+  override fun initializeAsync(): Completable =
+      Completable.fromAction { initialize() }.subscribeOn(scheduler)
+
+  override fun setResolvePriority(priority: ResolvePriority) {
+    resolver.priority = priority
+  }
+
+  override fun setResolveLazily(lazy: Boolean) {
+    this.lazy = lazy
+  }
+
+  override fun addType(type: String) {
+    val serviceType = type.toServiceType()
+    synchronized(serviceTypes) {
+      if (!serviceTypes.add(serviceType)) return
+      // Start browsing right away if the discovery is already running
+      listener?.let { jmdns?.addServiceListener(serviceType, it) }
+    }
+  }
+
+  override fun removeType(type: String) {
+    val serviceType = type.toServiceType()
+    synchronized(serviceTypes) {
+      if (!serviceTypes.remove(serviceType)) return
+      listener?.let { jmdns?.removeServiceListener(serviceType, it) }
+    }
+  }
 
-    // This will start the discovery immediately
-    jmdns.addServiceListener(serviceType, listener)
+  override fun discover(address: InetAddress, callback: DiscoveryCallback) {
+    val listener = JmDNSListener(callback, resolver, lazy)
+
+    // Creating JmDNS blocks, so it's done in the background
+    worker.schedule {
+      val jmdns = try {
+        pool.acquire(address)
+      } catch (ex: Exception) {
+        callback.discoveryFailed(ex)
+        return@schedule
+      }
+      callback.trace(TraceStage.DRIVER_CONNECTED, address)
+
+      synchronized(serviceTypes) {
+        this.address = address
+        this.jmdns = jmdns
+        this.listener = listener
+
+        // This will start the discovery immediately
+        serviceTypes.forEach {
+          jmdns.addServiceListener(it, listener)
+          callback.trace(TraceStage.QUERY_SENT, it)
+        }
+      }
+    }
   }
 
   override fun teardown() {
-    // Remove service listener & shut down JmDNS
-    jmdns?.let { jmdns ->
-      listener?.let { jmdns.removeServiceListener(serviceType, it) }
-
-      // Closing JmDNS might take a while, so defer it to a background thread
-      Completable.fromAction { jmdns.close() }
-          .compose(BonjourSchedulers.completableAsync())
-          .onErrorComplete()
-          .subscribe()
+    resolver.stop()
+
+    // Remove service listeners & hand JmDNS back to the pool,
+    // after the discovery has started in case it's still about to
+    worker.schedule {
+      synchronized(serviceTypes) {
+        jmdns?.let { jmdns ->
+          listener?.let { listener ->
+            serviceTypes.forEach { jmdns.removeServiceListener(it, listener) }
+          }
+          address?.let { pool.release(it) }
+        }
+        jmdns = null
+      }
+      worker.dispose()
     }
   }
 
-  private class JmDNSListener(val callback: DiscoveryCallback) : ServiceListener {
+  override fun teardownAsync(): Completable =
+      Completable.fromAction { teardown() }.subscribeOn(scheduler)
+
+  private class JmDNSListener(
+      val callback: DiscoveryCallback,
+      val resolver: JmDNSResolver,
+      val lazy: Boolean) : ServiceListener {
 
     override fun serviceAdded(event: ServiceEvent) {
-      // Resolve the service's info, don't call through with success yet
-      event.dns.requestServiceInfo(event.type, event.name)
+      callback.trace(TraceStage.SERVICE_FOUND, event.name)
+      if (lazy) {
+        // Leave the resolve to the user
+        callback.serviceFound(event.type, event.name)
+        return
+      }
+
+      // Resolve the service's info in the background, don't call through with success yet
+      resolver.resolve(event.dns, event.type, event.name, callback)
     }
 
     override fun serviceRemoved(event: ServiceEvent) {
@@ -70,6 +149,9 @@ constructor(type: String) : DiscoveryEngine {
     }
 
     override fun serviceResolved(event: ServiceEvent) {
+      // Services in resolution are reported by the resolver, once it's done.
+      // Otherwise, this is a change to a service resolved before
+      if (resolver.isResolving(event.type, event.name)) return
       callback.serviceResolved(event.info.toLibraryModel())
     }
   }
@@ -77,8 +159,11 @@ constructor(type: String) : DiscoveryEngine {
 
 /* Extension Functions */
 
+internal fun String.toServiceType() =
+    if (this.endsWith(BONJOUR_TYPE_LOCAL_SUFFIX)) this else this + BONJOUR_TYPE_LOCAL_SUFFIX
+
 // Mapping between JmDNS namespace & RxBonjour model type
-private fun ServiceInfo.toLibraryModel() = BonjourService(
+internal fun ServiceInfo.toLibraryModel() = BonjourService(
     name = this.name,
     type = this.type,
     v4Host = this.inet4Addresses.firstOrNull(),
@@ -1,19 +1,110 @@
 package de.mannodermaus.rxbonjour.drivers.jmdns
 
-import de.mannodermaus.rxbonjour.BroadcastEngine
-import de.mannodermaus.rxbonjour.DiscoveryEngine
 import de.mannodermaus.rxbonjour.Driver
+import de.mannodermaus.rxbonjour.MultiServiceBroadcastDriver
+import de.mannodermaus.rxbonjour.MultiServiceBroadcastEngine
+import de.mannodermaus.rxbonjour.MultiTypeDiscoveryEngine
+import de.mannodermaus.rxbonjour.MultiTypeDriver
+import de.mannodermaus.rxbonjour.ResolveEngine
+import de.mannodermaus.rxbonjour.ResolvingDriver
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+private val DEFAULT_IDLE_TIMEOUT_SECONDS = 10L
+internal val DEFAULT_RESOLVE_PARALLELISM = 8
+// Matches the time JmDNS waits for service info by default
+private val DEFAULT_RESOLVE_TIMEOUT_SECONDS = 6L
 
 /**
  * RxBonjour Driver implementation using JmDNS for Network Service Discovery.
+ * All engines created by the same Driver share one JmDNS instance per network address.
+ * Calls into JmDNS which block are made on virtual threads where the JVM supports them (JDK 21+).
  */
-class JmDNSDriver private constructor() : Driver {
+class JmDNSDriver private constructor(
+    private val pool: JmDNSPool,
+    private val scheduler: Scheduler,
+    private val resolveParallelism: Int,
+    private val resolveTimeout: Long,
+    private val resolveTimeoutUnit: TimeUnit)
+  : ResolvingDriver, MultiTypeDriver, MultiServiceBroadcastDriver {
+
   override val name: String = "jmdns"
-  override fun createDiscovery(type: String): DiscoveryEngine = JmDNSDiscoveryEngine(type)
-  override fun createBroadcast(): BroadcastEngine = JmDNSBroadcastEngine()
+  override fun createDiscovery(type: String): MultiTypeDiscoveryEngine =
+      JmDNSDiscoveryEngine(pool,
+          JmDNSResolver(resolveParallelism, resolveTimeout, resolveTimeoutUnit, scheduler), type,
+          scheduler)
+  override fun createBroadcast(): MultiServiceBroadcastEngine =
+      JmDNSBroadcastEngine(pool, scheduler)
+  override fun createResolve(): ResolveEngine =
+      JmDNSResolveEngine(pool, resolveTimeout, resolveTimeoutUnit, scheduler)
+
+  /**
+   * Configuration and Creation of JmDNSDriver instances.
+   */
+  class Builder {
+    private var idleTimeout = DEFAULT_IDLE_TIMEOUT_SECONDS
+    private var idleTimeoutUnit = TimeUnit.SECONDS
+    private var resolveParallelism = DEFAULT_RESOLVE_PARALLELISM
+    private var resolveTimeout = DEFAULT_RESOLVE_TIMEOUT_SECONDS
+    private var resolveTimeoutUnit = TimeUnit.SECONDS
+    private var executor: Executor? = null
+
+    /**
+     * Sets the time after which an unused JmDNS instance is closed.
+     * Engines starting within this time frame reuse the existing instance instead.
+     */
+    fun idleTimeout(time: Long, unit: TimeUnit) = also {
+      require(time >= 0L, { "The idle timeout can't be negative" })
+      this.idleTimeout = time
+      this.idleTimeoutUnit = unit
+    }
+
+    /**
+     * Sets the number of services each discovery resolves at the same time.
+     * Further services are queued until a resolve finishes.
+     */
+    fun resolveParallelism(parallelism: Int) = also {
+      require(parallelism > 0, { "The resolve parallelism must be positive" })
+      this.resolveParallelism = parallelism
+    }
+
+    /**
+     * Sets the time to wait for the records of a service.
+     * Services that can't be resolved within this time aren't reported by discoveries,
+     * and fail individual resolves.
+     */
+    fun resolveTimeout(time: Long, unit: TimeUnit) = also {
+      require(time > 0L, { "The resolve timeout must be positive" })
+      this.resolveTimeout = time
+      this.resolveTimeoutUnit = unit
+    }
+
+    /**
+     * Sets the executor on which calls into JmDNS that block are made,
+     * e.g. creating & closing instances, resolving services and (un-)registering broadcasts.
+     * By default, these run on virtual threads on JDK 21+, and on RxJava's I/O threads otherwise.
+     */
+    fun executor(executor: Executor) = also { this.executor = executor }
+
+    fun create(): Driver {
+      val blocking = blockingScheduler(executor)
+      return JmDNSDriver(JmDNSPool(idleTimeout, idleTimeoutUnit, blocking), blocking,
+          resolveParallelism, resolveTimeout, resolveTimeoutUnit)
+    }
+  }
 
   companion object {
     @JvmStatic
-    fun create(): Driver = JmDNSDriver()
+    fun create(): Driver = Builder().create()
   }
 }
+
+/**
+ * Scheduler for the calls into JmDNS that block. Without an executor, this needs to be unbounded:
+ * each discovery keeps up to its resolve parallelism of threads busy for the length of a timeout,
+ * and any bounded pool shared with instance creation & registrations would be starved by them.
+ */
+internal fun blockingScheduler(executor: Executor?): Scheduler =
+    executor?.let { Schedulers.from(it) } ?: virtualThreadScheduler ?: Schedulers.io()
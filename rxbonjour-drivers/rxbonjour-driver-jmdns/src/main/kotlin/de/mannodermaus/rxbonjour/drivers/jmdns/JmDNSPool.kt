@@ -0,0 +1,76 @@
+package de.mannodermaus.rxbonjour.drivers.jmdns
+
+import de.mannodermaus.rxbonjour.BonjourSchedulers
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import java.net.InetAddress
+import java.util.concurrent.TimeUnit
+import javax.jmdns.JmDNS
+
+/**
+ * Reference-counted pool of JmDNS instances, keeping at most one instance per address.
+ * All discoveries & broadcasts on the same address share the instance obtained from here,
+ * which is closed once it hasn't been acquired by anyone for the duration of the idle timeout.
+ */
+internal class JmDNSPool(
+    private val idleTimeout: Long,
+    private val unit: TimeUnit,
+    private val scheduler: Scheduler = BonjourSchedulers.io()) {
+
+  private val entries = HashMap<InetAddress, Entry>()
+
+  /**
+   * Obtains the JmDNS instance bound to the provided address, creating it if necessary.
+   * Every call to this method needs to be balanced with a call to release().
+   */
+  fun acquire(address: InetAddress): JmDNS {
+    val entry = synchronized(entries) {
+      entries.getOrPut(address) { Entry() }.also {
+        it.refs++
+        it.pendingClose?.dispose()
+        it.pendingClose = null
+      }
+    }
+
+    try {
+      // Creation blocks, so only hold the lock of the entry in question
+      return synchronized(entry) {
+        entry.jmdns ?: JmDNS.create(address, address.toString()).also { entry.jmdns = it }
+      }
+    } catch (ex: Exception) {
+      release(address)
+      throw ex
+    }
+  }
+
+  /** Gives up a reference to the JmDNS instance bound to the provided address */
+  fun release(address: InetAddress) {
+    synchronized(entries) {
+      val entry = entries[address] ?: return
+      entry.refs--
+      if (entry.refs > 0) return
+
+      entry.pendingClose = scheduler.scheduleDirect({ closeIfIdle(address, entry) },
+          idleTimeout, unit)
+    }
+  }
+
+  private fun closeIfIdle(address: InetAddress, entry: Entry) {
+    synchronized(entries) {
+      if (entry.refs > 0 || entries[address] !== entry) return
+      entries.remove(address)
+    }
+
+    // Closing JmDNS might take a while, but this is already running in the background
+    try {
+      synchronized(entry) { entry.jmdns }?.close()
+    } catch (ignored: Exception) {
+    }
+  }
+
+  private class Entry {
+    var refs = 0
+    var jmdns: JmDNS? = null
+    var pendingClose: Disposable? = null
+  }
+}
@@ -0,0 +1,68 @@
+package de.mannodermaus.rxbonjour.drivers.jmdns
+
+import de.mannodermaus.rxbonjour.AsyncEngine
+import de.mannodermaus.rxbonjour.ResolveCallback
+import de.mannodermaus.rxbonjour.ResolveEngine
+import io.reactivex.Completable
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import java.net.InetAddress
+import java.util.concurrent.TimeUnit
+
+internal class JmDNSResolveEngine(
+    private val pool: JmDNSPool,
+    private val timeout: Long,
+    private val unit: TimeUnit,
+    private val scheduler: Scheduler = Schedulers.io()) : ResolveEngine, AsyncEngine {
+
+  private var address: InetAddress? = null
+  private var stopped = false
+
+  override fun initialize() {
+  }
+
+  override fun initializeAsync(): Completable =
+      Completable.fromAction { initialize() }.subscribeOn(scheduler)
+
+  override fun resolve(address: InetAddress, type: String, name: String,
+      callback: ResolveCallback) {
+    // Creating JmDNS & resolving both block, so move them off the caller's thread
+    scheduler.scheduleDirect {
+      val info = try {
+        val jmdns = pool.acquire(address)
+        synchronized(this) {
+          // Torn down in the meantime, so nobody else will hand JmDNS back
+          if (stopped) {
+            pool.release(address)
+            return@scheduleDirect
+          }
+          this.address = address
+        }
+
+        jmdns.getServiceInfo(type.toServiceType(), name, unit.toMillis(timeout))
+      } catch (ex: Exception) {
+        if (!isStopped()) callback.resolveFailed(ex)
+        return@scheduleDirect
+      }
+
+      when {
+        isStopped() -> Unit
+        info != null && info.hasData() -> callback.serviceResolved(info.toLibraryModel())
+        else -> callback.resolveFailed(null)
+      }
+    }
+  }
+
+  override fun teardown() {
+    synchronized(this) {
+      stopped = true
+      address?.let { pool.release(it) }
+      address = null
+    }
+  }
+
+  override fun teardownAsync(): Completable =
+      Completable.fromAction { teardown() }.subscribeOn(scheduler)
+
+  private fun isStopped() = synchronized(this) { stopped }
+}
@@ -0,0 +1,122 @@
+package de.mannodermaus.rxbonjour.drivers.jmdns
+
+import de.mannodermaus.rxbonjour.DiscoveryCallback
+import de.mannodermaus.rxbonjour.ResolvePriority
+import de.mannodermaus.rxbonjour.TraceStage
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import java.util.PriorityQueue
+import java.util.concurrent.TimeUnit
+import javax.jmdns.JmDNS
+
+private val INITIAL_QUEUE_CAPACITY = 16
+
+/**
+ * Resolution stage of a discovery. Resolving a service through JmDNS blocks until its records
+ * arrive or the timeout elapses, so this runs a bounded number of resolves in parallel
+ * off JmDNS's listener thread, queueing the rest in order of their priority.
+ * Services already queued or being resolved are only resolved once.
+ */
+internal class JmDNSResolver(
+    private val parallelism: Int,
+    private val timeout: Long,
+    private val unit: TimeUnit,
+    private val scheduler: Scheduler = Schedulers.io()) {
+
+  // Highest priority first, then in order of arrival
+  private val pending = PriorityQueue<Request>(INITIAL_QUEUE_CAPACITY,
+      compareByDescending<Request> { it.priority }.thenBy { it.sequence })
+  private var sequence = 0L
+  // Keys of all queued & running requests
+  private val inFlight = HashSet<String>()
+  private var workers = 0
+  private var stopped = false
+
+  /** Ranking of queued requests. Requests are resolved in order of arrival without one */
+  @Volatile var priority: ResolvePriority? = null
+
+  /**
+   * Queues the resolution of the given service. The callback is invoked on a background thread,
+   * once the service is resolved. If the resolve fails or times out, this is only reported
+   * to the callback's metrics.
+   */
+  fun resolve(jmdns: JmDNS, type: String, name: String, callback: DiscoveryCallback) {
+    val priority = priority?.priorityOf(type.removeLocalDomain(), name) ?: 0
+    synchronized(this) {
+      val request = Request(jmdns, type, name, callback, priority, sequence++)
+      if (stopped || !inFlight.add(request.key)) return
+      pending.offer(request)
+
+      if (workers < parallelism) {
+        workers++
+        scheduler.scheduleDirect { work() }
+      }
+    }
+  }
+
+  /**
+   * Whether the given service is queued or being resolved. JmDNS reports the info
+   * of services in resolution to its listeners as well, which only this resolver may report.
+   */
+  fun isResolving(type: String, name: String): Boolean =
+      synchronized(this) { serviceKey(type, name) in inFlight }
+
+  /** Drops all queued requests. Results of running ones are discarded */
+  fun stop() {
+    synchronized(this) {
+      stopped = true
+      pending.clear()
+      inFlight.clear()
+    }
+  }
+
+  private fun work() {
+    while (true) {
+      val request = synchronized(this) {
+        pending.poll().also { if (it == null) workers-- }
+      } ?: return
+
+      request.callback.trace(TraceStage.RESOLVE_STARTED, request.name)
+      val start = System.nanoTime()
+      var error: Exception? = null
+      val info = try {
+        request.jmdns.getServiceInfo(request.type, request.name, unit.toMillis(timeout))
+      } catch (ex: Exception) {
+        error = ex
+        null
+      }
+      val latency = System.nanoTime() - start
+
+      // The request stays in flight until reported, so that JmDNS's own report of it is ignored
+      if (synchronized(this) { !stopped }) {
+        val callback = request.callback
+        if (info != null && info.hasData()) {
+          callback.serviceResolved(info.toLibraryModel())
+          callback.resolveCompleted(request.type, request.name, latency)
+        } else {
+          // Timeouts don't come with an exception
+          callback.resolveFailed(request.type, request.name, error)
+        }
+      }
+      synchronized(this) { inFlight.remove(request.key) }
+    }
+  }
+
+  private class Request(
+      val jmdns: JmDNS,
+      val type: String,
+      val name: String,
+      val callback: DiscoveryCallback,
+      val priority: Int,
+      val sequence: Long) {
+
+    val key = serviceKey(type, name)
+  }
+}
+
+// Service names are case-insensitive
+private fun serviceKey(type: String, name: String) = "$name.$type".toLowerCase()
+
+/* Extension Functions */
+
+private fun String.removeLocalDomain() = this.removeSuffix(".").removeSuffix(".local")
@@ -0,0 +1,24 @@
+package de.mannodermaus.rxbonjour.drivers.jmdns
+
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+// Available on JDK 21+
+private val VIRTUAL_THREAD_FACTORY_METHOD = "newVirtualThreadPerTaskExecutor"
+
+/**
+ * Scheduler running each task on its own virtual thread, or null if the JVM doesn't have them.
+ * Virtual threads don't occupy a platform thread while they are blocked,
+ * which makes them a cheap fit for JmDNS's blocking calls. Since the driver targets
+ * older JVMs as well, the executor is looked up reflectively.
+ */
+internal val virtualThreadScheduler: Scheduler? by lazy {
+  try {
+    val method = Executors::class.java.getMethod(VIRTUAL_THREAD_FACTORY_METHOD)
+    Schedulers.from(method.invoke(null) as ExecutorService)
+  } catch (ignored: Exception) {
+    null
+  }
+}
@@ -0,0 +1,41 @@
+package de.mannodermaus.rxbonjour.drivers.jmdns
+
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.DisplayName
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+private val TIMEOUT_SECONDS = 5L
+
+@DisplayName("JmDNS Driver")
+class JmDNSDriverTests {
+
+  @Test
+  @DisplayName("Broadcasts can start while the resolves of several discoveries are blocked")
+  fun broadcastsStartWhileResolvesBlock() {
+    val scheduler = blockingScheduler(null)
+    val release = CountDownLatch(1)
+    val resolving = CountDownLatch(2 * DEFAULT_RESOLVE_PARALLELISM)
+    val registered = CountDownLatch(1)
+
+    try {
+      // Two discoveries, each one waiting for as many services as it resolves at the same time
+      repeat(2 * DEFAULT_RESOLVE_PARALLELISM) {
+        scheduler.scheduleDirect {
+          resolving.countDown()
+          release.await()
+        }
+      }
+      assertTrue(resolving.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "Resolves didn't start")
+
+      // Creating the JmDNS instance & registering a service run on the same scheduler
+      scheduler.scheduleDirect { registered.countDown() }
+      assertTrue(registered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+          "Broadcast was stuck behind the resolves")
+
+    } finally {
+      release.countDown()
+    }
+  }
+}
@@ -0,0 +1,622 @@
+package de.mannodermaus.rxbonjour.drivers.nio
+
+import de.mannodermaus.rxbonjour.TxtRecords
+import java.net.InetAddress
+import java.nio.ByteBuffer
+import java.nio.charset.Charset
+
+/* Constants (RFC 1035, RFC 6762) */
+
+internal val MDNS_PORT = 5353
+internal val MDNS_GROUP_V4: InetAddress = InetAddress.getByName("224.0.0.251")
+internal val MDNS_GROUP_V6: InetAddress = InetAddress.getByName("FF02::FB")
+internal val MAX_PACKET_SIZE = 9000
+// Ethernet MTU, less the IPv6 & UDP headers. Multicast packets shouldn't be fragmented
+internal val MAX_MULTICAST_PAYLOAD = 1500 - 40 - 8
+
+internal val TYPE_A = 1
+internal val TYPE_PTR = 12
+internal val TYPE_TXT = 16
+internal val TYPE_AAAA = 28
+internal val TYPE_SRV = 33
+internal val TYPE_NSEC = 47
+internal val TYPE_ANY = 255
+
+internal val CLASS_IN = 1
+internal val CLASS_MASK = 0x7fff
+internal val CLASS_FLAG_UNIQUE = 0x8000
+
+internal val FLAGS_QUERY = 0x0000
+internal val FLAGS_RESPONSE = 0x8400
+internal val FLAG_QR = 0x8000
+
+internal val SECTION_QUESTION = 0
+internal val SECTION_ANSWER = 1
+internal val SECTION_AUTHORITY = 2
+internal val SECTION_ADDITIONAL = 3
+
+private val HEADER_SIZE = 12
+private val MAX_LABEL_LENGTH = 63
+private val MAX_COMPRESSION_HOPS = 64
+private val UTF_8 = Charset.forName("UTF-8")
+private val EMPTY_BUFFER = ByteBuffer.allocate(0)
+
+/* Model */
+
+/** Domain name, split into its labels. Comparisons are case-insensitive */
+internal class DnsName(val labels: List<String>) {
+
+  val key: String = labels.joinToString(".") { it.toLowerCase() }
+
+  /** Labels in wire format, for comparisons against received packets */
+  internal val encoded: Array<ByteArray> = Array(labels.size) { labels[it].toByteArray(UTF_8) }
+
+  fun child(label: String) = DnsName(listOf(label) + labels)
+
+  override fun equals(other: Any?) = other is DnsName && other.key == key
+  override fun hashCode() = key.hashCode()
+  override fun toString() = labels.joinToString(".", postfix = ".")
+
+  companion object {
+    fun parse(name: String) = DnsName(name.split('.').filter { it.isNotEmpty() })
+  }
+}
+
+internal sealed class DnsRecord(
+    val name: DnsName,
+    val type: Int,
+    val ttl: Long,
+    val unique: Boolean)
+
+internal class PtrRecord(name: DnsName, ttl: Long, val target: DnsName)
+  : DnsRecord(name, TYPE_PTR, ttl, false)
+
+internal class SrvRecord(name: DnsName, ttl: Long, val port: Int, val target: DnsName)
+  : DnsRecord(name, TYPE_SRV, ttl, true)
+
+internal class TxtRecord(name: DnsName, ttl: Long, val entries: TxtRecords)
+  : DnsRecord(name, TYPE_TXT, ttl, true)
+
+internal class AddressRecord(name: DnsName, ttl: Long, val address: InetAddress)
+  : DnsRecord(name, if (address.address.size == 4) TYPE_A else TYPE_AAAA, ttl, true)
+
+/* Decoding */
+
+/**
+ * Flyweight decoder for DNS messages, walking a received packet in place.
+ * A single instance is reset() for every packet, after which questions & records
+ * are visited one at a time. The properties of the reader describe the current entry,
+ * and only the parts of it that an engine asks for are ever materialized.
+ * <p>
+ * The structure of the whole message is validated up-front,
+ * so that none of the accessors can run out of bounds later on.
+ */
+internal class DnsReader {
+
+  private var buffer: ByteBuffer = EMPTY_BUFFER
+  private var start = 0
+  private var limit = 0
+  private var questionCount = 0
+  private var answerCount = 0
+  private var authorityCount = 0
+  private var recordCount = 0
+  private var recordsOffset = 0
+
+  private var index = 0
+  private var cursor = 0
+  private var nameOffset = 0
+  private var dataOffset = 0
+
+  var flags = 0
+    private set
+  val isResponse get() = flags and FLAG_QR != 0
+
+  /** Section of the current entry */
+  var section = SECTION_QUESTION
+    private set
+  /** Type of the current entry */
+  var type = 0
+    private set
+  /** Unicast-response bit of the current question, or cache-flush bit of the current record */
+  var unique = false
+    private set
+  /** TTL of the current record, in seconds */
+  var ttl = 0L
+    private set
+  /** Length of the current record's data */
+  var dataLength = 0
+    private set
+
+  /**
+   * Points the reader at the message contained in the remaining bytes of the buffer.
+   * Returns false for malformed messages, in which case the reader must not be used
+   * until it's reset again. The buffer must not be modified while being read.
+   */
+  fun reset(buffer: ByteBuffer): Boolean {
+    this.buffer = buffer
+    this.start = buffer.position()
+    this.limit = buffer.limit()
+    if (limit - start < HEADER_SIZE) return false
+
+    flags = u16(start + 2)
+    questionCount = u16(start + 4)
+    answerCount = u16(start + 6)
+    authorityCount = u16(start + 8)
+    recordCount = answerCount + authorityCount + u16(start + 10)
+
+    var offset = start + HEADER_SIZE
+    for (i in 0 until questionCount) {
+      offset = scanName(offset, limit) + 4
+      if (offset < 4 || offset > limit) return false
+    }
+    recordsOffset = offset
+
+    for (i in 0 until recordCount) {
+      offset = scanName(offset, limit)
+      if (offset < 0 || offset + 10 > limit) return false
+      val type = u16(offset)
+      val data = offset + 10
+      val end = data + u16(offset + 8)
+      if (end > limit) return false
+
+      val valid = when (type) {
+        TYPE_PTR -> scanName(data, end) == end
+        TYPE_SRV -> end - data > 6 && scanName(data + 6, end) == end
+        TYPE_TXT -> scanStrings(data, end)
+        TYPE_A -> end - data == 4
+        TYPE_AAAA -> end - data == 16
+        TYPE_NSEC -> scanName(data, end).let { it >= 0 && scanTypeBitmap(it, end) }
+        else -> true
+      }
+      if (!valid) return false
+      offset = end
+    }
+
+    rewind()
+    return true
+  }
+
+  /** Moves the reader back to the first entry of the message */
+  fun rewind() {
+    index = 0
+    cursor = start + HEADER_SIZE
+    section = SECTION_QUESTION
+  }
+
+  /** Advances to the next question, returning false if there are none left */
+  fun nextQuestion(): Boolean {
+    if (index >= questionCount) return false
+
+    nameOffset = cursor
+    val offset = skipName(cursor)
+    section = SECTION_QUESTION
+    type = u16(offset)
+    unique = u16(offset + 2) and CLASS_FLAG_UNIQUE != 0
+    ttl = 0L
+    dataLength = 0
+    cursor = offset + 4
+    index++
+    return true
+  }
+
+  /**
+   * Advances to the next record of any section, skipping remaining questions.
+   * Returns false if there are no records left.
+   */
+  fun nextRecord(): Boolean {
+    if (index < questionCount) {
+      index = questionCount
+      cursor = recordsOffset
+    }
+    val recordIndex = index - questionCount
+    if (recordIndex >= recordCount) return false
+
+    nameOffset = cursor
+    val offset = skipName(cursor)
+    section = when {
+      recordIndex < answerCount -> SECTION_ANSWER
+      recordIndex < answerCount + authorityCount -> SECTION_AUTHORITY
+      else -> SECTION_ADDITIONAL
+    }
+    type = u16(offset)
+    unique = u16(offset + 2) and CLASS_FLAG_UNIQUE != 0
+    ttl = buffer.getInt(offset + 4).toLong() and 0xffffffffL
+    dataLength = u16(offset + 8)
+    dataOffset = offset + 10
+    cursor = dataOffset + dataLength
+    index++
+    return true
+  }
+
+  /* Current Entry */
+
+  /** Compares the name of the current entry to the provided one, ignoring case */
+  fun nameEquals(name: DnsName) = nameEquals(nameOffset, name)
+
+  /** Materializes the name of the current entry */
+  fun readName() = readName(nameOffset)
+
+  /** Compares the target name of the current PTR or SRV record to the provided one */
+  fun targetEquals(name: DnsName) = nameEquals(targetOffset(), name)
+
+  /** Materializes the target name of the current PTR or SRV record */
+  fun readTarget() = readName(targetOffset())
+
+  /** Port of the current SRV record */
+  val port get() = u16(dataOffset + 4)
+
+  /** Compares the raw data of the current record to the provided bytes */
+  fun dataEquals(bytes: ByteArray?): Boolean {
+    if (bytes == null || bytes.size != dataLength) return false
+    for (i in 0 until dataLength) {
+      if (buffer.get(dataOffset + i) != bytes[i]) return false
+    }
+    return true
+  }
+
+  /** Copies the raw data of the current record */
+  fun readData(): ByteArray {
+    val bytes = ByteArray(dataLength)
+    for (i in 0 until dataLength) bytes[i] = buffer.get(dataOffset + i)
+    return bytes
+  }
+
+  /** Materializes the address of the current A or AAAA record */
+  fun readAddress(): InetAddress = InetAddress.getByAddress(readData())
+
+  /** Materializes the entries of the current TXT record */
+  fun readTxtEntries(): TxtRecords {
+    val entries = LinkedHashMap<String, String>()
+    val end = dataOffset + dataLength
+    var offset = dataOffset
+
+    while (offset < end) {
+      val length = u8(offset)
+      val entry = readString(offset + 1, length)
+      val separator = entry.indexOf('=')
+      when {
+        entry.isEmpty() -> Unit
+        separator < 0 -> entries[entry] = ""
+        else -> entries[entry.substring(0, separator)] = entry.substring(separator + 1)
+      }
+      offset += 1 + length
+    }
+    return entries
+  }
+
+  /** Checks whether the type bitmap of the current NSEC record contains the provided type */
+  fun nsecContains(type: Int): Boolean {
+    val end = dataOffset + dataLength
+    var offset = skipName(dataOffset)
+
+    while (offset < end) {
+      val window = u8(offset)
+      val length = u8(offset + 1)
+      val byteIndex = (type and 0xff) / 8
+      if (window == type shr 8 && byteIndex < length) {
+        return u8(offset + 2 + byteIndex) and (0x80 ushr (type % 8)) != 0
+      }
+      offset += 2 + length
+    }
+    return false
+  }
+
+  /* Private */
+
+  private fun targetOffset() = if (type == TYPE_SRV) dataOffset + 6 else dataOffset
+
+  private fun u8(offset: Int) = buffer.get(offset).toInt() and 0xff
+
+  private fun u16(offset: Int) = buffer.getShort(offset).toInt() and 0xffff
+
+  /**
+   * Validates the name at the given offset, following compression pointers.
+   * Returns the offset right behind the name, or -1 if it's malformed.
+   */
+  private fun scanName(offset: Int, end: Int): Int {
+    var position = offset
+    var next = -1
+    var hops = 0
+    var bound = end
+
+    while (true) {
+      if (position >= bound) return -1
+      val length = u8(position)
+      when {
+        length == 0 -> return if (next < 0) position + 1 else next
+
+        length and 0xc0 == 0xc0 -> {
+          // Compression pointer, relative to the start of the message
+          if (position + 1 >= bound || ++hops > MAX_COMPRESSION_HOPS) return -1
+          if (next < 0) next = position + 2
+          position = start + (((length and 0x3f) shl 8) or u8(position + 1))
+          bound = limit
+        }
+
+        length > MAX_LABEL_LENGTH -> return -1
+
+        else -> position += 1 + length
+      }
+    }
+  }
+
+  /** Returns the offset right behind the already-validated name at the given offset */
+  private fun skipName(offset: Int): Int {
+    var position = offset
+    while (true) {
+      val length = u8(position)
+      when {
+        length == 0 -> return position + 1
+        length and 0xc0 == 0xc0 -> return position + 2
+        else -> position += 1 + length
+      }
+    }
+  }
+
+  private fun scanStrings(offset: Int, end: Int): Boolean {
+    var position = offset
+    while (position < end) position += 1 + u8(position)
+    return position == end
+  }
+
+  private fun scanTypeBitmap(offset: Int, end: Int): Boolean {
+    var position = offset
+    while (position + 2 <= end) position += 2 + u8(position + 1)
+    return position == end
+  }
+
+  private fun nameEquals(offset: Int, name: DnsName): Boolean {
+    val labels = name.encoded
+    var position = offset
+    var label = 0
+
+    while (true) {
+      val length = u8(position)
+      when {
+        length == 0 -> return label == labels.size
+
+        length and 0xc0 == 0xc0 ->
+          position = start + (((length and 0x3f) shl 8) or u8(position + 1))
+
+        else -> {
+          if (label == labels.size) return false
+          val expected = labels[label]
+          if (expected.size != length) return false
+          for (i in 0 until length) {
+            if (buffer.get(position + 1 + i).foldCase() != expected[i].foldCase()) return false
+          }
+          label++
+          position += 1 + length
+        }
+      }
+    }
+  }
+
+  private fun readName(offset: Int): DnsName {
+    val labels = ArrayList<String>(4)
+    var position = offset
+
+    while (true) {
+      val length = u8(position)
+      when {
+        length == 0 -> return DnsName(labels)
+
+        length and 0xc0 == 0xc0 ->
+          position = start + (((length and 0x3f) shl 8) or u8(position + 1))
+
+        else -> {
+          labels += readString(position + 1, length)
+          position += 1 + length
+        }
+      }
+    }
+  }
+
+  private fun readString(offset: Int, length: Int): String {
+    val bytes = ByteArray(length)
+    for (i in 0 until length) bytes[i] = buffer.get(offset + i)
+    return String(bytes, UTF_8)
+  }
+}
+
+/* Encoding */
+
+/**
+ * Reusable encoder for outgoing DNS messages. Sections have to be written in order:
+ * questions first, then answers, authority records & additional records.
+ * Names are compressed against each other.
+ */
+internal class DnsWriter(capacity: Int = MAX_PACKET_SIZE) {
+
+  private val buffer = ByteBuffer.allocate(capacity)
+  private val compression = HashMap<String, Int>()
+  private val counts = IntArray(4)
+  private var section = 0
+
+  fun begin(flags: Int) = also {
+    buffer.clear()
+    compression.clear()
+    counts.fill(0)
+    section = 0
+
+    buffer.putShort(0)
+    buffer.putShort(flags.toShort())
+    buffer.position(HEADER_SIZE)
+  }
+
+  fun question(name: DnsName, type: Int, unicastResponse: Boolean = false) = also {
+    enterSection(SECTION_QUESTION)
+    writeName(name)
+    buffer.putShort(type.toShort())
+    buffer.putShort((CLASS_IN or if (unicastResponse) CLASS_FLAG_UNIQUE else 0).toShort())
+  }
+
+  fun answer(record: DnsRecord) = also { writeRecord(SECTION_ANSWER, record) }
+  fun authority(record: DnsRecord) = also { writeRecord(SECTION_AUTHORITY, record) }
+  fun additional(record: DnsRecord) = also { writeRecord(SECTION_ADDITIONAL, record) }
+
+  val isEmpty get() = counts.all { it == 0 }
+
+  /** Finalizes the message and returns a buffer ready to be sent */
+  fun finish(): ByteBuffer {
+    for (i in counts.indices) buffer.putShort(4 + i * 2, counts[i].toShort())
+    buffer.flip()
+    return buffer
+  }
+
+  private fun enterSection(section: Int) {
+    require(section >= this.section, { "DNS sections must be written in order" })
+    this.section = section
+    counts[section]++
+  }
+
+  private fun writeRecord(section: Int, record: DnsRecord) {
+    enterSection(section)
+    writeName(record.name)
+    buffer.putShort(record.type.toShort())
+    buffer.putShort((CLASS_IN or if (record.unique) CLASS_FLAG_UNIQUE else 0).toShort())
+    buffer.putInt(record.ttl.toInt())
+
+    // Write the data, then go back to fill in its length
+    val lengthOffset = buffer.position()
+    buffer.putShort(0)
+    when (record) {
+      is PtrRecord -> writeName(record.target)
+      is SrvRecord -> {
+        buffer.putShort(0) // Priority
+        buffer.putShort(0) // Weight
+        buffer.putShort(record.port.toShort())
+        writeName(record.target)
+      }
+      is TxtRecord -> writeTxtEntries(record.entries)
+      is AddressRecord -> buffer.put(record.address.address)
+    }
+    buffer.putShort(lengthOffset, (buffer.position() - lengthOffset - 2).toShort())
+  }
+
+  private fun writeName(name: DnsName) {
+    val labels = name.labels
+    for (i in labels.indices) {
+      val suffix = labels.subList(i, labels.size).joinToString(".") { it.toLowerCase() }
+      val pointer = compression[suffix]
+      if (pointer != null) {
+        buffer.putShort((0xc000 or pointer).toShort())
+        return
+      }
+
+      if (buffer.position() <= 0x3fff) compression[suffix] = buffer.position()
+      val bytes = labels[i].toByteArray(UTF_8)
+      val length = Math.min(bytes.size, MAX_LABEL_LENGTH)
+      buffer.put(length.toByte())
+      buffer.put(bytes, 0, length)
+    }
+    buffer.put(0)
+  }
+
+  private fun writeTxtEntries(entries: TxtRecords) {
+    if (entries.isEmpty()) {
+      // An empty TXT record still needs to contain a single empty string
+      buffer.put(0)
+      return
+    }
+
+    entries.forEach { (key, value) ->
+      val bytes = (if (value.isEmpty()) key else "$key=$value").toByteArray(UTF_8)
+      val length = Math.min(bytes.size, 255)
+      buffer.put(length.toByte())
+      buffer.put(bytes, 0, length)
+    }
+  }
+}
+
+/* Aggregation */
+
+internal class DnsQuestion(val name: DnsName, val type: Int, val unicastResponse: Boolean)
+
+/**
+ * Questions & records that belong together, e.g. the probe for a single service instance.
+ * Parts with the same flags are packed into shared messages by pack(), but never split up.
+ */
+internal class DnsMessagePart(val flags: Int) {
+
+  val questions = ArrayList<DnsQuestion>()
+  val answers = ArrayList<DnsRecord>()
+  val authorities = ArrayList<DnsRecord>()
+  val additionals = ArrayList<DnsRecord>()
+
+  fun question(name: DnsName, type: Int, unicastResponse: Boolean = false) = also {
+    questions += DnsQuestion(name, type, unicastResponse)
+  }
+
+  fun answer(record: DnsRecord) = also { answers += record }
+  fun authority(record: DnsRecord) = also { authorities += record }
+  fun additional(record: DnsRecord) = also { additionals += record }
+
+  val isEmpty get() = questions.isEmpty() && answers.isEmpty()
+      && authorities.isEmpty() && additionals.isEmpty()
+
+  /** Encoded size without name compression, i.e. an upper bound */
+  val size: Int by lazy {
+    questions.sumBy { it.name.size + 4 } +
+        answers.sumBy { it.size } + authorities.sumBy { it.size } + additionals.sumBy { it.size }
+  }
+}
+
+/**
+ * Groups the parts into as few messages as possible, each fitting into the given size.
+ * Parts with the same flags keep their order, and a part too large on its own
+ * gets a message to itself.
+ */
+internal fun List<DnsMessagePart>.pack(maxSize: Int): List<List<DnsMessagePart>> {
+  val messages = ArrayList<List<DnsMessagePart>>()
+  val current = ArrayList<DnsMessagePart>()
+  var size = HEADER_SIZE
+
+  this.groupBy { it.flags }.values.forEach { parts ->
+    parts.forEach { part ->
+      if (current.isNotEmpty() && size + part.size > maxSize) {
+        messages += ArrayList(current)
+        current.clear()
+        size = HEADER_SIZE
+      }
+      current += part
+      size += part.size
+    }
+
+    if (current.isNotEmpty()) {
+      messages += ArrayList(current)
+      current.clear()
+      size = HEADER_SIZE
+    }
+  }
+  return messages
+}
+
+/** Writes a single message containing all of the given parts, which need to share their flags */
+internal fun DnsWriter.write(parts: List<DnsMessagePart>) = also {
+  begin(parts.first().flags)
+  parts.forEach { part -> part.questions.forEach { question(it.name, it.type, it.unicastResponse) } }
+  parts.forEach { part -> part.answers.forEach { answer(it) } }
+  parts.forEach { part -> part.authorities.forEach { authority(it) } }
+  parts.forEach { part -> part.additionals.forEach { additional(it) } }
+}
+
+/* Extension Functions */
+
+/** Lower-cases ASCII letters, the only ones compared case-insensitively in DNS names */
+private fun Byte.foldCase(): Int {
+  val value = this.toInt() and 0xff
+  return if (value in 0x41..0x5a) value or 0x20 else value
+}
+
+private val DnsName.size get() = encoded.sumBy { Math.min(it.size, MAX_LABEL_LENGTH) + 1 } + 1
+
+private val DnsRecord.size: Int
+  get() = name.size + 10 + when (this) {
+    is PtrRecord -> target.size
+    is SrvRecord -> 6 + target.size
+    is TxtRecord -> if (entries.isEmpty()) 1 else entries.entries.sumBy { (key, value) ->
+      Math.min((if (value.isEmpty()) key else "$key=$value").toByteArray(UTF_8).size, 255) + 1
+    }
+    is AddressRecord -> address.address.size
+  }
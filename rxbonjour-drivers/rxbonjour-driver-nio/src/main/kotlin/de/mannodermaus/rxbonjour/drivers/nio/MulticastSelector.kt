@@ -0,0 +1,389 @@
+package de.mannodermaus.rxbonjour.drivers.nio
+
+import java.io.IOException
+import java.net.Inet6Address
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.NetworkInterface
+import java.net.SocketAddress
+import java.net.StandardProtocolFamily
+import java.net.StandardSocketOptions
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.util.PriorityQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import java.util.logging.Level
+import java.util.logging.Logger
+
+private val THREAD_NAME = "RxBonjour NIO Selector"
+
+private val LOGGER = Logger.getLogger(MulticastSelector::class.java.name)
+
+/**
+ * Receiver of mDNS packets, always invoked on the selector thread.
+ * The reader is shared & only valid for the duration of the call.
+ */
+internal interface PacketListener {
+  fun onPacket(packet: DnsReader, sender: SocketAddress)
+
+  /** Invoked once the socket is gone for good, because the loop serving it died */
+  fun onFailure(cause: Exception)
+}
+
+/**
+ * Single-threaded event loop multiplexing all mDNS sockets of a driver.
+ * Sockets are shared by all engines on the same network interface & address family,
+ * and the loop thread only runs while at least one socket is in use.
+ * <p>
+ * Engines are expected to touch their state only from within the loop,
+ * using execute() and schedule() to get there.
+ */
+internal class MulticastSelector {
+
+  private val sockets = HashMap<SocketKey, MdnsSocket>()
+  private var loop: Loop? = null
+
+  /**
+   * Obtains the socket for the network interface of the provided address, opening it if necessary.
+   * Every call to this method needs to be balanced with a call to release().
+   */
+  @Throws(IOException::class)
+  fun acquire(address: InetAddress): MdnsSocket = synchronized(sockets) {
+    val networkInterface = address.findNetworkInterface()
+    val key = SocketKey(networkInterface.name, address is Inet6Address)
+
+    val socket = sockets[key] ?: run {
+      val loop = this.loop ?: Loop(this::abandon).also { this.loop = it }
+      try {
+        MdnsSocket(key, loop, networkInterface).also { sockets[key] = it }
+      } catch (ex: IOException) {
+        if (sockets.isEmpty()) stopLoop()
+        throw ex
+      }
+    }
+    socket.refs++
+    socket
+  }
+
+  /** Gives up a reference to the provided socket, closing it if unused */
+  fun release(socket: MdnsSocket) {
+    synchronized(sockets) {
+      // Sockets of a dead loop have been abandoned already
+      if (sockets[socket.key] !== socket) return
+      if (--socket.refs > 0) return
+      sockets.remove(socket.key)
+      socket.loop.execute { socket.close() }
+
+      if (sockets.isEmpty()) stopLoop()
+    }
+  }
+
+  private fun stopLoop() {
+    loop?.stop()
+    loop = null
+  }
+
+  /**
+   * Forgets about a loop that died, along with all of its sockets,
+   * so that the next call to acquire() starts over with a fresh one.
+   * @return The sockets that were still in use
+   */
+  private fun abandon(loop: Loop): List<MdnsSocket> = synchronized(sockets) {
+    if (this.loop !== loop) return emptyList()
+    this.loop = null
+    val abandoned = ArrayList(sockets.values)
+    sockets.clear()
+    abandoned
+  }
+
+  /* Inner Classes */
+
+  internal data class SocketKey(val interfaceName: String, val ipv6: Boolean)
+
+  class MdnsSocket internal constructor(
+      internal val key: SocketKey,
+      internal val loop: Loop,
+      networkInterface: NetworkInterface) {
+
+    internal var refs = 0
+
+    private val group = InetSocketAddress(if (key.ipv6) MDNS_GROUP_V6 else MDNS_GROUP_V4,
+        MDNS_PORT)
+    private val listeners = CopyOnWriteArrayList<PacketListener>()
+    private val pending = ArrayList<DnsMessagePart>()
+    // Number of responders per host name. Only accessed from the loop
+    private val hosts = HashMap<DnsName, Int>()
+    private val channel: DatagramChannel = DatagramChannel.open(
+        if (key.ipv6) StandardProtocolFamily.INET6 else StandardProtocolFamily.INET)
+
+    init {
+      try {
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true)
+        channel.bind(InetSocketAddress(MDNS_PORT))
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface)
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 255)
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true)
+        channel.join(group.address, networkInterface)
+        channel.configureBlocking(false)
+      } catch (ex: IOException) {
+        channel.close()
+        throw ex
+      }
+
+      // Registration blocks while the selector is busy, so do it from the loop itself
+      loop.execute { loop.register(channel, this) }
+    }
+
+    fun addListener(listener: PacketListener) {
+      listeners += listener
+    }
+
+    fun removeListener(listener: PacketListener) {
+      listeners -= listener
+    }
+
+    /** Registers a responder publishing records for the provided host. Must be called from the loop */
+    fun claimHost(hostName: DnsName) {
+      hosts[hostName] = (hosts[hostName] ?: 0) + 1
+    }
+
+    /**
+     * Unregisters a responder of the provided host. Must be called from the loop.
+     * @return True if this was the last responder of the host on this socket
+     */
+    fun releaseHost(hostName: DnsName): Boolean {
+      val remaining = (hosts[hostName] ?: return false) - 1
+      if (remaining > 0) {
+        hosts[hostName] = remaining
+        return false
+      }
+      hosts.remove(hostName)
+      return true
+    }
+
+    fun execute(task: () -> Unit) = loop.execute(task)
+
+    fun schedule(delay: Long, unit: TimeUnit, task: () -> Unit): Timer =
+        loop.schedule(unit.toMillis(delay), task)
+
+    /** Encodes a message with the loop's writer & sends it to the multicast group */
+    fun send(flags: Int, block: (DnsWriter) -> Unit) {
+      val writer = loop.writer.begin(flags)
+      block(writer)
+      if (!writer.isEmpty) send(writer)
+    }
+
+    /**
+     * Queues a part of a message, to be sent once the current iteration of the loop is done.
+     * Parts queued in the same iteration share as few packets as possible,
+     * so that e.g. the probes of many services don't each go out on their own.
+     * Must be called from the loop.
+     */
+    fun enqueue(flags: Int, block: (DnsMessagePart) -> Unit) {
+      val part = DnsMessagePart(flags)
+      block(part)
+      if (part.isEmpty) return
+
+      if (pending.isEmpty()) loop.flushLater(this)
+      pending += part
+    }
+
+    internal fun flush() {
+      if (pending.isEmpty()) return
+      try {
+        pending.pack(MAX_MULTICAST_PAYLOAD).forEach { send(loop.writer.write(it)) }
+      } finally {
+        pending.clear()
+      }
+    }
+
+    private fun send(writer: DnsWriter) {
+      try {
+        channel.send(writer.finish(), group)
+      } catch (ignored: IOException) {
+        // Best effort, like any other UDP traffic
+      }
+    }
+
+    internal fun dispatch(packet: DnsReader, sender: SocketAddress) {
+      for (listener in listeners) {
+        packet.rewind()
+        guarded { listener.onPacket(packet, sender) }
+      }
+    }
+
+    internal fun fail(cause: Exception) {
+      for (listener in listeners) {
+        guarded { listener.onFailure(cause) }
+      }
+    }
+
+    internal fun receive(buffer: ByteBuffer): SocketAddress? = channel.receive(buffer)
+
+    internal fun close() {
+      // Don't lose any goodbyes queued right before
+      flush()
+      try {
+        channel.close()
+      } catch (ignored: IOException) {
+      }
+    }
+  }
+
+  class Timer internal constructor(internal val deadline: Long, internal val task: () -> Unit)
+    : Comparable<Timer> {
+
+    @Volatile internal var cancelled = false
+
+    fun cancel() {
+      cancelled = true
+    }
+
+    override fun compareTo(other: Timer) = deadline.compareTo(other.deadline)
+  }
+
+  class Loop internal constructor(
+      private val onDeath: (Loop) -> List<MdnsSocket>) : Runnable {
+
+    internal val writer = DnsWriter()
+    private val reader = DnsReader()
+
+    private val selector = Selector.open()
+    private val readBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE)
+    private val tasks = ConcurrentLinkedQueue<() -> Unit>()
+    private val timers = PriorityQueue<Timer>()
+    private val dirty = LinkedHashSet<MdnsSocket>()
+    @Volatile private var running = true
+    // Start of the current iteration. Timers scheduled during one iteration share it,
+    // so that their tasks run together again later & their packets can be aggregated
+    private var tick = now()
+
+    private val thread = Thread(this, THREAD_NAME).apply {
+      isDaemon = true
+      start()
+    }
+
+    fun execute(task: () -> Unit) {
+      tasks += task
+      selector.wakeup()
+    }
+
+    fun schedule(delayMillis: Long, task: () -> Unit): Timer {
+      val base = if (Thread.currentThread() === thread) tick else now()
+      val timer = Timer(base + delayMillis, task)
+      execute { timers += timer }
+      return timer
+    }
+
+    fun stop() {
+      running = false
+      selector.wakeup()
+    }
+
+    internal fun flushLater(socket: MdnsSocket) {
+      dirty += socket
+    }
+
+    internal fun register(channel: DatagramChannel, socket: MdnsSocket) {
+      if (channel.isOpen) channel.register(selector, SelectionKey.OP_READ, socket)
+    }
+
+    override fun run() {
+      var abandoned = emptyList<MdnsSocket>()
+      var failure: Exception? = null
+      try {
+        while (running) {
+          val next = timers.peek()
+          when {
+            next == null -> selector.select()
+            next.deadline <= now() -> selector.selectNow()
+            else -> selector.select(next.deadline - now())
+          }
+
+          tick = now()
+          readPackets()
+          runTasks()
+          runTimers()
+          flush()
+        }
+
+      } catch (ex: Exception) {
+        LOGGER.log(Level.SEVERE, "Selector thread died", ex)
+        failure = ex
+        abandoned = onDeath(this)
+      } finally {
+        runTasks()
+        selector.keys().forEach { (it.attachment() as MdnsSocket).close() }
+        selector.close()
+      }
+
+      // Let the engines of the abandoned sockets know that nothing's coming anymore
+      failure?.let { cause -> abandoned.forEach { it.fail(cause) } }
+    }
+
+    private fun readPackets() {
+      val keys = selector.selectedKeys()
+      keys.forEach { key ->
+        val socket = key.attachment() as MdnsSocket
+        try {
+          while (true) {
+            readBuffer.clear()
+            val sender = socket.receive(readBuffer) ?: break
+            readBuffer.flip()
+            if (reader.reset(readBuffer)) socket.dispatch(reader, sender)
+          }
+        } catch (ignored: IOException) {
+        }
+      }
+      keys.clear()
+    }
+
+    private fun runTasks() {
+      while (true) {
+        val task = tasks.poll() ?: return
+        guarded(task)
+      }
+    }
+
+    private fun runTimers() {
+      while (true) {
+        val timer = timers.peek()
+        if (timer == null || timer.deadline > tick) return
+        timers.poll()
+        if (!timer.cancelled) guarded(timer.task)
+      }
+    }
+
+    private fun flush() {
+      dirty.forEach { guarded { it.flush() } }
+      dirty.clear()
+    }
+
+    private fun now() = TimeUnit.NANOSECONDS.toMillis(System.nanoTime())
+  }
+}
+
+/**
+ * Runs a piece of work on the loop. A failure is logged & contained,
+ * so that a single broken engine can't take down the thread shared by all others.
+ */
+private inline fun guarded(block: () -> Unit) {
+  try {
+    block()
+  } catch (ex: RuntimeException) {
+    LOGGER.log(Level.WARNING, "Uncaught exception on the selector thread", ex)
+  }
+}
+
+/* Extension Functions */
+
+private fun InetAddress.findNetworkInterface(): NetworkInterface =
+    NetworkInterface.getByInetAddress(this)
+        ?: NetworkInterface.getNetworkInterfaces().toList().firstOrNull {
+          it.isUp && it.supportsMulticast() && !it.isLoopback
+        }
+        ?: throw IOException("No multicast-capable network interface for $this")
@@ -0,0 +1,282 @@
+package de.mannodermaus.rxbonjour.drivers.nio
+
+import de.mannodermaus.rxbonjour.AsyncEngine
+import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
+import de.mannodermaus.rxbonjour.BroadcastCallback
+import de.mannodermaus.rxbonjour.MultiServiceBroadcastEngine
+import de.mannodermaus.rxbonjour.TxtRecords
+import de.mannodermaus.rxbonjour.UpdatableBroadcastEngine
+import de.mannodermaus.rxbonjour.drivers.nio.MulticastSelector.MdnsSocket
+import io.reactivex.Completable
+import java.net.InetAddress
+import java.net.SocketAddress
+import java.util.concurrent.TimeUnit
+
+private val LOCAL_DOMAIN_SUFFIX = ".local."
+private val SERVICES_META_QUERY = DnsName.parse("_services._dns-sd._udp.local.")
+
+// Record TTLs recommended by RFC 6762, Section 10
+private val HOST_RECORD_TTL_SECONDS = 120L
+private val OTHER_RECORD_TTL_SECONDS = 4500L
+
+private val PROBE_COUNT = 3
+private val PROBE_INTERVAL_MILLIS = 250L
+private val ANNOUNCEMENT_COUNT = 2
+private val ANNOUNCEMENT_INTERVAL_MILLIS = 1000L
+
+internal class NioBroadcastEngine(private val selector: MulticastSelector)
+  : MultiServiceBroadcastEngine, UpdatableBroadcastEngine, AsyncEngine {
+
+  private val sockets = ArrayList<MdnsSocket>()
+  private val responders = ArrayList<Responder>()
+
+  override fun initialize() {
+  }
+
+  override fun initializeAsync(): Completable = Completable.complete()
+
+  override fun start(address: InetAddress, config: BonjourBroadcastConfig,
+      callback: BroadcastCallback) {
+    start(address, listOf(config), callback)
+  }
+
+  override fun start(address: InetAddress, configs: List<BonjourBroadcastConfig>,
+      callback: BroadcastCallback) {
+    val failures = FailureReporter(callback)
+    configs.groupBy { it.address ?: address }.forEach { (hostAddress, group) ->
+      val socket = selector.acquire(hostAddress)
+      sockets += socket
+      val responders = group.map { Responder(socket, it, hostAddress, failures) }
+      this.responders += responders
+
+      // Starting all of them in the same iteration of the loop
+      // lets them share their probes & announcements
+      socket.execute { responders.forEach { it.start() } }
+    }
+  }
+
+  override fun updateTxtRecords(txtRecords: TxtRecords) {
+    val socket = sockets.firstOrNull() ?: return
+    val responders = ArrayList(responders)
+    socket.execute { responders.forEach { it.updateTxtRecords(txtRecords) } }
+  }
+
+  override fun teardown() {
+    val socket = sockets.firstOrNull() ?: return
+    val sockets = ArrayList(sockets)
+    val responders = ArrayList(responders)
+    this.sockets.clear()
+    this.responders.clear()
+
+    // All sockets share the loop of the selector
+    socket.execute {
+      responders.forEach { it.stop() }
+      sockets.forEach { selector.release(it) }
+    }
+  }
+
+  override fun teardownAsync(): Completable = Completable.fromAction { teardown() }
+
+  /**
+   * Reports the failure of the broadcast only once, no matter how many of its responders fail.
+   * Only ever accessed from the selector thread.
+   */
+  private class FailureReporter(private val callback: BroadcastCallback) {
+    private var failed = false
+
+    fun fail(cause: Exception) {
+      if (failed) return
+      failed = true
+      callback.broadcastFailed(cause)
+    }
+  }
+
+  /**
+   * Probes for, announces & defends a single service instance (RFC 6762, Section 8).
+   * Only ever accessed from the selector thread.
+   */
+  private class Responder(
+      private val socket: MdnsSocket,
+      private var config: BonjourBroadcastConfig,
+      private val address: InetAddress,
+      private val failures: FailureReporter) : PacketListener {
+
+    private val typeName = DnsName.parse(
+        if (config.type.endsWith(LOCAL_DOMAIN_SUFFIX)) config.type
+        else config.type + LOCAL_DOMAIN_SUFFIX)
+    private val hostName = DnsName(listOf(address.toHostLabel(), "local"))
+
+    private var instanceName = typeName.child(config.name)
+    private var conflicts = 0
+    private var probing = true
+    private var timer: MulticastSelector.Timer? = null
+    private val answers = LinkedHashSet<DnsRecord>()
+    private val additionals = LinkedHashSet<DnsRecord>()
+
+    fun start() {
+      socket.addListener(this)
+      socket.claimHost(hostName)
+      probe(0)
+    }
+
+    fun stop() {
+      socket.removeListener(this)
+      timer?.cancel()
+      val lastOnHost = socket.releaseHost(hostName)
+
+      // Send goodbye packet, so that others can flush their caches.
+      // The address record is shared by all services on the same host,
+      // so it may only be retracted together with the last one of them
+      socket.enqueue(FLAGS_RESPONSE) { part ->
+        if (!probing) serviceRecords(ttlOverride = 0L).forEach { part.answer(it) }
+        if (lastOnHost) part.answer(addressRecord(ttlOverride = 0L))
+      }
+    }
+
+    override fun onFailure(cause: Exception) {
+      socket.removeListener(this)
+      timer?.cancel()
+      failures.fail(cause)
+    }
+
+    /**
+     * Changes the TXT records of the instance. Its name stays the same, so there's no need to probe,
+     * and the announcements of the new records flush them from the caches of others (Section 8.4)
+     */
+    fun updateTxtRecords(txtRecords: TxtRecords) {
+      config = config.copy(txtRecords = txtRecords)
+      if (probing) return
+
+      timer?.cancel()
+      announce(0)
+    }
+
+    override fun onPacket(packet: DnsReader, sender: SocketAddress) {
+      if (packet.isResponse) {
+        // Somebody else claims the name of this instance during probing
+        if (probing && packet.claims(instanceName)) {
+          rename()
+        }
+
+      } else if (probing) {
+        // Somebody else probes for the same name at the same time
+        if (losesTieBreak(packet)) {
+          rename()
+        }
+
+      } else {
+        answer(packet)
+      }
+    }
+
+    /**
+     * Simultaneous probe tie-breaking (RFC 6762, Section 8.2), simplified to the SRV record:
+     * the probe proposing the lexicographically later data wins.
+     * Our own probes are looped back with identical data, and are ignored.
+     */
+    private fun losesTieBreak(packet: DnsReader): Boolean {
+      while (packet.nextRecord()) {
+        if (packet.section != SECTION_AUTHORITY || packet.type != TYPE_SRV
+            || !packet.nameEquals(instanceName)) continue
+
+        val port = packet.port
+        if (port != config.port) return port > config.port
+        if (packet.targetEquals(hostName)) return false
+        return packet.readTarget().key > hostName.key
+      }
+      return false
+    }
+
+    private fun probe(count: Int) {
+      if (count == PROBE_COUNT) {
+        probing = false
+        announce(0)
+        return
+      }
+
+      socket.enqueue(FLAGS_QUERY) { part ->
+        part.question(instanceName, TYPE_ANY, unicastResponse = true)
+        records().filter { it.name == instanceName }.forEach { part.authority(it) }
+      }
+      timer = socket.schedule(PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS) { probe(count + 1) }
+    }
+
+    private fun announce(count: Int) {
+      if (count == ANNOUNCEMENT_COUNT) return
+
+      socket.enqueue(FLAGS_RESPONSE) { part -> records().forEach { part.answer(it) } }
+      timer = socket.schedule(ANNOUNCEMENT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS) {
+        announce(count + 1)
+      }
+    }
+
+    private fun rename() {
+      timer?.cancel()
+      conflicts++
+      instanceName = typeName.child("${config.name} (${conflicts + 1})")
+      probe(0)
+    }
+
+    private fun answer(packet: DnsReader) {
+      answers.clear()
+      additionals.clear()
+      var ownRecords: List<DnsRecord>? = null
+
+      questions@ while (packet.nextQuestion()) {
+        val type = packet.type
+        if (packet.nameEquals(SERVICES_META_QUERY)) {
+          if (type == TYPE_PTR || type == TYPE_ANY) {
+            answers += PtrRecord(SERVICES_META_QUERY, OTHER_RECORD_TTL_SECONDS, typeName)
+          }
+          continue
+        }
+
+        // Most queries on the network are for somebody else, so only materialize records on a hit
+        val name = when {
+          packet.nameEquals(typeName) -> typeName
+          packet.nameEquals(instanceName) -> instanceName
+          packet.nameEquals(hostName) -> hostName
+          else -> continue@questions
+        }
+        val all = ownRecords ?: records().also { ownRecords = it }
+        val matches = all.filter { it.name == name && (type == TYPE_ANY || it.type == type) }
+        if (matches.isNotEmpty()) {
+          answers += matches
+
+          // Help the querier with the rest of the records for this instance
+          additionals += all
+        }
+      }
+
+      if (answers.isNotEmpty()) {
+        socket.send(FLAGS_RESPONSE) { writer ->
+          answers.forEach { writer.answer(it) }
+          additionals.filter { it !in answers }.forEach { writer.additional(it) }
+        }
+      }
+    }
+
+    private fun records(): List<DnsRecord> = serviceRecords() + addressRecord()
+
+    private fun serviceRecords(ttlOverride: Long? = null): List<DnsRecord> = listOf(
+        PtrRecord(typeName, ttlOverride ?: OTHER_RECORD_TTL_SECONDS, instanceName),
+        SrvRecord(instanceName, ttlOverride ?: HOST_RECORD_TTL_SECONDS, config.port, hostName),
+        TxtRecord(instanceName, ttlOverride ?: OTHER_RECORD_TTL_SECONDS,
+            config.txtRecords ?: emptyMap()))
+
+    private fun addressRecord(ttlOverride: Long? = null) =
+        AddressRecord(hostName, ttlOverride ?: HOST_RECORD_TTL_SECONDS, address)
+  }
+}
+
+/* Extension Functions */
+
+private fun DnsReader.claims(name: DnsName): Boolean {
+  while (nextRecord()) {
+    if (section != SECTION_AUTHORITY && nameEquals(name)) return true
+  }
+  return false
+}
+
+private fun InetAddress.toHostLabel() =
+    "RxBonjour-" + this.hostAddress.replace(Regex("[^A-Za-z0-9]"), "-")
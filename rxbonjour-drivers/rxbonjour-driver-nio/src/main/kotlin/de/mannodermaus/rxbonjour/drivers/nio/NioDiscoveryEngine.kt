@@ -0,0 +1,411 @@
+package de.mannodermaus.rxbonjour.drivers.nio
+
+import de.mannodermaus.rxbonjour.AsyncEngine
+import de.mannodermaus.rxbonjour.BonjourService
+import de.mannodermaus.rxbonjour.DiscoveryCallback
+import de.mannodermaus.rxbonjour.MultiTypeDiscoveryEngine
+import de.mannodermaus.rxbonjour.TraceStage
+import de.mannodermaus.rxbonjour.TxtRecords
+import de.mannodermaus.rxbonjour.drivers.nio.MulticastSelector.MdnsSocket
+import io.reactivex.Completable
+import java.net.Inet4Address
+import java.net.Inet6Address
+import java.net.InetAddress
+import java.net.SocketAddress
+import java.util.concurrent.TimeUnit
+
+private val LOCAL_DOMAIN_SUFFIX = ".local."
+private val INITIAL_QUERY_INTERVAL_MILLIS = 1000L
+private val MAX_QUERY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(60)
+private val MAINTENANCE_INTERVAL_MILLIS = 1000L
+// Cached records are refreshed at 80%, 85%, 90% & 95% of their lifetime (RFC 6762, Section 5.2)
+private val REFRESH_FRACTIONS = doubleArrayOf(0.80, 0.85, 0.90, 0.95)
+
+internal class NioDiscoveryEngine(
+    private val selector: MulticastSelector,
+    type: String) : MultiTypeDiscoveryEngine, AsyncEngine {
+
+  // Guarded by the engine itself; the browser keeps its own copy on the selector thread
+  private val requestedTypes = linkedSetOf(type.toTypeName())
+
+  private var socket: MdnsSocket? = null
+  private var browser: Browser? = null
+
+  override fun initialize() {
+  }
+
+  // Nothing here blocks: sockets are opened on start, and the selector thread does the rest
+  override fun initializeAsync(): Completable = Completable.complete()
+
+  override fun addType(type: String) {
+    val typeName = type.toTypeName()
+    synchronized(this) {
+      if (!requestedTypes.add(typeName)) return
+      val browser = browser ?: return
+      socket?.execute { browser.addType(typeName) }
+    }
+  }
+
+  override fun removeType(type: String) {
+    val typeName = type.toTypeName()
+    synchronized(this) {
+      if (!requestedTypes.remove(typeName)) return
+      val browser = browser ?: return
+      socket?.execute { browser.removeType(typeName) }
+    }
+  }
+
+  override fun discover(address: InetAddress, callback: DiscoveryCallback) {
+    val socket = selector.acquire(address)
+    callback.trace(TraceStage.DRIVER_CONNECTED, address)
+    synchronized(this) {
+      val browser = Browser(socket, callback, ArrayList(requestedTypes))
+      this.socket = socket
+      this.browser = browser
+
+      socket.execute { browser.start() }
+    }
+  }
+
+  override fun teardown() {
+    val socket = socket ?: return
+    socket.execute {
+      browser?.stop()
+      selector.release(socket)
+    }
+  }
+
+  override fun teardownAsync(): Completable = Completable.fromAction { teardown() }
+
+  /**
+   * Continuous mDNS querier for the engine's types (RFC 6762, Section 5.2),
+   * asking for all of them with as few packets as possible.
+   * Records close to expiring are asked for again before they do,
+   * independent of the backoff of the continuous queries.
+   * Incoming records are matched against known state in place,
+   * so that repeated announcements of unchanged services don't allocate.
+   * Only ever accessed from the selector thread.
+   */
+  private inner class Browser(
+      private val socket: MdnsSocket,
+      private val callback: DiscoveryCallback,
+      private val typeNames: MutableList<DnsName>) : PacketListener {
+
+    private val instances = ArrayList<Instance>()
+    private val hosts = ArrayList<Host>()
+    private val changed = ArrayList<Instance>()
+    private val unresolved = ArrayList<Instance>()
+    private var queryInterval = INITIAL_QUERY_INTERVAL_MILLIS
+    private var queryTimer: MulticastSelector.Timer? = null
+    private var maintenanceTimer: MulticastSelector.Timer? = null
+    private val refreshedTypes = ArrayList<DnsName>()
+
+    fun start() {
+      socket.addListener(this)
+      query()
+      maintenanceTimer = scheduleMaintenance()
+    }
+
+    fun addType(typeName: DnsName) {
+      typeNames += typeName
+
+      // Restart the query schedule, so that the new type is picked up quickly
+      queryTimer?.cancel()
+      queryInterval = INITIAL_QUERY_INTERVAL_MILLIS
+      query()
+    }
+
+    fun removeType(typeName: DnsName) {
+      typeNames -= typeName
+      instances.filter { it.type == typeName }.forEach { forget(it) }
+    }
+
+    fun stop() {
+      socket.removeListener(this)
+      queryTimer?.cancel()
+      maintenanceTimer?.cancel()
+    }
+
+    override fun onFailure(cause: Exception) {
+      stop()
+      callback.discoveryFailed(cause)
+    }
+
+    override fun onPacket(packet: DnsReader, sender: SocketAddress) {
+      if (!packet.isResponse) return
+
+      // Records may arrive in any order, so visit them in order of dependency:
+      // PTR records introduce instances, SRV records introduce their hosts
+      changed.clear()
+      readPointers(packet)
+      readInstanceRecords(packet)
+      readAddresses(packet)
+
+      // Resolve missing pieces of new instances right away
+      unresolved.clear()
+      changed.filterTo(unresolved) { !publish(it) }
+      unresolved.forEach { resolve(it) }
+    }
+
+    private fun readPointers(packet: DnsReader) {
+      val now = now()
+      packet.rewind()
+      while (packet.nextRecord()) {
+        if (!packet.isCacheRecord(TYPE_PTR)) continue
+        val typeName = typeNames.firstOrNull { packet.nameEquals(it) } ?: continue
+
+        val index = instances.indexOfFirst { packet.targetEquals(it.name) }
+        if (packet.ttl == 0L) {
+          if (index >= 0) lose(instances[index])
+          continue
+        }
+
+        val instance = if (index >= 0) {
+          instances[index]
+        } else {
+          Instance(typeName, packet.readTarget()).also {
+            instances += it
+            changed += it
+          }
+        }
+        instance.ptrLifetime.renew(now, packet.ttl)
+      }
+    }
+
+    private fun readInstanceRecords(packet: DnsReader) {
+      val now = now()
+      packet.rewind()
+      while (packet.nextRecord()) {
+        val srv = packet.isCacheRecord(TYPE_SRV)
+        if (!srv && !packet.isCacheRecord(TYPE_TXT)) continue
+
+        val index = instances.indexOfFirst { packet.nameEquals(it.name) }
+        if (index < 0) continue
+        val instance = instances[index]
+
+        if (srv) {
+          instance.srvLifetime.renew(now, packet.ttl)
+          val target = instance.target
+          if (instance.port != packet.port || target == null || !packet.targetEquals(target)) {
+            instance.port = packet.port
+            instance.target = packet.readTarget()
+            instance.markChanged()
+          }
+
+        } else {
+          instance.txtLifetime.renew(now, packet.ttl)
+          if (!packet.dataEquals(instance.rawTxt)) {
+            instance.rawTxt = packet.readData()
+            instance.txt = packet.readTxtEntries()
+            instance.markChanged()
+          }
+        }
+      }
+    }
+
+    private fun readAddresses(packet: DnsReader) {
+      val now = now()
+      packet.rewind()
+      while (packet.nextRecord()) {
+        val v4 = packet.isCacheRecord(TYPE_A)
+        if (!v4 && !packet.isCacheRecord(TYPE_AAAA)) continue
+
+        // Only keep track of hosts that are actually referenced by an instance
+        var index = hosts.indexOfFirst { packet.nameEquals(it.name) }
+        if (index < 0) {
+          val referenced = instances.any { instance ->
+            instance.target?.let { packet.nameEquals(it) } ?: false
+          }
+          if (!referenced) continue
+          hosts += Host(packet.readName())
+          index = hosts.size - 1
+        }
+
+        val host = hosts[index]
+        host.addresses.renew(now, packet.ttl)
+        val unchanged = if (v4) packet.dataEquals(host.rawV4) else packet.dataEquals(host.rawV6)
+        if (unchanged) continue
+
+        val raw = packet.readData()
+        val address = packet.readAddress()
+        if (v4) {
+          host.rawV4 = raw
+          host.v4 = address as? Inet4Address
+        } else {
+          host.rawV6 = raw
+          host.v6 = address as? Inet6Address
+        }
+        instances.forEach { if (it.target == host.name) it.markChanged() }
+      }
+    }
+
+    private fun query() {
+      typeNames.forEach { typeName ->
+        socket.enqueue(FLAGS_QUERY) { part -> part.question(typeName, TYPE_PTR) }
+        callback.trace(TraceStage.QUERY_SENT, typeName)
+      }
+      instances.forEach { if (it.published == null) resolve(it) }
+
+      queryTimer = socket.schedule(queryInterval, TimeUnit.MILLISECONDS) { query() }
+      queryInterval = Math.min(queryInterval * 2, MAX_QUERY_INTERVAL_MILLIS)
+    }
+
+    private fun scheduleMaintenance(): MulticastSelector.Timer =
+        socket.schedule(MAINTENANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS) {
+          maintain()
+          maintenanceTimer = scheduleMaintenance()
+        }
+
+    /** Drops instances with lapsed records, and asks for those about to lapse again */
+    private fun maintain() {
+      val now = now()
+      instances.filter { it.isLapsed(now) }.forEach { lose(it) }
+
+      // Instances of the same type share their PTR question
+      refreshedTypes.clear()
+      instances.forEach { instance ->
+        if (instance.ptrLifetime.refreshDue(now) && instance.type !in refreshedTypes) {
+          refreshedTypes += instance.type
+        }
+
+        val srv = instance.srvLifetime.refreshDue(now)
+        val txt = instance.txtLifetime.refreshDue(now)
+        if (srv || txt) {
+          socket.enqueue(FLAGS_QUERY) { part ->
+            if (srv) part.question(instance.name, TYPE_SRV)
+            if (txt) part.question(instance.name, TYPE_TXT)
+          }
+        }
+      }
+      refreshedTypes.forEach { typeName ->
+        socket.enqueue(FLAGS_QUERY) { part -> part.question(typeName, TYPE_PTR) }
+      }
+
+      hosts.forEach { host ->
+        if (host.addresses.refreshDue(now)) {
+          socket.enqueue(FLAGS_QUERY) { part ->
+            part.question(host.name, TYPE_A)
+            part.question(host.name, TYPE_AAAA)
+          }
+        }
+      }
+    }
+
+    /** Returns true if the instance is fully resolved */
+    private fun publish(instance: Instance): Boolean {
+      val target = instance.target ?: return false
+      val host = hosts.firstOrNull { it.name == target } ?: return false
+      val service = BonjourService(
+          type = instance.type.toString(),
+          name = instance.name.labels.first(),
+          v4Host = host.v4,
+          v6Host = host.v6,
+          port = instance.port,
+          txtRecords = instance.txt ?: emptyMap())
+
+      if (service != instance.published) {
+        instance.published = service
+        val ttl = Math.min(instance.ptrLifetime.ttl, instance.srvLifetime.ttl)
+        callback.serviceResolved(service, ttl, TimeUnit.SECONDS)
+      }
+      return true
+    }
+
+    private fun lose(instance: Instance) {
+      forget(instance)
+      instance.published?.let { callback.serviceLost(it) }
+    }
+
+    private fun forget(instance: Instance) {
+      instances.remove(instance)
+      changed.remove(instance)
+
+      // Forget about hosts that aren't referenced anymore
+      hosts.removeAll { host -> instances.none { it.target == host.name } }
+    }
+
+    /** Whether any of the records the instance can't do without wasn't refreshed in time */
+    private fun Instance.isLapsed(now: Long): Boolean {
+      if (ptrLifetime.isLapsed(now) || srvLifetime.isLapsed(now)) return true
+      val target = target ?: return false
+      return hosts.any { it.name == target && it.addresses.isLapsed(now) }
+    }
+
+    private fun Instance.markChanged() {
+      if (this !in changed) changed += this
+    }
+
+    /**
+     * Asks for the missing pieces of an instance. The questions are queued as a part of their own,
+     * so that those of many instances are spread across as many packets as they need.
+     */
+    private fun resolve(instance: Instance) {
+      socket.enqueue(FLAGS_QUERY) { part ->
+        part.question(instance.name, TYPE_SRV)
+        part.question(instance.name, TYPE_TXT)
+        instance.target?.let {
+          part.question(it, TYPE_A)
+          part.question(it, TYPE_AAAA)
+        }
+      }
+    }
+
+    private fun now() = TimeUnit.NANOSECONDS.toMillis(System.nanoTime())
+  }
+
+  private class Instance(val type: DnsName, val name: DnsName) {
+    val ptrLifetime = Lifetime()
+    val srvLifetime = Lifetime()
+    val txtLifetime = Lifetime()
+    var port = 0
+    var target: DnsName? = null
+    var rawTxt: ByteArray? = null
+    var txt: TxtRecords? = null
+    var published: BonjourService? = null
+  }
+
+  private class Host(val name: DnsName) {
+    val addresses = Lifetime()
+    var rawV4: ByteArray? = null
+    var rawV6: ByteArray? = null
+    var v4: Inet4Address? = null
+    var v6: Inet6Address? = null
+  }
+
+  /** Remaining life of a cached record, since it was last received. Unbounded until then */
+  private class Lifetime {
+    var ttl = 0L
+      private set
+    private var received = 0L
+    private var expiry = Long.MAX_VALUE
+    private var refreshes = REFRESH_FRACTIONS.size
+
+    fun renew(now: Long, ttl: Long) {
+      this.ttl = ttl
+      received = now
+      expiry = now + TimeUnit.SECONDS.toMillis(ttl)
+      refreshes = 0
+    }
+
+    fun isLapsed(now: Long) = now >= expiry
+
+    /** Returns true if the record should be asked for again, counting the refresh as sent */
+    fun refreshDue(now: Long): Boolean {
+      if (refreshes >= REFRESH_FRACTIONS.size || expiry == received) return false
+      if (now < received + ((expiry - received) * REFRESH_FRACTIONS[refreshes]).toLong()) {
+        return false
+      }
+      refreshes++
+      return true
+    }
+  }
+}
+
+/* Extension Functions */
+
+private fun String.toTypeName() =
+    DnsName.parse(if (this.endsWith(LOCAL_DOMAIN_SUFFIX)) this else this + LOCAL_DOMAIN_SUFFIX)
+
+/** Whether the reader is positioned on a record of the given type usable for caching */
+private fun DnsReader.isCacheRecord(type: Int) =
+    this.type == type && this.section != SECTION_AUTHORITY
@@ -0,0 +1,26 @@
+package de.mannodermaus.rxbonjour.drivers.nio
+
+import de.mannodermaus.rxbonjour.Driver
+import de.mannodermaus.rxbonjour.MultiServiceBroadcastDriver
+import de.mannodermaus.rxbonjour.MultiServiceBroadcastEngine
+import de.mannodermaus.rxbonjour.MultiTypeDiscoveryEngine
+import de.mannodermaus.rxbonjour.MultiTypeDriver
+
+/**
+ * RxBonjour Driver implementation speaking mDNS directly through non-blocking datagram channels.
+ * All engines created by the same Driver are served by a single selector thread,
+ * and share one socket per network interface & address family.
+ */
+class NioDriver private constructor() : MultiTypeDriver, MultiServiceBroadcastDriver {
+  private val selector = MulticastSelector()
+
+  override val name: String = "nio"
+  override fun createDiscovery(type: String): MultiTypeDiscoveryEngine =
+      NioDiscoveryEngine(selector, type)
+  override fun createBroadcast(): MultiServiceBroadcastEngine = NioBroadcastEngine(selector)
+
+  companion object {
+    @JvmStatic
+    fun create(): Driver = NioDriver()
+  }
+}
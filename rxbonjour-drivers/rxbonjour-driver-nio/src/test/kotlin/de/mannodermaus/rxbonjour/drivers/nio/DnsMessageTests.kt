@@ -0,0 +1,210 @@
+package de.mannodermaus.rxbonjour.drivers.nio
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.DisplayName
+import org.junit.jupiter.api.Test
+import java.net.InetAddress
+import java.nio.ByteBuffer
+
+private val TYPE = DnsName.parse("_http._tcp.local.")
+private val INSTANCE = TYPE.child("My Service. With Dots")
+private val HOST = DnsName.parse("RxBonjour-Test.local.")
+
+@DisplayName("DNS Message Codec")
+class DnsMessageTests {
+
+  private val reader = DnsReader()
+
+  @Test
+  @DisplayName("Questions survive a round trip")
+  fun questionRoundTrip() {
+    val buffer = DnsWriter().begin(FLAGS_QUERY)
+        .question(TYPE, TYPE_PTR)
+        .question(INSTANCE, TYPE_ANY, unicastResponse = true)
+        .finish()
+
+    assertTrue(reader.reset(buffer))
+    assertFalse(reader.isResponse)
+
+    assertTrue(reader.nextQuestion())
+    assertTrue(reader.nameEquals(TYPE))
+    assertEquals(TYPE_PTR, reader.type)
+    assertFalse(reader.unique)
+
+    assertTrue(reader.nextQuestion())
+    assertTrue(reader.nameEquals(INSTANCE))
+    assertEquals("My Service. With Dots", reader.readName().labels.first())
+    assertTrue(reader.unique)
+
+    assertFalse(reader.nextQuestion())
+    assertFalse(reader.nextRecord())
+  }
+
+  @Test
+  @DisplayName("Records survive a round trip")
+  fun recordRoundTrip() {
+    val address = InetAddress.getByName("192.168.0.42")
+    val buffer = DnsWriter().begin(FLAGS_RESPONSE)
+        .answer(PtrRecord(TYPE, 4500, INSTANCE))
+        .answer(SrvRecord(INSTANCE, 120, 8080, HOST))
+        .answer(TxtRecord(INSTANCE, 4500, mapOf("path" to "/index.html", "flag" to "")))
+        .additional(AddressRecord(HOST, 120, address))
+        .finish()
+
+    assertTrue(reader.reset(buffer))
+    assertTrue(reader.isResponse)
+
+    assertTrue(reader.nextRecord())
+    assertEquals(TYPE_PTR, reader.type)
+    assertTrue(reader.nameEquals(TYPE))
+    assertTrue(reader.targetEquals(INSTANCE))
+    assertEquals(INSTANCE, reader.readTarget())
+    assertEquals(4500L, reader.ttl)
+
+    assertTrue(reader.nextRecord())
+    assertEquals(TYPE_SRV, reader.type)
+    assertEquals(8080, reader.port)
+    assertTrue(reader.targetEquals(HOST))
+    assertTrue(reader.unique)
+
+    assertTrue(reader.nextRecord())
+    assertEquals(TYPE_TXT, reader.type)
+    assertEquals(mapOf("path" to "/index.html", "flag" to ""), reader.readTxtEntries())
+
+    assertTrue(reader.nextRecord())
+    assertEquals(TYPE_A, reader.type)
+    assertEquals(SECTION_ADDITIONAL, reader.section)
+    assertTrue(reader.nameEquals(HOST))
+    assertTrue(reader.dataEquals(address.address))
+    assertEquals(address, reader.readAddress())
+
+    assertFalse(reader.nextRecord())
+  }
+
+  @Test
+  @DisplayName("Rewinding allows for multiple passes")
+  fun rewindAllowsMultiplePasses() {
+    val buffer = DnsWriter().begin(FLAGS_RESPONSE)
+        .answer(PtrRecord(TYPE, 4500, INSTANCE))
+        .answer(SrvRecord(INSTANCE, 120, 8080, HOST))
+        .finish()
+    assertTrue(reader.reset(buffer))
+
+    for (pass in 0 until 2) {
+      assertTrue(reader.nextRecord())
+      assertEquals(TYPE_PTR, reader.type)
+      assertTrue(reader.nextRecord())
+      assertEquals(TYPE_SRV, reader.type)
+      assertFalse(reader.nextRecord())
+      reader.rewind()
+    }
+  }
+
+  @Test
+  @DisplayName("Repeated names are compressed")
+  fun namesAreCompressed() {
+    val single = DnsWriter().begin(FLAGS_QUERY)
+        .question(INSTANCE, TYPE_SRV)
+        .finish()
+        .remaining()
+    val double = DnsWriter().begin(FLAGS_QUERY)
+        .question(INSTANCE, TYPE_SRV)
+        .question(INSTANCE, TYPE_TXT)
+        .finish()
+        .remaining()
+
+    // Second question: 2-byte pointer, type & class
+    assertEquals(single + 6, double)
+  }
+
+  @Test
+  @DisplayName("Message parts are packed into as few packets as fit")
+  fun messagePartsArePacked() {
+    val parts = (1..100).map {
+      val instance = TYPE.child("Service $it")
+      DnsMessagePart(FLAGS_QUERY)
+          .question(instance, TYPE_ANY, unicastResponse = true)
+          .authority(SrvRecord(instance, 120, 8080, HOST))
+    }
+    val messages = parts.pack(MAX_MULTICAST_PAYLOAD)
+
+    assertTrue(messages.size in 2..parts.size / 2)
+    assertEquals(parts, messages.flatten())
+
+    // Every packet fits & contains all questions before any of the records
+    messages.forEach { message ->
+      val buffer = DnsWriter().write(message).finish()
+      assertTrue(buffer.remaining() <= MAX_MULTICAST_PAYLOAD)
+
+      assertTrue(reader.reset(buffer))
+      var questions = 0
+      while (reader.nextQuestion()) questions++
+      var records = 0
+      while (reader.nextRecord()) {
+        assertEquals(SECTION_AUTHORITY, reader.section)
+        records++
+      }
+      assertEquals(message.size, questions)
+      assertEquals(message.size, records)
+    }
+  }
+
+  @Test
+  @DisplayName("Name matching ignores case")
+  fun nameMatchingIgnoresCase() {
+    val upperCase = DnsName.parse("_HTTP._TCP.Local.")
+    assertEquals(upperCase, TYPE)
+
+    val buffer = DnsWriter().begin(FLAGS_QUERY)
+        .question(TYPE, TYPE_PTR)
+        .finish()
+    assertTrue(reader.reset(buffer))
+    assertTrue(reader.nextQuestion())
+    assertTrue(reader.nameEquals(upperCase))
+    assertFalse(reader.nameEquals(INSTANCE))
+  }
+
+  @Test
+  @DisplayName("NSEC type bitmaps are readable")
+  fun nsecTypeBitmaps() {
+    val bytes = byteArrayOf(
+        0, 0, 0x84.toByte(), 0, 0, 0, 0, 1, 0, 0, 0, 0,
+        // Owner name "host", type NSEC, class IN, TTL 120, length 10
+        4, 104, 111, 115, 116, 0,
+        0, 47, 0, 1, 0, 0, 0, 120, 0, 10,
+        // Next domain name: pointer to owner name; window 0 with A & AAAA set
+        0xc0.toByte(), 12, 0, 6, 0x40, 0, 0, 0x08, 0, 0)
+
+    assertTrue(reader.reset(ByteBuffer.wrap(bytes)))
+    assertTrue(reader.nextRecord())
+    assertEquals(TYPE_NSEC, reader.type)
+    assertTrue(reader.nsecContains(TYPE_A))
+    assertTrue(reader.nsecContains(TYPE_AAAA))
+    assertFalse(reader.nsecContains(TYPE_TXT))
+    assertFalse(reader.nsecContains(TYPE_SRV))
+  }
+
+  @Test
+  @DisplayName("Truncated messages are rejected")
+  fun truncatedMessagesAreRejected() {
+    val buffer = DnsWriter().begin(FLAGS_RESPONSE)
+        .answer(SrvRecord(INSTANCE, 120, 8080, HOST))
+        .finish()
+    buffer.limit(buffer.limit() - 3)
+
+    assertFalse(reader.reset(buffer))
+  }
+
+  @Test
+  @DisplayName("Compression loops are rejected")
+  fun compressionLoopsAreRejected() {
+    val bytes = byteArrayOf(
+        0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0,
+        // Name pointing to itself
+        0xc0.toByte(), 12, 0, 12, 0, 1)
+
+    assertFalse(reader.reset(ByteBuffer.wrap(bytes)))
+  }
+}
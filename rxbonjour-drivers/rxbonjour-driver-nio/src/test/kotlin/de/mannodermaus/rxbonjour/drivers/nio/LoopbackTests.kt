@@ -0,0 +1,90 @@
+package de.mannodermaus.rxbonjour.drivers.nio
+
+import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
+import de.mannodermaus.rxbonjour.BonjourService
+import de.mannodermaus.rxbonjour.BroadcastCallback
+import de.mannodermaus.rxbonjour.DiscoveryCallback
+import de.mannodermaus.rxbonjour.UpdatableBroadcastEngine
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.DisplayName
+import org.junit.jupiter.api.Test
+import java.net.InetAddress
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+private val TYPE = "_rxbonjour-test._tcp"
+private val LOOPBACK = InetAddress.getByName("127.0.0.1")
+private val TIMEOUT_SECONDS = 10L
+
+@DisplayName("NIO Engines over Loopback")
+class LoopbackTests {
+
+  // Separate drivers, so that both engines go through sockets of their own
+  private val discovery = NioDriver.create().createDiscovery(TYPE)
+  private val broadcast = NioDriver.create().createBroadcast() as UpdatableBroadcastEngine
+
+  @AfterEach
+  fun tearDown() {
+    discovery.teardown()
+    broadcast.teardown()
+  }
+
+  @Test
+  @DisplayName("Broadcasts are found, updated & lost again")
+  fun broadcastLifecycle() {
+    val discovered = RecordingDiscoveryCallback()
+    discovery.discover(LOOPBACK, discovered)
+
+    // 1. Probing & announcing
+    broadcast.start(LOOPBACK,
+        BonjourBroadcastConfig(TYPE, "Printer", port = 631, txtRecords = mapOf("load" to "0")),
+        object : BroadcastCallback {
+          override fun broadcastFailed(cause: Exception?) {
+          }
+        })
+
+    val added = discovered.nextResolved()
+    assertEquals("Printer", added.name)
+    assertEquals(631, added.port)
+    assertEquals(LOOPBACK, added.v4Host)
+    assertEquals(mapOf("load" to "0"), added.txtRecords)
+
+    // 2. Updating the TXT records
+    broadcast.updateTxtRecords(mapOf("load" to "42"))
+
+    val updated = discovered.nextResolved()
+    assertEquals("Printer", updated.name)
+    assertEquals(mapOf("load" to "42"), updated.txtRecords)
+
+    // 3. Saying goodbye
+    broadcast.teardown()
+
+    val lost = discovered.lost.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+    assertNotNull(lost, "Broadcast wasn't lost")
+    assertEquals("Printer", lost!!.name)
+  }
+
+  private class RecordingDiscoveryCallback : DiscoveryCallback {
+    val resolved = LinkedBlockingQueue<BonjourService>()
+    val lost = LinkedBlockingQueue<BonjourService>()
+
+    fun nextResolved(): BonjourService {
+      val service = resolved.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+      assertNotNull(service, "Broadcast wasn't resolved")
+      return service!!
+    }
+
+    override fun discoveryFailed(cause: Exception?) {
+    }
+
+    override fun serviceResolved(service: BonjourService) {
+      resolved += service
+    }
+
+    override fun serviceLost(service: BonjourService) {
+      lost += service
+    }
+  }
+}
@@ -2,3 +2,4 @@ package de.mannodermaus.rxbonjour.drivers.nsdmanager
 
 class NsdDiscoveryException(code: Int) : RuntimeException("NsdManager Discovery error (code=$code)")
 class NsdBroadcastException(code: Int) : RuntimeException("NsdManager Broadcast error (code=$code)")
+class NsdResolveException(code: Int) : RuntimeException("NsdManager Resolve error (code=$code)")
@@ -7,12 +7,40 @@ import android.os.Build
 import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
 import de.mannodermaus.rxbonjour.BonjourService
 import de.mannodermaus.rxbonjour.TxtRecords
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
 import java.net.Inet4Address
 import java.net.Inet6Address
 import java.nio.charset.Charset
 
+// Available on API 34+, which is newer than the SDK this driver compiles against
+private val STOP_SERVICE_RESOLUTION_METHOD = "stopServiceResolution"
+
+private val stopServiceResolution: Method? by lazy {
+  try {
+    NsdManager::class.java.getMethod(STOP_SERVICE_RESOLUTION_METHOD,
+        NsdManager.ResolveListener::class.java)
+  } catch (ignored: NoSuchMethodException) {
+    null
+  }
+}
+
 internal fun Context.getNsdManager() = this.getSystemService(Context.NSD_SERVICE) as NsdManager
 
+/**
+ * Cancels the resolve running for the provided listener, where the platform supports it.
+ * @return False if the resolve couldn't be cancelled, e.g. because it just finished
+ */
+internal fun NsdManager.stopServiceResolutionCompat(listener: NsdManager.ResolveListener): Boolean {
+  val method = stopServiceResolution ?: return false
+  return try {
+    method.invoke(this, listener)
+    true
+  } catch (ignored: InvocationTargetException) {
+    false
+  }
+}
+
 internal fun NsdServiceInfo.getTxtRecords(): TxtRecords {
   return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
     // NSD Attributes only available on API 21+
@@ -3,40 +3,106 @@ package de.mannodermaus.rxbonjour.drivers.nsdmanager
 import android.content.Context
 import android.net.nsd.NsdManager
 import android.net.nsd.NsdServiceInfo
+import de.mannodermaus.rxbonjour.AsyncEngine
 import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
+import de.mannodermaus.rxbonjour.BonjourSchedulers
 import de.mannodermaus.rxbonjour.BroadcastCallback
-import de.mannodermaus.rxbonjour.BroadcastEngine
+import de.mannodermaus.rxbonjour.TxtRecords
+import de.mannodermaus.rxbonjour.UpdatableBroadcastEngine
+import io.reactivex.Completable
 import java.net.InetAddress
 
-internal class NsdManagerBroadcastEngine(private val context: Context) : BroadcastEngine {
+internal class NsdManagerBroadcastEngine(private val context: Context)
+  : UpdatableBroadcastEngine, AsyncEngine {
 
   private var nsdManager: NsdManager? = null
   private var listener: NsdRegistrationListener? = null
+  private var callback: BroadcastCallback? = null
+  private var config: BonjourBroadcastConfig? = null
+
+  // Registrations can't be changed, so updates replace them once the previous one is settled
+  private var registered = false
+  private var replacing = false
+  private var stopped = false
 
   override fun initialize() {
   }
 
+  override fun initializeAsync(): Completable =
+      Completable.fromAction { initialize() }.subscribeOn(BonjourSchedulers.io())
+
   override fun start(address: InetAddress, config: BonjourBroadcastConfig,
       callback: BroadcastCallback) {
-    val nsdManager = context.getNsdManager()
-    val listener = NsdRegistrationListener(callback)
+    synchronized(this) {
+      this.nsdManager = context.getNsdManager()
+      this.callback = callback
+      this.config = config.copy(address = config.address ?: address)
+      register()
+    }
+  }
 
-    this.nsdManager = nsdManager
-    this.listener = listener
+  override fun updateTxtRecords(txtRecords: TxtRecords) {
+    synchronized(this) {
+      val config = config ?: return
+      this.config = config.copy(txtRecords = txtRecords)
+      if (replacing || stopped) return
 
-    val nsdService = config.copy(address = config.address ?: address).toNsdModel()
-    nsdManager.registerService(nsdService, NsdManager.PROTOCOL_DNS_SD, listener)
+      // Registering the new records right away would conflict with the old registration's name,
+      // so that needs to be gone first
+      replacing = true
+      if (registered) unregister()
+    }
   }
 
   override fun teardown() {
+    synchronized(this) {
+      stopped = true
+      unregister()
+    }
+  }
+
+  override fun teardownAsync(): Completable =
+      Completable.fromAction { teardown() }.subscribeOn(BonjourSchedulers.io())
+
+  private fun register() {
+    val nsdManager = nsdManager ?: return
+    val config = config ?: return
+    val callback = callback ?: return
+
+    val listener = NsdRegistrationListener(callback, System.nanoTime())
+    this.listener = listener
+    this.registered = false
+    nsdManager.registerService(config.toNsdModel(), NsdManager.PROTOCOL_DNS_SD, listener)
+  }
+
+  private fun unregister() {
     try {
       nsdManager?.unregisterService(listener)
     } catch (ignored: IllegalArgumentException) {
     }
   }
 
-  private class NsdRegistrationListener(
-      private val callback: BroadcastCallback) : NsdManager.RegistrationListener {
+  private fun onRegistered(listener: NsdRegistrationListener) {
+    synchronized(this) {
+      if (listener !== this.listener) return
+      registered = true
+
+      // Records were updated while registering
+      if (replacing && !stopped) unregister()
+    }
+  }
+
+  private fun onUnregistered(listener: NsdRegistrationListener) {
+    synchronized(this) {
+      if (listener !== this.listener || !replacing || stopped) return
+      replacing = false
+      register()
+    }
+  }
+
+  private inner class NsdRegistrationListener(
+      private val callback: BroadcastCallback,
+      private val started: Long) : NsdManager.RegistrationListener {
 
     override fun onRegistrationFailed(p0: NsdServiceInfo?, code: Int) {
       callback.broadcastFailed(NsdBroadcastException(code))
@@ -47,9 +113,14 @@ internal class NsdManagerBroadcastEngine(private val context: Context) : Broadca
     }
 
     override fun onServiceUnregistered(service: NsdServiceInfo) {
+      onUnregistered(this)
     }
 
-    override fun onServiceRegistered(p0: NsdServiceInfo) {
+    override fun onServiceRegistered(service: NsdServiceInfo) {
+      // The name may differ from the requested one, if that was taken
+      callback.broadcastRegistered(service.serviceType ?: "", service.serviceName ?: "",
+          System.nanoTime() - started)
+      onRegistered(this)
     }
 
   }
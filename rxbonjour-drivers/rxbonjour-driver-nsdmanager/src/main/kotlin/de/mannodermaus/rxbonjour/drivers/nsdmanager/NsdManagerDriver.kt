@@ -4,17 +4,21 @@ import android.content.Context
 import de.mannodermaus.rxbonjour.BroadcastEngine
 import de.mannodermaus.rxbonjour.DiscoveryEngine
 import de.mannodermaus.rxbonjour.Driver
+import de.mannodermaus.rxbonjour.ResolveEngine
+import de.mannodermaus.rxbonjour.ResolvingDriver
 
 /**
  * RxBonjour Driver implementation using Android's NsdManager API.
  */
-class NsdManagerDriver private constructor(val context: Context) : Driver {
+class NsdManagerDriver private constructor(val context: Context) : ResolvingDriver {
   override val name: String = "nsdmanager"
   override fun createDiscovery(type: String): DiscoveryEngine = NsdManagerDiscoveryEngine(context,
       type)
 
   override fun createBroadcast(): BroadcastEngine = NsdManagerBroadcastEngine(context)
 
+  override fun createResolve(): ResolveEngine = NsdManagerResolveEngine(context)
+
   companion object {
     @JvmStatic
     fun create(context: Context): Driver = NsdManagerDriver(context)
@@ -0,0 +1,40 @@
+package de.mannodermaus.rxbonjour.drivers.nsdmanager
+
+import android.content.Context
+import android.net.nsd.NsdServiceInfo
+import de.mannodermaus.rxbonjour.AsyncEngine
+import de.mannodermaus.rxbonjour.BonjourSchedulers
+import de.mannodermaus.rxbonjour.ResolveCallback
+import de.mannodermaus.rxbonjour.ResolveEngine
+import io.reactivex.Completable
+import java.net.InetAddress
+
+internal class NsdManagerResolveEngine(private val context: Context) : ResolveEngine, AsyncEngine {
+
+  private var resolveScheduler: NsdResolveScheduler? = null
+
+  override fun initialize() {
+  }
+
+  override fun initializeAsync(): Completable =
+      Completable.fromAction { initialize() }.subscribeOn(BonjourSchedulers.io())
+
+  override fun resolve(address: InetAddress, type: String, name: String,
+      callback: ResolveCallback) {
+    // Go through the scheduler as well, for the sake of its retries & timeouts
+    val resolveScheduler = NsdResolveScheduler(context.getNsdManager(), callback, null)
+    this.resolveScheduler = resolveScheduler
+
+    resolveScheduler.add(NsdServiceInfo().apply {
+      serviceType = type
+      serviceName = name
+    })
+  }
+
+  override fun teardown() {
+    resolveScheduler?.quit()
+  }
+
+  override fun teardownAsync(): Completable =
+      Completable.fromAction { teardown() }.subscribeOn(BonjourSchedulers.io())
+}
@@ -0,0 +1,200 @@
+package de.mannodermaus.rxbonjour.drivers.nsdmanager
+
+import android.net.nsd.NsdManager
+import android.net.nsd.NsdServiceInfo
+import android.os.Build
+import de.mannodermaus.rxbonjour.BonjourSchedulers
+import de.mannodermaus.rxbonjour.DiscoveryCallback
+import de.mannodermaus.rxbonjour.ResolveCallback
+import de.mannodermaus.rxbonjour.ResolvePriority
+import de.mannodermaus.rxbonjour.TraceStage
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import java.util.PriorityQueue
+import java.util.concurrent.TimeUnit
+
+// Android 14 moved NsdManager onto a new mDNS stack, which can resolve several services at once
+private val CONCURRENT_RESOLVE_SDK_VERSION = 34
+private val MAX_CONCURRENT_RESOLVES = 4
+
+private val MAX_RESOLVE_ATTEMPTS = 4
+private val RETRY_BASE_DELAY_MILLIS = 250L
+private val RESOLVE_TIMEOUT_MILLIS = 10000L
+private val INITIAL_QUEUE_CAPACITY = 16
+
+/**
+ * Scheduler for resolving the services found by a discovery. Services are queued by name,
+ * so that repeated sightings of a service don't resolve it more than once,
+ * and resolved in order of their priority.
+ * Before Android 14, NsdManager fails when asked to resolve more than one service at a time,
+ * so resolves are run one after another there. Failed resolves are retried with a growing delay,
+ * and resolves that don't finish in time give up their slot to the next one.
+ * On Android 14+, those are also cancelled, and anything their listeners report later is dropped.
+ * Services which still can't be resolved after the last attempt are reported as failed.
+ * If given, the metrics callback also learns how long each service took to resolve,
+ * from its first attempt on, and which services failed. Every attempt is traced through it, too.
+ */
+internal class NsdResolveScheduler(
+    private val nsdManager: NsdManager,
+    private val callback: ResolveCallback,
+    private val priority: ResolvePriority?,
+    private val scheduler: Scheduler = BonjourSchedulers.eventLoop(),
+    private val metrics: DiscoveryCallback? = null) {
+
+  private val concurrency =
+      if (Build.VERSION.SDK_INT >= CONCURRENT_RESOLVE_SDK_VERSION) MAX_CONCURRENT_RESOLVES else 1
+
+  // All services that are queued, being resolved or waiting for a retry
+  private val resolves = HashMap<String, Resolve>()
+  // Highest priority first, then in order of arrival
+  private val queue = PriorityQueue<Resolve>(INITIAL_QUEUE_CAPACITY,
+      compareByDescending<Resolve> { it.priority }.thenBy { it.sequence })
+  private var sequence = 0L
+  private var running = 0
+  private var stopped = false
+
+  /** Queues the provided service for resolution, unless it's queued already */
+  fun add(service: NsdServiceInfo) {
+    val priority = priority?.priorityOf(service.serviceType.removeLocalDomain(),
+        service.serviceName) ?: 0
+    synchronized(this) {
+      if (stopped) return
+
+      val existing = resolves[service.serviceName]
+      if (existing != null) {
+        existing.service = service
+        return
+      }
+
+      val resolve = Resolve(service, priority, sequence++)
+      resolves.put(service.serviceName, resolve)
+      queue.offer(resolve)
+      startNext()
+    }
+  }
+
+  /** Drops the provided service from the queue. Running resolves for it are ignored */
+  fun remove(service: NsdServiceInfo) {
+    synchronized(this) {
+      val resolve = resolves.remove(service.serviceName) ?: return
+      queue.remove(resolve)
+      if (resolve.attempt == null) resolve.timer?.dispose()
+    }
+  }
+
+  /** Terminates the work of this scheduler instance */
+  fun quit() {
+    synchronized(this) {
+      stopped = true
+      resolves.values.forEach { it.timer?.dispose() }
+      resolves.clear()
+      queue.clear()
+    }
+  }
+
+  private fun startNext() {
+    while (running < concurrency) {
+      val resolve = queue.poll() ?: return
+      val attempt = Attempt(resolve)
+      resolve.attempt = attempt
+      if (resolve.attempts++ == 0) resolve.started = System.nanoTime()
+      metrics?.trace(TraceStage.RESOLVE_STARTED, resolve.service.serviceName)
+      resolve.timer = scheduler.scheduleDirect({ finish(attempt, null, null) },
+          RESOLVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+      running++
+
+      try {
+        nsdManager.resolveService(resolve.service, attempt)
+      } catch (ex: IllegalArgumentException) {
+        // Thrown for services without a name or type
+        resolve.timer?.dispose()
+        resolve.attempt = null
+        resolves.remove(resolve.service.serviceName)
+        running--
+        val service = resolve.service
+        scheduler.scheduleDirect {
+          metrics?.resolveFailed(service.serviceType, service.serviceName, ex)
+          callback.resolveFailed(ex)
+        }
+      }
+    }
+  }
+
+  private fun finish(attempt: Attempt, info: NsdServiceInfo?, errorCode: Int?) {
+    var failed = false
+    val resolve = attempt.resolve
+    val resolved = synchronized(this) {
+      // Stale callback of an attempt that timed out earlier
+      if (stopped || resolve.attempt !== attempt) return
+      resolve.attempt = null
+      resolve.timer?.dispose()
+      running--
+
+      if (info == null && errorCode == null) {
+        // Timed out, so free NsdManager's slot as well. Since the attempt isn't current anymore,
+        // it doesn't matter if the resolve finishes before it's stopped
+        nsdManager.stopServiceResolutionCompat(attempt)
+      }
+
+      val name = resolve.service.serviceName
+      val current = resolves[name] === resolve
+      if (current && info == null && resolve.attempts < MAX_RESOLVE_ATTEMPTS) {
+        val delay = RETRY_BASE_DELAY_MILLIS shl (resolve.attempts - 1)
+        resolve.timer = scheduler.scheduleDirect({ retry(resolve) }, delay, TimeUnit.MILLISECONDS)
+      } else if (current) {
+        resolves.remove(name)
+        failed = info == null
+      }
+
+      startNext()
+      if (current) info else null
+    }
+
+    val service = resolve.service
+    resolved?.let {
+      callback.serviceResolved(it.toLibraryModel())
+      metrics?.resolveCompleted(service.serviceType, service.serviceName,
+          System.nanoTime() - resolve.started)
+    }
+    if (failed) {
+      // Timeouts don't come with an error code
+      val cause = errorCode?.let { NsdResolveException(it) }
+      metrics?.resolveFailed(service.serviceType, service.serviceName, cause)
+      callback.resolveFailed(cause)
+    }
+  }
+
+  private fun retry(resolve: Resolve) {
+    synchronized(this) {
+      if (stopped || resolves[resolve.service.serviceName] !== resolve) return
+      queue.offer(resolve)
+      startNext()
+    }
+  }
+
+  private class Resolve(
+      var service: NsdServiceInfo,
+      val priority: Int,
+      val sequence: Long) {
+    var attempts = 0
+    var started = 0L
+    var attempt: Attempt? = null
+    // Timeout of the running attempt, or delay until the next one
+    var timer: Disposable? = null
+  }
+
+  /** NsdManager doesn't allow listeners to be reused, so each attempt gets its own */
+  private inner class Attempt(val resolve: Resolve) : NsdManager.ResolveListener {
+    override fun onServiceResolved(service: NsdServiceInfo) {
+      finish(this, service, null)
+    }
+
+    override fun onResolveFailed(service: NsdServiceInfo?, code: Int) {
+      finish(this, null, code)
+    }
+  }
+}
+
+/* Extension Functions */
+
+private fun String.removeLocalDomain() = this.removeSuffix(".").removeSuffix(".local")
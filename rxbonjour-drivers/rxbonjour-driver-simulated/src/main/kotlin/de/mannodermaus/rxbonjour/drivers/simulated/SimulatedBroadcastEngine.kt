@@ -0,0 +1,37 @@
+package de.mannodermaus.rxbonjour.drivers.simulated
+
+import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
+import de.mannodermaus.rxbonjour.BroadcastCallback
+import de.mannodermaus.rxbonjour.TxtRecords
+import de.mannodermaus.rxbonjour.UpdatableBroadcastEngine
+import java.net.InetAddress
+
+internal class SimulatedBroadcastEngine(
+    private val network: SimulatedNetwork) : UpdatableBroadcastEngine {
+
+  // Only accessed from the network's worker
+  private var publication: Publication? = null
+
+  override fun initialize() {
+  }
+
+  override fun start(address: InetAddress, config: BonjourBroadcastConfig,
+      callback: BroadcastCallback) {
+    network.execute {
+      publication = network.register(address, config, callback)
+    }
+  }
+
+  override fun updateTxtRecords(txtRecords: TxtRecords) {
+    network.execute {
+      publication?.let { network.update(it, txtRecords) }
+    }
+  }
+
+  override fun teardown() {
+    network.execute {
+      publication?.let { network.unregister(it) }
+      publication = null
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package de.mannodermaus.rxbonjour.drivers.simulated
+
+import de.mannodermaus.rxbonjour.DiscoveryCallback
+import de.mannodermaus.rxbonjour.DiscoveryEngine
+import de.mannodermaus.rxbonjour.TraceStage
+import java.net.InetAddress
+
+internal class SimulatedDiscoveryEngine(
+    private val network: SimulatedNetwork,
+    private val type: String) : DiscoveryEngine {
+
+  // Only accessed from the network's worker
+  private var browser: SimulatedNetwork.Browser? = null
+
+  override fun initialize() {
+  }
+
+  override fun discover(address: InetAddress, callback: DiscoveryCallback) {
+    network.execute {
+      callback.trace(TraceStage.DRIVER_CONNECTED, address)
+      browser = network.browse(type, callback)
+    }
+  }
+
+  override fun teardown() {
+    network.execute {
+      browser?.stop()
+      browser = null
+    }
+  }
+}
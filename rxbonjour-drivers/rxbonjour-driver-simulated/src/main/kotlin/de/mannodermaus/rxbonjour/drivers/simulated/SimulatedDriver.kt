@@ -0,0 +1,23 @@
+package de.mannodermaus.rxbonjour.drivers.simulated
+
+import de.mannodermaus.rxbonjour.BroadcastEngine
+import de.mannodermaus.rxbonjour.DiscoveryEngine
+import de.mannodermaus.rxbonjour.Driver
+
+/**
+ * RxBonjour Driver implementation operating on an in-memory SimulatedNetwork instead of sockets,
+ * for load tests & deterministic tests of code consuming RxBonjour.
+ * Drivers created for the same network see each other's broadcasts.
+ */
+class SimulatedDriver private constructor(private val network: SimulatedNetwork) : Driver {
+
+  override val name: String = "simulated"
+  override fun createDiscovery(type: String): DiscoveryEngine =
+      SimulatedDiscoveryEngine(network, type)
+  override fun createBroadcast(): BroadcastEngine = SimulatedBroadcastEngine(network)
+
+  companion object {
+    @JvmStatic
+    fun create(network: SimulatedNetwork): Driver = SimulatedDriver(network)
+  }
+}
@@ -0,0 +1,463 @@
+package de.mannodermaus.rxbonjour.drivers.simulated
+
+import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
+import de.mannodermaus.rxbonjour.BonjourService
+import de.mannodermaus.rxbonjour.BroadcastCallback
+import de.mannodermaus.rxbonjour.DiscoveryCallback
+import de.mannodermaus.rxbonjour.TraceStage
+import de.mannodermaus.rxbonjour.TxtRecords
+import de.mannodermaus.rxbonjour.isBonjourType
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import io.reactivex.schedulers.Schedulers
+import java.net.Inet4Address
+import java.net.Inet6Address
+import java.net.InetAddress
+import java.util.Random
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+private val DEFAULT_SEED = 0L
+private val DEFAULT_MIN_LATENCY_MILLIS = 1L
+private val DEFAULT_MAX_LATENCY_MILLIS = 10L
+// TTL of host records recommended by RFC 6762
+private val DEFAULT_TTL_SECONDS = 120L
+private val DEFAULT_CHURN_DOWNTIME_SECONDS = 5L
+private val DEFAULT_RESPONDER_PORT = 8080
+
+// Querying schedule of RFC 6762, Section 5.2
+private val INITIAL_QUERY_INTERVAL_MILLIS = 1000L
+private val MAX_QUERY_INTERVAL_MILLIS = 60L * 60L * 1000L
+// Cached records are refreshed at 80%, 85%, 90% & 95% of their lifetime
+private val REFRESH_FRACTIONS = doubleArrayOf(0.80, 0.85, 0.90, 0.95)
+private val MAINTENANCE_INTERVAL_MILLIS = 1000L
+// Responses to queries for shared records are delayed by 20-120 ms (RFC 6762, Section 6)
+private val MIN_RESPONSE_DELAY_MILLIS = 20L
+private val MAX_RESPONSE_DELAY_MILLIS = 120L
+// Probing takes three queries, 250 ms apart (RFC 6762, Section 8.1)
+private val PROBE_DURATION_MILLIS = 750L
+// Announcements are sent twice, one second apart (RFC 6762, Section 8.3)
+private val ANNOUNCEMENTS = 2
+private val ANNOUNCEMENT_INTERVAL_MILLIS = 1000L
+
+/**
+ * In-memory model of a multicast segment, shared by the engines of all SimulatedDrivers
+ * created for it. Broadcasts publish their services into the network, and discoveries browse it
+ * with the timing of RFC 6762: exponentially backed-off queries, delayed responses,
+ * known-answer suppression, repeated announcements, goodbyes and cache expiry.
+ * Every packet takes a random latency to arrive, and may be lost on its way.
+ * <p>
+ * On top of the services published by broadcasts, the network can be populated with responders,
+ * services that exist without an engine behind them. Churn makes random responders
+ * leave the network and return after a while.
+ * <p>
+ * The whole simulation runs on a single worker of the given scheduler. Combined with a seed,
+ * the simulation is deterministic, and with a TestScheduler, it runs as fast as the CPU allows:
+ * <pre>
+ *   val scheduler = TestScheduler()
+ *   val network = SimulatedNetwork.Builder()
+ *       .scheduler(scheduler)
+ *       .responders("_http._tcp", 10_000)
+ *       .packetLoss(0.01)
+ *       .create()
+ *
+ *   val rxBonjour = RxBonjour.Builder()
+ *       .driver(SimulatedDriver.create(network))
+ *       .platform(...)
+ *       .create()
+ *
+ *   rxBonjour.newDiscovery("_http._tcp").subscribe(...)
+ *   scheduler.advanceTimeBy(10, TimeUnit.SECONDS)
+ * </pre>
+ */
+class SimulatedNetwork private constructor(
+    scheduler: Scheduler,
+    private val random: Random,
+    private val minLatencyMillis: Long,
+    private val maxLatencyMillis: Long,
+    private val packetLoss: Double,
+    private val ttlMillis: Long,
+    private val churnRate: Double,
+    private val churnDowntimeMillis: Long,
+    responders: List<ResponderConfig>) {
+
+  // All state is confined to this worker, which runs every step of the simulation in order
+  private val worker = scheduler.createWorker()
+
+  // Online services, by key & by type
+  private val publications = HashMap<String, Publication>()
+  private val publicationsByType = HashMap<String, LinkedHashMap<String, Publication>>()
+  private val browsers = HashMap<String, MutableList<Browser>>()
+
+  // Responders are picked for churn from the online ones, in constant time
+  private val onlineResponders = ArrayList<Publication>()
+
+  private val delivered = AtomicLong()
+  private val lost = AtomicLong()
+
+  init {
+    worker.schedule {
+      var index = 0
+      responders.forEach { config ->
+        repeat(config.count) {
+          index++
+          val responder = Publication(BonjourService(
+              type = config.type.toServiceType(),
+              name = "Responder $index",
+              v4Host = index.toResponderAddress(),
+              v6Host = null,
+              port = config.port,
+              txtRecords = config.txtRecords))
+          publish(responder)
+          onlineResponders += responder
+        }
+      }
+      if (churnRate > 0.0) scheduleChurn()
+    }
+  }
+
+  /** Number of packets that arrived so far. Multicast packets count once per receiver */
+  fun packetsDelivered(): Long = delivered.get()
+
+  /** Number of packets lost so far. Multicast packets count once per receiver */
+  fun packetsLost(): Long = lost.get()
+
+  /** Stops the simulation. Engines of this network don't hear anything afterwards */
+  fun shutdown() {
+    worker.dispose()
+  }
+
+  internal fun execute(action: () -> Unit) {
+    worker.schedule(action)
+  }
+
+  /* Broadcasts */
+
+  /** Probes for the configured service, publishing it afterwards */
+  internal fun register(address: InetAddress, config: BonjourBroadcastConfig,
+      callback: BroadcastCallback): Publication {
+    val publication = Publication(BonjourService(
+        type = config.type.toServiceType(),
+        name = config.name,
+        v4Host = address as? Inet4Address,
+        v6Host = address as? Inet6Address,
+        port = config.port,
+        txtRecords = config.txtRecords ?: emptyMap()))
+
+    val started = now()
+    worker.schedule({
+      if (!publication.withdrawn) {
+        publish(publication)
+        callback.broadcastRegistered(publication.service.type, publication.service.name,
+            TimeUnit.MILLISECONDS.toNanos(now() - started))
+      }
+    }, PROBE_DURATION_MILLIS, TimeUnit.MILLISECONDS)
+    return publication
+  }
+
+  internal fun update(publication: Publication, txtRecords: TxtRecords) {
+    publication.service = publication.service.copy(txtRecords = txtRecords)
+    announce(publication, ANNOUNCEMENTS)
+  }
+
+  internal fun unregister(publication: Publication) {
+    publication.withdrawn = true
+    withdraw(publication)
+  }
+
+  private fun publish(publication: Publication) {
+    // Resolve conflicts with services published in the meantime, like responders do after probing
+    val original = publication.service.name
+    var suffix = 1
+    while (publication.key in publications) {
+      suffix++
+      publication.service = publication.service.copy(name = "$original ($suffix)")
+    }
+
+    publications.put(publication.key, publication)
+    publicationsByType.getOrPut(publication.typeKey) { LinkedHashMap() }
+        .put(publication.key, publication)
+    publication.online = true
+    announce(publication, ANNOUNCEMENTS)
+  }
+
+  private fun announce(publication: Publication, times: Int) {
+    if (!publication.online) return
+
+    val service = publication.service
+    browsers[publication.typeKey]?.forEach { browser -> transmit { browser.receive(service) } }
+    if (times > 1) {
+      worker.schedule({ announce(publication, times - 1) },
+          ANNOUNCEMENT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  private fun withdraw(publication: Publication) {
+    if (!publication.online) return
+
+    publication.online = false
+    publications.remove(publication.key)
+    publicationsByType[publication.typeKey]?.remove(publication.key)
+
+    val service = publication.service
+    browsers[publication.typeKey]?.forEach { browser -> transmit { browser.goodbye(service) } }
+  }
+
+  /* Discoveries */
+
+  internal fun browse(type: String, callback: DiscoveryCallback): Browser =
+      Browser(type.toTypeKey(), callback).also { it.start() }
+
+  /**
+   * Querier for a single type, keeping a cache of the services it heard about.
+   * Services are reported as resolved right away, since responders send all of their records
+   * in a single packet.
+   */
+  internal inner class Browser(
+      private val typeKey: String,
+      private val callback: DiscoveryCallback) {
+
+    private val known = HashMap<String, Known>()
+    private var queryInterval = INITIAL_QUERY_INTERVAL_MILLIS
+    private var queryTimer: Disposable? = null
+    private var maintenanceTimer: Disposable? = null
+    private var stopped = false
+
+    fun start() {
+      browsers.getOrPut(typeKey) { ArrayList() } += this
+      query()
+      maintenanceTimer = worker.schedulePeriodically({ maintain() },
+          MAINTENANCE_INTERVAL_MILLIS, MAINTENANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+    }
+
+    fun stop() {
+      stopped = true
+      browsers[typeKey]?.remove(this)
+      queryTimer?.dispose()
+      maintenanceTimer?.dispose()
+    }
+
+    fun receive(service: BonjourService) {
+      if (stopped) return
+
+      val key = service.toKey()
+      val previous = known.put(key, Known(service, now() + ttlMillis))
+      if (previous == null) {
+        callback.trace(TraceStage.SERVICE_FOUND, service.name)
+      }
+      if (previous?.service != service) {
+        callback.serviceResolved(service, ttlMillis, TimeUnit.MILLISECONDS)
+      }
+    }
+
+    fun goodbye(service: BonjourService) {
+      if (stopped) return
+      known.remove(service.toKey())?.let { callback.serviceLost(it.service) }
+    }
+
+    private fun query() {
+      callback.trace(TraceStage.QUERY_SENT, typeKey)
+
+      // Known-Answer Suppression (RFC 6762, Section 7.1):
+      // responders stay quiet if the querier knows them with more than half their TTL left
+      val now = now()
+      publicationsByType[typeKey]?.keys?.forEach { key ->
+        val cached = known[key]
+        if (cached == null || cached.expiry - now <= ttlMillis / 2) ask(key)
+      }
+
+      queryTimer = worker.schedule({ query() }, queryInterval, TimeUnit.MILLISECONDS)
+      queryInterval = Math.min(queryInterval * 2, MAX_QUERY_INTERVAL_MILLIS)
+    }
+
+    private fun maintain() {
+      val now = now()
+      val iterator = known.entries.iterator()
+      while (iterator.hasNext()) {
+        val (key, cached) = iterator.next()
+        if (now >= cached.expiry) {
+          iterator.remove()
+          callback.serviceLost(cached.service)
+
+        } else if (cached.refreshes < REFRESH_FRACTIONS.size) {
+          val received = cached.expiry - ttlMillis
+          if (now >= received + (ttlMillis * REFRESH_FRACTIONS[cached.refreshes]).toLong()) {
+            cached.refreshes++
+            ask(key)
+          }
+        }
+      }
+    }
+
+    // Query & response for a single service, whichever is online under its key by then
+    private fun ask(key: String) {
+      transmit {
+        publications[key]?.let { publication ->
+          transmit(responseDelay()) { receive(publication.service) }
+        }
+      }
+    }
+  }
+
+  /* Churn */
+
+  private fun scheduleChurn() {
+    // Exponentially distributed gaps make for a Poisson process of the given rate
+    val gapMillis = (-Math.log(1.0 - random.nextDouble()) / churnRate * 1000.0).toLong()
+    worker.schedule({
+      churn()
+      scheduleChurn()
+    }, gapMillis, TimeUnit.MILLISECONDS)
+  }
+
+  private fun churn() {
+    if (onlineResponders.isEmpty()) return
+
+    // Swap the picked responder to the end, so that removing it doesn't shift the others
+    val index = random.nextInt(onlineResponders.size)
+    val responder = onlineResponders[index]
+    onlineResponders[index] = onlineResponders[onlineResponders.size - 1]
+    onlineResponders.removeAt(onlineResponders.size - 1)
+
+    withdraw(responder)
+    worker.schedule({
+      publish(responder)
+      onlineResponders += responder
+    }, churnDowntimeMillis, TimeUnit.MILLISECONDS)
+  }
+
+  /* Packets */
+
+  private fun transmit(extraDelayMillis: Long = 0L, deliver: () -> Unit) {
+    if (random.nextDouble() < packetLoss) {
+      lost.incrementAndGet()
+      return
+    }
+
+    worker.schedule({
+      delivered.incrementAndGet()
+      deliver()
+    }, latency() + extraDelayMillis, TimeUnit.MILLISECONDS)
+  }
+
+  private fun latency() = randomBetween(minLatencyMillis, maxLatencyMillis)
+
+  private fun responseDelay() = randomBetween(MIN_RESPONSE_DELAY_MILLIS, MAX_RESPONSE_DELAY_MILLIS)
+
+  private fun randomBetween(min: Long, max: Long) =
+      if (min == max) min else min + (random.nextDouble() * (max - min + 1)).toLong()
+
+  private fun now() = worker.now(TimeUnit.MILLISECONDS)
+
+  /**
+   * Configuration and Creation of SimulatedNetwork instances.
+   * By default, the network is empty, loses no packets and delivers them within 1-10 ms.
+   */
+  class Builder {
+    private var scheduler: Scheduler = Schedulers.single()
+    private var seed = DEFAULT_SEED
+    private var minLatencyMillis = DEFAULT_MIN_LATENCY_MILLIS
+    private var maxLatencyMillis = DEFAULT_MAX_LATENCY_MILLIS
+    private var packetLoss = 0.0
+    private var ttlMillis = TimeUnit.SECONDS.toMillis(DEFAULT_TTL_SECONDS)
+    private var churnRate = 0.0
+    private var churnDowntimeMillis = TimeUnit.SECONDS.toMillis(DEFAULT_CHURN_DOWNTIME_SECONDS)
+    private val responders = ArrayList<ResponderConfig>()
+
+    /**
+     * Sets the scheduler running the simulation. Pass a TestScheduler to run it in virtual time,
+     * so that minutes of network activity pass in an instant.
+     */
+    fun scheduler(scheduler: Scheduler) = also { this.scheduler = scheduler }
+
+    /** Sets the seed of the random numbers deciding over latencies, losses & churn */
+    fun seed(seed: Long) = also { this.seed = seed }
+
+    /** Sets the range of time it takes a packet to arrive */
+    fun latency(min: Long, max: Long, unit: TimeUnit) = also {
+      require(min >= 0L, { "The latency can't be negative" })
+      require(max >= min, { "The maximum latency can't be lower than the minimum" })
+      this.minLatencyMillis = unit.toMillis(min)
+      this.maxLatencyMillis = unit.toMillis(max)
+    }
+
+    /** Sets the probability of each packet to be lost, from 0.0 up to, but excluding 1.0 */
+    fun packetLoss(probability: Double) = also {
+      require(probability >= 0.0 && probability < 1.0,
+          { "The packet loss must be at least 0.0, and less than 1.0" })
+      this.packetLoss = probability
+    }
+
+    /** Sets the time-to-live of all records, after which unrefreshed services are lost */
+    fun ttl(time: Long, unit: TimeUnit) = also {
+      require(time > 0L, { "The TTL must be positive" })
+      this.ttlMillis = unit.toMillis(time)
+    }
+
+    /**
+     * Makes responders leave the network at the given average rate,
+     * each of them returning after the given downtime.
+     *
+     * @param ratePerSecond Average number of responders leaving per second
+     * @param downtime      Time until a responder returns
+     * @param unit          Unit of the downtime
+     */
+    fun churn(ratePerSecond: Double, downtime: Long, unit: TimeUnit) = also {
+      require(ratePerSecond >= 0.0, { "The churn rate can't be negative" })
+      require(downtime >= 0L, { "The churn downtime can't be negative" })
+      this.churnRate = ratePerSecond
+      this.churnDowntimeMillis = unit.toMillis(downtime)
+    }
+
+    /**
+     * Populates the network with responders of the given type, which exist without engines.
+     * Responders are named "Responder 1", "Responder 2" & so on, across all types,
+     * and each has an address of its own.
+     */
+    @JvmOverloads
+    fun responders(type: String, count: Int, port: Int = DEFAULT_RESPONDER_PORT,
+        txtRecords: TxtRecords = emptyMap()) = also {
+      require(type.isBonjourType(), { "Responders need a valid Bonjour type, not $type" })
+      require(count > 0, { "The number of responders must be positive" })
+      this.responders += ResponderConfig(type, count, port, txtRecords)
+    }
+
+    fun create() = SimulatedNetwork(scheduler, Random(seed), minLatencyMillis, maxLatencyMillis,
+        packetLoss, ttlMillis, churnRate, churnDowntimeMillis, ArrayList(responders))
+  }
+
+  private class ResponderConfig(
+      val type: String,
+      val count: Int,
+      val port: Int,
+      val txtRecords: TxtRecords)
+
+  private class Known(
+      val service: BonjourService,
+      val expiry: Long) {
+    var refreshes = 0
+  }
+}
+
+/** A service on the network, or on its way there */
+internal class Publication(var service: BonjourService) {
+  var online = false
+  var withdrawn = false
+
+  val typeKey get() = service.type.toTypeKey()
+  val key get() = service.toKey()
+}
+
+/* Extension Functions */
+
+// Normalized form of a type, ignoring the domain & surrounding dots
+private fun String.toTypeKey() = this.toLowerCase().trim('.').removeSuffix(".local")
+
+// Types are reported with their domain, like most mDNS stacks do
+private fun String.toServiceType() = "${this.toTypeKey()}.local."
+
+// Service names are case-insensitive
+private fun BonjourService.toKey() = "${this.name.toLowerCase()}.${this.type.toTypeKey()}"
+
+private fun Int.toResponderAddress() = InetAddress.getByAddress(byteArrayOf(10,
+    (this shr 16).toByte(), (this shr 8).toByte(), this.toByte())) as Inet4Address
@@ -0,0 +1,130 @@
+package de.mannodermaus.rxbonjour.drivers.simulated
+
+import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
+import de.mannodermaus.rxbonjour.BonjourService
+import de.mannodermaus.rxbonjour.BroadcastCallback
+import de.mannodermaus.rxbonjour.DiscoveryCallback
+import io.reactivex.schedulers.TestScheduler
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.DisplayName
+import org.junit.jupiter.api.Test
+import java.net.InetAddress
+import java.util.concurrent.TimeUnit
+
+private val TYPE = "_http._tcp"
+private val ADDRESS = InetAddress.getByName("192.168.0.42")
+
+@DisplayName("Simulated Network")
+class SimulatedNetworkTests {
+
+  private val scheduler = TestScheduler()
+
+  @Test
+  @DisplayName("Discoveries find all responders of their type")
+  fun discoveryFindsResponders() {
+    val network = SimulatedNetwork.Builder()
+        .scheduler(scheduler)
+        .responders(TYPE, 1000)
+        .responders("_ssh._tcp", 10)
+        .create()
+    val callback = RecordingDiscoveryCallback()
+
+    SimulatedDriver.create(network).createDiscovery(TYPE).discover(ADDRESS, callback)
+    scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+
+    assertEquals(1000, callback.resolved.size)
+    assertEquals(1000, callback.resolved.map { it.name }.distinct().size)
+    assertTrue(callback.resolved.all { it.type == "_http._tcp.local." })
+  }
+
+  @Test
+  @DisplayName("Broadcasts are found, updated & lost again")
+  fun broadcastLifecycle() {
+    val network = SimulatedNetwork.Builder().scheduler(scheduler).create()
+    val driver = SimulatedDriver.create(network)
+    val discovery = RecordingDiscoveryCallback()
+    val broadcast = driver.createBroadcast() as SimulatedBroadcastEngine
+    var registered = 0
+
+    driver.createDiscovery(TYPE).discover(ADDRESS, discovery)
+    broadcast.start(ADDRESS, BonjourBroadcastConfig(TYPE, "Printer", port = 631),
+        object : BroadcastCallback {
+          override fun broadcastFailed(cause: Exception?) {
+          }
+
+          override fun broadcastRegistered(type: String, name: String, latencyNanos: Long) {
+            registered++
+          }
+        })
+    scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+    assertEquals(1, registered)
+    assertEquals(listOf("Printer"), discovery.resolved.map { it.name })
+    assertEquals(ADDRESS, discovery.resolved[0].v4Host)
+
+    broadcast.updateTxtRecords(mapOf("load" to "42"))
+    scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+    assertEquals(mapOf("load" to "42"), discovery.resolved.last().txtRecords)
+
+    broadcast.teardown()
+    scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+    assertEquals(listOf("Printer"), discovery.lost.map { it.name })
+  }
+
+  @Test
+  @DisplayName("Lossy networks are simulated the same way for the same seed")
+  fun lossyNetworkIsDeterministic() {
+    fun simulate(): Pair<Int, Long> {
+      val scheduler = TestScheduler()
+      val network = SimulatedNetwork.Builder()
+          .scheduler(scheduler)
+          .seed(42L)
+          .packetLoss(0.1)
+          .responders(TYPE, 200)
+          .create()
+      val callback = RecordingDiscoveryCallback()
+
+      SimulatedDriver.create(network).createDiscovery(TYPE).discover(ADDRESS, callback)
+      scheduler.advanceTimeBy(1, TimeUnit.MINUTES)
+      return Pair(callback.resolved.size, network.packetsLost())
+    }
+
+    val first = simulate()
+    assertEquals(200, first.first)
+    assertTrue(first.second > 0L)
+    assertEquals(first, simulate())
+  }
+
+  @Test
+  @DisplayName("Churning responders leave & return")
+  fun churn() {
+    val network = SimulatedNetwork.Builder()
+        .scheduler(scheduler)
+        .responders(TYPE, 100)
+        .churn(1.0, 5L, TimeUnit.SECONDS)
+        .create()
+    val callback = RecordingDiscoveryCallback()
+
+    SimulatedDriver.create(network).createDiscovery(TYPE).discover(ADDRESS, callback)
+    scheduler.advanceTimeBy(30, TimeUnit.SECONDS)
+
+    assertTrue(callback.lost.isNotEmpty())
+    assertTrue(callback.resolved.size > 100)
+  }
+
+  private class RecordingDiscoveryCallback : DiscoveryCallback {
+    val resolved = mutableListOf<BonjourService>()
+    val lost = mutableListOf<BonjourService>()
+
+    override fun discoveryFailed(cause: Exception?) {
+    }
+
+    override fun serviceResolved(service: BonjourService) {
+      resolved += service
+    }
+
+    override fun serviceLost(service: BonjourService) {
+      lost += service
+    }
+  }
+}
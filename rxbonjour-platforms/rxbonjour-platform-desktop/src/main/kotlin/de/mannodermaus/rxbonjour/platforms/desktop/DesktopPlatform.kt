@@ -1,16 +1,36 @@
 package de.mannodermaus.rxbonjour.platforms.desktop
 
+import de.mannodermaus.rxbonjour.MulticastInterface
 import de.mannodermaus.rxbonjour.Platform
 import de.mannodermaus.rxbonjour.PlatformConnection
 import io.reactivex.disposables.Disposable
+import java.net.Inet4Address
 import java.net.InetAddress
+import java.net.NetworkInterface
+import java.net.SocketException
 
 class DesktopPlatform private constructor() : Platform {
   override fun createConnection(): PlatformConnection = DesktopConnection()
 
-  override fun getWifiAddress(): InetAddress {
-    // TODO How to go about this?
-    return InetAddress.getLocalHost()
+  override fun getWifiAddress(): InetAddress =
+      // The local host's address is often the loopback one, so prefer a multicast-capable interface
+      getMulticastInterfaces().firstOrNull()?.address ?: InetAddress.getLocalHost()
+
+  override fun getMulticastInterfaces(): List<MulticastInterface> {
+    val interfaces = try {
+      NetworkInterface.getNetworkInterfaces()?.toList() ?: emptyList()
+    } catch (ex: SocketException) {
+      emptyList<NetworkInterface>()
+    }
+
+    return interfaces
+        .filter { it.isUsableForMulticast() }
+        .mapNotNull { networkInterface ->
+          // Prefer IPv4, since not every mDNS stack on the network speaks IPv6
+          val addresses = networkInterface.inetAddresses.toList()
+          val address = addresses.firstOrNull { it is Inet4Address } ?: addresses.firstOrNull()
+          address?.let { MulticastInterface(networkInterface.name, it) }
+        }
   }
 
   override fun runOnTeardown(action: () -> Unit): Disposable = RunActionDisposable(action)
@@ -29,3 +49,13 @@ private class DesktopConnection : PlatformConnection {
   override fun teardown() {
   }
 }
+
+/* Extension Functions */
+
+private fun NetworkInterface.isUsableForMulticast() =
+    try {
+      this.isUp && this.supportsMulticast() && !this.isLoopback && !this.isPointToPoint
+    } catch (ex: SocketException) {
+      // The interface went away while it was inspected
+      false
+    }
@@ -0,0 +1,252 @@
+package de.mannodermaus.rxbonjour
+
+import io.reactivex.Flowable
+import io.reactivex.Observable
+import io.reactivex.Observer
+import io.reactivex.disposables.Disposable
+import org.reactivestreams.Subscriber
+import org.reactivestreams.Subscription
+import java.util.ArrayDeque
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Strategies for dealing with discovery events that a subscriber can't keep up with.
+ * Pending events are held in bounded memory until they are requested.
+ */
+sealed class DiscoveryBackpressure {
+
+  /**
+   * Keep only the most recent pending event of each service. Services the subscriber hasn't seen
+   * yet are still added by it, or not reported at all if they are gone again.
+   */
+  class LatestPerService internal constructor() : DiscoveryBackpressure()
+
+  /** Keep a bounded number of pending events, dropping the oldest one on overflow */
+  class DropOldest internal constructor(val capacity: Int) : DiscoveryBackpressure()
+
+  /**
+   * Keep only the net change of each service: an Added & Removed event for the same service
+   * cancel each other out, unless the subscriber has already seen the service before.
+   */
+  class Coalesce internal constructor() : DiscoveryBackpressure()
+
+  companion object {
+    @JvmStatic
+    fun latestPerService(): DiscoveryBackpressure = LatestPerService()
+
+    @JvmStatic
+    fun dropOldest(capacity: Int): DiscoveryBackpressure {
+      require(capacity > 0, { "The capacity for pending discovery events must be positive" })
+      return DropOldest(capacity)
+    }
+
+    @JvmStatic
+    fun coalesce(): DiscoveryBackpressure = Coalesce()
+  }
+}
+
+/**
+ * Flowable adapter for discovery streams, which holds on to events
+ * that haven't been requested yet according to the given strategy.
+ */
+internal class DiscoveryFlowable(
+    private val upstream: Observable<BonjourEvent>,
+    private val strategy: DiscoveryBackpressure) : Flowable<BonjourEvent>() {
+
+  override fun subscribeActual(subscriber: Subscriber<in BonjourEvent>) {
+    upstream.subscribe(BackpressureObserver(subscriber, strategy.createQueue()))
+  }
+
+  private class BackpressureObserver(
+      private val downstream: Subscriber<in BonjourEvent>,
+      private val pending: PendingEvents) : Observer<BonjourEvent>, Subscription {
+
+    private val requested = AtomicLong()
+    private val wip = AtomicInteger()
+    private var upstream: Disposable? = null
+    @Volatile private var done = false
+    @Volatile private var error: Throwable? = null
+    @Volatile private var cancelled = false
+
+    override fun onSubscribe(d: Disposable) {
+      upstream = d
+      downstream.onSubscribe(this)
+    }
+
+    override fun onNext(event: BonjourEvent) {
+      synchronized(pending) { pending.offer(event) }
+      drain()
+    }
+
+    override fun onError(e: Throwable) {
+      error = e
+      done = true
+      drain()
+    }
+
+    override fun onComplete() {
+      done = true
+      drain()
+    }
+
+    override fun request(n: Long) {
+      if (n <= 0L) return
+      while (true) {
+        val current = requested.get()
+        val next = if (current + n < 0L) Long.MAX_VALUE else current + n
+        if (requested.compareAndSet(current, next)) break
+      }
+      drain()
+    }
+
+    override fun cancel() {
+      cancelled = true
+      upstream?.dispose()
+      if (wip.getAndIncrement() == 0) {
+        synchronized(pending) { pending.clear() }
+      }
+    }
+
+    private fun drain() {
+      if (wip.getAndIncrement() != 0) return
+      var missed = 1
+
+      while (true) {
+        val requested = requested.get()
+        var emitted = 0L
+
+        while (emitted != requested) {
+          if (checkTerminated()) return
+          val event = synchronized(pending) { pending.poll() } ?: break
+          downstream.onNext(event)
+          emitted++
+        }
+
+        if (checkTerminated()) return
+        if (emitted != 0L && requested != Long.MAX_VALUE) {
+          this.requested.addAndGet(-emitted)
+        }
+
+        missed = wip.addAndGet(-missed)
+        if (missed == 0) return
+      }
+    }
+
+    private fun checkTerminated(): Boolean {
+      if (cancelled) {
+        synchronized(pending) { pending.clear() }
+        return true
+      }
+      if (!done) return false
+
+      // Errors cut ahead of pending events, while completion waits for them
+      val error = error
+      if (error != null) {
+        synchronized(pending) { pending.clear() }
+        downstream.onError(error)
+        return true
+      }
+      if (synchronized(pending) { pending.isEmpty() }) {
+        downstream.onComplete()
+        return true
+      }
+      return false
+    }
+  }
+}
+
+/* Pending Events */
+
+/** Storage for events that haven't been requested yet. Not thread-safe */
+internal interface PendingEvents {
+  fun offer(event: BonjourEvent)
+  fun poll(): BonjourEvent?
+  fun isEmpty(): Boolean
+  fun clear()
+}
+
+private class LatestPerServiceEvents : PendingEvents {
+  private val events = LinkedHashMap<ServiceKey, BonjourEvent>()
+  // Services the subscriber currently knows about
+  private val delivered = KnownServices()
+
+  override fun offer(event: BonjourEvent) {
+    val key = event.service.key()
+    val known = delivered[key]
+    when {
+      // Subscriber never heard of the service, and doesn't need to anymore
+      known == null && event is BonjourEvent.Removed -> events.remove(key)
+      // Whatever the subscriber hears of the service first needs to add it
+      known == null && event is BonjourEvent.Updated ->
+        events.put(key, BonjourEvent.Added(event.service))
+      // Subscriber already knows the service, so it can only change
+      known != null && event is BonjourEvent.Added ->
+        events.put(key, BonjourEvent.Updated(known, event.service))
+      else -> events.put(key, event)
+    }
+  }
+
+  override fun poll(): BonjourEvent? {
+    val event = events.pollFirst() ?: return null
+    delivered.transition(event.service.key(), event.currentService)
+    return event
+  }
+
+  override fun isEmpty() = events.isEmpty()
+  override fun clear() = events.clear()
+}
+
+private class DropOldestEvents(private val capacity: Int) : PendingEvents {
+  private val events = ArrayDeque<BonjourEvent>(capacity)
+
+  override fun offer(event: BonjourEvent) {
+    if (events.size == capacity) events.pollFirst()
+    events.offerLast(event)
+  }
+
+  override fun poll(): BonjourEvent? = events.pollFirst()
+  override fun isEmpty() = events.isEmpty()
+  override fun clear() = events.clear()
+}
+
+private class CoalescingEvents : PendingEvents {
+  private val events = LinkedHashMap<ServiceKey, BonjourEvent>()
+  // Services the subscriber currently knows about
+  private val delivered = KnownServices()
+
+  override fun offer(event: BonjourEvent) {
+    val key = event.service.key()
+    if (delivered[key] == event.currentService) {
+      // Back to what the subscriber already knows, so there is nothing to tell
+      events.remove(key)
+    } else {
+      events.put(key, event)
+    }
+  }
+
+  override fun poll(): BonjourEvent? {
+    val event = events.pollFirst() ?: return null
+    return delivered.transition(event.service.key(), event.currentService)
+  }
+
+  override fun isEmpty() = events.isEmpty()
+  override fun clear() = events.clear()
+}
+
+/* Extension Functions */
+
+private fun DiscoveryBackpressure.createQueue(): PendingEvents =
+    when (this) {
+      is DiscoveryBackpressure.LatestPerService -> LatestPerServiceEvents()
+      is DiscoveryBackpressure.DropOldest -> DropOldestEvents(capacity)
+      is DiscoveryBackpressure.Coalesce -> CoalescingEvents()
+    }
+
+private fun <K, V> LinkedHashMap<K, V>.pollFirst(): V? {
+  val iterator = this.values.iterator()
+  if (!iterator.hasNext()) return null
+  val value = iterator.next()
+  iterator.remove()
+  return value
+}
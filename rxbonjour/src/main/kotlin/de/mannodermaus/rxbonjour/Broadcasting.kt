@@ -0,0 +1,113 @@
+package de.mannodermaus.rxbonjour
+
+import io.reactivex.Completable
+import io.reactivex.CompletableEmitter
+import io.reactivex.CompletableObserver
+import io.reactivex.disposables.Disposable
+import io.reactivex.disposables.Disposables
+import io.reactivex.disposables.SerialDisposable
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Handle to a service broadcast, whose TXT records can be changed while it's running.
+ * Obtained through RxBonjour#newUpdatableBroadcast(BonjourBroadcastConfig).
+ * <p>
+ * If the driver's engines support it, new records are announced by the running broadcast.
+ * Otherwise, the service is registered anew with them, during which it briefly disappears
+ * from the network.
+ */
+class BonjourBroadcast internal constructor(
+    txtRecords: TxtRecords,
+    private val factory: (attach: (BroadcastEngine) -> TxtRecords) -> Completable) {
+
+  /** The TXT records currently advertised, or about to be */
+  @Volatile var txtRecords: TxtRecords = txtRecords
+    private set
+
+  private val sessions = CopyOnWriteArrayList<Session>()
+
+  /**
+   * State of the broadcast, which is valid until unsubscription.
+   * It behaves like the Completable returned by RxBonjour#newBroadcast(BonjourBroadcastConfig),
+   * re-registrations of the service included.
+   */
+  val completable: Completable = Completable.create { emitter ->
+    val session = Session(emitter)
+    sessions += session
+    emitter.setDisposable(Disposables.fromAction {
+      sessions -= session
+      session.stop()
+    })
+    session.start()
+  }
+
+  /**
+   * Replaces the TXT records of the service. If the broadcast isn't running yet,
+   * it will start with these records instead of the ones from its configuration.
+   *
+   * @param txtRecords  New TXT records of the service
+   */
+  fun updateTxtRecords(txtRecords: TxtRecords) {
+    this.txtRecords = txtRecords
+    sessions.forEach { it.update(txtRecords) }
+  }
+
+  /** A single subscription to the broadcast, which may run several engines over its lifetime */
+  private inner class Session(private val emitter: CompletableEmitter) {
+
+    private val upstream = SerialDisposable()
+    private var started = false
+    private var engine: UpdatableBroadcastEngine? = null
+    private var stopped = false
+
+    fun start() {
+      synchronized(this) {
+        if (stopped) return
+        started = false
+        engine = null
+
+        // Goodbye to the old registration first, so that the new one doesn't conflict with it
+        upstream.get()?.dispose()
+        factory { attach(it) }.subscribe(object : CompletableObserver {
+          override fun onSubscribe(d: Disposable) {
+            upstream.set(d)
+          }
+
+          override fun onError(e: Throwable) {
+            emitter.onError(e)
+          }
+
+          override fun onComplete() {
+            emitter.onComplete()
+          }
+        })
+      }
+    }
+
+    fun update(txtRecords: TxtRecords) {
+      val engine = synchronized(this) {
+        // Not started yet, so the engine will pick up the new records on its own
+        if (stopped || !started) return
+        engine
+      }
+
+      if (engine != null) {
+        engine.updateTxtRecords(txtRecords)
+      } else {
+        start()
+      }
+    }
+
+    fun stop() {
+      synchronized(this) { stopped = true }
+      upstream.dispose()
+    }
+
+    private fun attach(engine: BroadcastEngine): TxtRecords =
+        synchronized(this) {
+          this.started = true
+          this.engine = engine as? UpdatableBroadcastEngine
+          txtRecords
+        }
+  }
+}
@@ -0,0 +1,135 @@
+package de.mannodermaus.rxbonjour
+
+import io.reactivex.Scheduler
+import io.reactivex.disposables.CompositeDisposable
+import io.reactivex.disposables.Disposable
+import java.util.concurrent.TimeUnit
+
+/**
+ * Store of resolved services, shared by all discoveries of an RxBonjour instance.
+ * Entries are keyed by the discovered type & the name of a service, and expire
+ * after the TTL reported by the driver, or the default TTL if the driver doesn't provide one.
+ * Expired entries are evicted whenever the cache is accessed.
+ */
+internal class ServiceCache(
+    private val defaultTtl: Long,
+    private val unit: TimeUnit,
+    private val scheduler: Scheduler) {
+
+  private val entries = HashMap<Key, Entry>()
+
+  fun put(type: String, service: BonjourService, ttl: Long = defaultTtl,
+      unit: TimeUnit = this.unit) {
+    synchronized(entries) {
+      evictExpired()
+      entries.put(Key(type, service.name), Entry(service, now() + unit.toMillis(ttl)))
+    }
+  }
+
+  fun remove(type: String, service: BonjourService) {
+    synchronized(entries) {
+      entries.remove(Key(type, service.name))
+    }
+  }
+
+  /** Returns the unexpired entries for the given type */
+  fun get(type: String): List<Entry> =
+      synchronized(entries) {
+        evictExpired()
+        entries.filterKeys { it.type == type }.values.toList()
+      }
+
+  /** Returns the expiry time of the entry for the given service, or null if there is none */
+  fun expiryOf(type: String, service: BonjourService): Long? =
+      synchronized(entries) {
+        entries[Key(type, service.name)]?.takeIf { it.expiresAt > now() }?.expiresAt
+      }
+
+  /**
+   * Creates a discovery's view of the cache. Without storing, the discovery's reports
+   * only confirm cached services, for discoveries whose drivers write to the cache themselves.
+   */
+  fun replay(type: String, tracker: ServiceTracker, store: Boolean = true) =
+      Replay(type, tracker, store)
+
+  private fun evictExpired() {
+    val now = now()
+    entries.values.removeAll { it.expiresAt <= now }
+  }
+
+  private fun now() = scheduler.now(TimeUnit.MILLISECONDS)
+
+  /* Inner Classes */
+
+  private data class Key(val type: String, val name: String)
+
+  class Entry(val service: BonjourService, val expiresAt: Long)
+
+  /**
+   * A single discovery's view of the cache. Reports the cached services of its type up-front,
+   * and those that aren't confirmed by the driver before they expire as lost.
+   * <p>
+   * All reports of the discovery are routed through here, so that they are serialized
+   * with the ones made on expiry.
+   */
+  inner class Replay internal constructor(
+      private val type: String,
+      private val tracker: ServiceTracker,
+      private val store: Boolean) : Disposable {
+
+    private val unconfirmed = HashMap<String, BonjourService>()
+    private val timers = CompositeDisposable()
+
+    fun start() {
+      synchronized(this) {
+        get(type).forEach {
+          unconfirmed.put(it.service.name, it.service)
+          tracker.resolved(it.service)
+          scheduleExpiry(it.service, it.expiresAt)
+        }
+      }
+    }
+
+    fun resolved(service: BonjourService, ttl: Long = defaultTtl,
+        unit: TimeUnit = this@ServiceCache.unit) {
+      if (store) put(type, service, ttl, unit)
+      synchronized(this) {
+        // Confirmations of unchanged services are swallowed by the tracker
+        unconfirmed.remove(service.name)
+        tracker.resolved(service)
+      }
+    }
+
+    fun lost(service: BonjourService) {
+      if (store) remove(type, service)
+      synchronized(this) {
+        unconfirmed.remove(service.name)
+        tracker.lost(service)
+      }
+    }
+
+    override fun dispose() = timers.dispose()
+
+    override fun isDisposed() = timers.isDisposed
+
+    private fun scheduleExpiry(service: BonjourService, expiresAt: Long) {
+      val delay = Math.max(0L, expiresAt - now())
+      timers.add(scheduler.scheduleDirect({ expire(service) }, delay, TimeUnit.MILLISECONDS))
+    }
+
+    private fun expire(service: BonjourService) {
+      synchronized(this) {
+        if (unconfirmed[service.name] != service) return
+
+        // Another discovery of the same type may have refreshed the entry in the meantime
+        val expiresAt = expiryOf(type, service)
+        if (expiresAt != null) {
+          scheduleExpiry(service, expiresAt)
+        } else {
+          unconfirmed.remove(service.name)
+          tracker.lost(service)
+        }
+      }
+    }
+  }
+}
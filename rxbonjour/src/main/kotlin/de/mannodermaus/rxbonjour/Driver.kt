@@ -1,6 +1,8 @@
 package de.mannodermaus.rxbonjour
 
+import io.reactivex.Completable
 import java.net.InetAddress
+import java.util.concurrent.TimeUnit
 
 interface Driver {
   val name: String
@@ -13,20 +15,165 @@ interface Engine {
   fun teardown()
 }
 
+/**
+ * Non-blocking lifecycle for engines whose initialization or teardown takes a while.
+ * RxBonjour uses it in place of Engine#initialize() & Engine#teardown() if an engine implements it:
+ * the engine is started once initializeAsync() completes, and teardownAsync() is subscribed to
+ * without waiting for it, so that neither blocks the subscribing or disposing thread.
+ * Engines that only implement the blocking lifecycle are adapted automatically,
+ * and called on the subscribing & disposing threads unless RxBonjour has schedulers configured.
+ * All engines of the bundled drivers implement it.
+ */
+interface AsyncEngine {
+  /**
+   * Disposing the returned Completable before it completes must undo the work done so far,
+   * since teardownAsync() is only invoked for engines that were initialized.
+   */
+  fun initializeAsync(): Completable
+
+  fun teardownAsync(): Completable
+}
+
 interface DiscoveryEngine : Engine {
   fun discover(address: InetAddress, callback: DiscoveryCallback)
 }
 
+/**
+ * Capability of discovery engines able to browse for several types at once.
+ * Types can be added & removed both before and during discovery;
+ * the type passed to Driver#createDiscovery() is always part of the initial set.
+ */
+interface MultiTypeDiscoveryEngine : DiscoveryEngine {
+  fun addType(type: String)
+  fun removeType(type: String)
+}
+
+/**
+ * Capability of drivers whose discovery engines all browse for several types at once.
+ * Drivers without it get one engine per type when discovering more than one.
+ */
+interface MultiTypeDriver : Driver {
+  override fun createDiscovery(type: String): MultiTypeDiscoveryEngine
+}
+
+/**
+ * Capability of discovery engines which resolve found services in a queue,
+ * allowing the order of that queue to be influenced.
+ * The priority is set before the discovery starts.
+ */
+interface PrioritizedDiscoveryEngine : DiscoveryEngine {
+  fun setResolvePriority(priority: ResolvePriority)
+}
+
+/**
+ * Ranking of found services that haven't been resolved yet.
+ * Services with a higher priority are resolved first, while services of equal priority
+ * are resolved in the order they were found. Invoked on the driver's threads, so keep it quick.
+ */
+interface ResolvePriority {
+  /**
+   * @param type  Type of the service, without the domain, e.g. "_http._tcp"
+   * @param name  Name of the service
+   * @return The priority of the service
+   */
+  fun priorityOf(type: String, name: String): Int
+}
+
 interface DiscoveryCallback {
   fun discoveryFailed(cause: Exception?)
   fun serviceResolved(service: BonjourService)
   fun serviceLost(service: BonjourService)
+
+  /**
+   * Variant of serviceResolved() for drivers with access to the records' time-to-live,
+   * which allows RxBonjour to cache the service for exactly as long as it's valid.
+   */
+  fun serviceResolved(service: BonjourService, ttl: Long, unit: TimeUnit) =
+      serviceResolved(service)
+
+  /** Invoked by engines in lazy mode for services that were found, but not resolved */
+  fun serviceFound(type: String, name: String) {
+  }
+
+  /** Optional report of the time it took to resolve a service, for BonjourMetrics */
+  fun resolveCompleted(type: String, name: String, latencyNanos: Long) {
+  }
+
+  /** Optional report of a service that couldn't be resolved, for BonjourMetrics */
+  fun resolveFailed(type: String, name: String, cause: Exception?) {
+  }
+
+  /**
+   * Optional report of a step inside the driver, for BonjourTrace.
+   * Does nothing unless tracing is enabled, so pass details as they are, without formatting them.
+   */
+  fun trace(stage: TraceStage, detail: Any?) {
+  }
+}
+
+/**
+ * Capability of discovery engines able to report found services without resolving them,
+ * through DiscoveryCallback#serviceFound(). This mode is enabled before the discovery starts.
+ */
+interface LazyDiscoveryEngine : DiscoveryEngine {
+  fun setResolveLazily(lazy: Boolean)
+}
+
+/**
+ * Capability of drivers able to resolve a single service on demand,
+ * e.g. one reported by a lazy discovery.
+ */
+interface ResolvingDriver : Driver {
+  fun createResolve(): ResolveEngine
+}
+
+interface ResolveEngine : Engine {
+  fun resolve(address: InetAddress, type: String, name: String, callback: ResolveCallback)
+}
+
+interface ResolveCallback {
+  fun resolveFailed(cause: Exception?)
+  fun serviceResolved(service: BonjourService)
 }
 
 interface BroadcastEngine : Engine {
   fun start(address: InetAddress, config: BonjourBroadcastConfig, callback: BroadcastCallback)
 }
 
+/**
+ * Capability of broadcast engines able to advertise several services at once,
+ * sharing their network resources & aggregating their probes and announcements.
+ * Services with an address of their own are advertised on that one, the others on the given address.
+ */
+interface MultiServiceBroadcastEngine : BroadcastEngine {
+  fun start(address: InetAddress, configs: List<BonjourBroadcastConfig>,
+      callback: BroadcastCallback)
+}
+
+/**
+ * Capability of drivers whose broadcast engines all advertise several services at once.
+ * Drivers without it get one engine per service when broadcasting more than one.
+ */
+interface MultiServiceBroadcastDriver : Driver {
+  override fun createBroadcast(): MultiServiceBroadcastEngine
+}
+
+/**
+ * Capability of broadcast engines able to change the TXT records of a running broadcast,
+ * without registering the service anew. Only called after start().
+ */
+interface UpdatableBroadcastEngine : BroadcastEngine {
+  fun updateTxtRecords(txtRecords: TxtRecords)
+}
+
 interface BroadcastCallback {
   fun broadcastFailed(cause: Exception?)
+
+  /** Optional report of the time it took to register a service, for BonjourMetrics */
+  fun broadcastRegistered(type: String, name: String, latencyNanos: Long) {
+  }
+
+  /** Optional report of a step inside the driver, for BonjourTrace */
+  fun trace(stage: TraceStage, detail: Any?) {
+  }
 }
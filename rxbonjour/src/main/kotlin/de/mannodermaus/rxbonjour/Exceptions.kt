@@ -7,6 +7,10 @@ class DiscoveryFailedException(driverName: String, cause: Exception?)
   : RuntimeException("Service Discovery Driver '$driverName' failed with an unrecoverable error" +
     if (cause != null) ": ${cause.message}" else "", cause)
 
+class ResolveFailedException(driverName: String, cause: Exception?)
+  : RuntimeException("Service Resolve Driver '$driverName' failed with an unrecoverable error" +
+    if (cause != null) ": ${cause.message}" else "", cause)
+
 class BroadcastFailedException(driverName: String, cause: Exception?)
   : RuntimeException("Service Broadcast Driver '$driverName' failed with an unrecoverable error" +
     if (cause != null) ": ${cause.message}" else "", cause)
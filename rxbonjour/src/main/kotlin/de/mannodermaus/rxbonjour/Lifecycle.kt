@@ -0,0 +1,17 @@
+package de.mannodermaus.rxbonjour
+
+import io.reactivex.Completable
+
+/**
+ * Wraps the blocking lifecycle of an engine, for those that don't have an asynchronous one.
+ * The calls are made on whichever thread subscribes, so they run on the I/O scheduler
+ * only if RxBonjour has schedulers configured
+ */
+private class BlockingEngineAdapter(private val engine: Engine) : AsyncEngine {
+  override fun initializeAsync(): Completable = Completable.fromAction { engine.initialize() }
+  override fun teardownAsync(): Completable = Completable.fromAction { engine.teardown() }
+}
+
+/* Extension Functions */
+
+internal fun Engine.lifecycle(): AsyncEngine = this as? AsyncEngine ?: BlockingEngineAdapter(this)
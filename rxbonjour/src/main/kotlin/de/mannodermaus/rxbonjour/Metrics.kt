@@ -0,0 +1,98 @@
+package de.mannodermaus.rxbonjour
+
+import io.reactivex.Completable
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Listener for timed events from RxBonjour & its driver, e.g. to feed a metrics library.
+ * Every method has an empty default, so implementations only override what they're interested in.
+ * <p>
+ * Methods are invoked on the threads of the driver & the subscribers, so keep them quick.
+ * Durations are measured with System#nanoTime().
+ */
+interface BonjourMetrics {
+
+  /** An engine of the driver finished its initialization */
+  fun engineInitialized(engine: Engine, durationNanos: Long) {
+  }
+
+  /** An engine of the driver finished its teardown */
+  fun engineTornDown(engine: Engine, durationNanos: Long) {
+  }
+
+  /** The number of initialized engines that aren't torn down yet changed */
+  fun activeEnginesChanged(count: Int) {
+  }
+
+  /** A discovery resolved its first service, the given time after it was started */
+  fun firstServiceResolved(type: String, durationNanos: Long) {
+  }
+
+  /** A single service was resolved. Only reported by drivers able to measure it */
+  fun serviceResolved(type: String, name: String, latencyNanos: Long) {
+  }
+
+  /** A single service couldn't be resolved. Only reported by drivers able to detect it */
+  fun resolveFailed(type: String, name: String, cause: Exception?) {
+  }
+
+  /** A discovery emitted an event */
+  fun eventEmitted(type: String, event: BonjourEvent) {
+  }
+
+  /** A broadcast registered its service. Only reported by drivers able to measure it */
+  fun broadcastRegistered(type: String, name: String, latencyNanos: Long) {
+  }
+
+  companion object {
+    /** Metrics ignoring all events. RxBonjour doesn't measure anything while using these */
+    @JvmField
+    val NONE: BonjourMetrics = object : BonjourMetrics {}
+  }
+}
+
+/**
+ * Measures the lifecycle of engines & counts the active ones.
+ * Without metrics, engines are returned without any instrumentation.
+ */
+internal class EngineMeter(private val metrics: BonjourMetrics) {
+
+  private val active = AtomicInteger()
+
+  fun lifecycleOf(engine: Engine): AsyncEngine {
+    val lifecycle = engine.lifecycle()
+    return if (metrics === BonjourMetrics.NONE) lifecycle else MeteredEngine(engine, lifecycle)
+  }
+
+  private inner class MeteredEngine(
+      private val engine: Engine,
+      private val delegate: AsyncEngine) : AsyncEngine {
+
+    private val counted = AtomicBoolean()
+
+    override fun initializeAsync(): Completable =
+        Completable.defer {
+          val start = System.nanoTime()
+          delegate.initializeAsync().doOnComplete {
+            metrics.engineInitialized(engine, System.nanoTime() - start)
+            if (counted.compareAndSet(false, true)) {
+              metrics.activeEnginesChanged(active.incrementAndGet())
+            }
+          }
+        }
+
+    override fun teardownAsync(): Completable =
+        Completable.defer {
+          val start = System.nanoTime()
+          delegate.teardownAsync().doOnComplete {
+            metrics.engineTornDown(engine, System.nanoTime() - start)
+          }.doOnTerminate {
+            // Engines that failed to initialize were never counted
+            if (counted.compareAndSet(true, false)) {
+              metrics.activeEnginesChanged(active.decrementAndGet())
+            }
+          }
+        }
+  }
+}
@@ -8,6 +8,7 @@ typealias TxtRecords = Map<String, String>
 
 private val DEFAULT_NAME = "RxBonjour Service"
 private val DEFAULT_PORT = 80
+private val UNRESOLVED_PORT = 0
 
 data class BonjourBroadcastConfig @JvmOverloads constructor(
     val type: String,
@@ -16,20 +17,45 @@ data class BonjourBroadcastConfig @JvmOverloads constructor(
     val port: Int = DEFAULT_PORT,
     val txtRecords: TxtRecords? = emptyMap())
 
+/**
+ * A service on the network.
+ *
+ * @property interfaces Names of the network interfaces the service was seen on. Only filled in
+ * by discoveries on all interfaces, see RxBonjour.Builder#discoverOnAllInterfaces()
+ */
 data class BonjourService(
     val type: String,
     val name: String,
     val v4Host: Inet4Address?,
     val v6Host: Inet6Address?,
     val port: Int,
-    val txtRecords: TxtRecords = emptyMap()) {
+    val txtRecords: TxtRecords = emptyMap(),
+    val interfaces: Set<String> = emptySet()) {
 
   val host: InetAddress? = v4Host ?: v6Host
 }
 
+/**
+ * Identity of a service across events, regardless of its current address & records.
+ * Drivers don't always spell the same type the same way, so it's normalized first
+ */
+internal data class ServiceKey(val type: String, val name: String)
+
+internal fun BonjourService.key() = ServiceKey(type.toTypeKey(), name)
+
 sealed class BonjourEvent(val service: BonjourService) {
   class Added(service: BonjourService) : BonjourEvent(service)
   class Removed(service: BonjourService) : BonjourEvent(service)
 
+  /** A known service was resolved again with a different address, port or TXT records */
+  class Updated(val previous: BonjourService, service: BonjourService) : BonjourEvent(service)
+
+  /**
+   * A service was found, but hasn't been resolved yet. Emitted by lazy discoveries only,
+   * its service carries nothing but the type & name. Use RxBonjour#resolve() to obtain the rest.
+   */
+  class Found(type: String, name: String)
+    : BonjourEvent(BonjourService(type, name, null, null, UNRESOLVED_PORT))
+
   override fun toString(): String = "BonjourEvent{${javaClass.simpleName}: $service}"
 }
@@ -0,0 +1,192 @@
+package de.mannodermaus.rxbonjour
+
+private val BITS_PER_LEVEL = 5
+private val LEVEL_MASK = (1 shl BITS_PER_LEVEL) - 1
+private val MAX_SHIFT = 32
+
+/**
+ * Immutable hash map based on a hash array mapped trie.
+ * Updates copy only the path from the root to the affected entry,
+ * so that they run in O(log32 n) and share everything else with the previous version.
+ */
+internal class PersistentMap<K : Any, V : Any> private constructor(
+    private val root: Node<K, V>?,
+    val size: Int) {
+
+  operator fun get(key: K): V? = root?.get(key, key.hashCode(), 0)
+
+  fun put(key: K, value: V): PersistentMap<K, V> {
+    val previous = get(key)
+    if (previous == value) return this
+
+    val hash = key.hashCode()
+    val entry = Entry(hash, key, value)
+    val root = root?.put(entry, 0) ?: BitmapNode<K, V>(0, arrayOfNulls(0)).put(entry, 0)
+    return PersistentMap(root, if (previous == null) size + 1 else size)
+  }
+
+  fun remove(key: K): PersistentMap<K, V> {
+    val root = root ?: return this
+    if (get(key) == null) return this
+    return PersistentMap(root.remove(key, key.hashCode(), 0), size - 1)
+  }
+
+  fun isEmpty() = size == 0
+
+  fun values(): List<V> {
+    val values = ArrayList<V>(size)
+    root?.collect(values)
+    return values
+  }
+
+  companion object {
+    private val EMPTY = PersistentMap<Any, Any>(null, 0)
+
+    @Suppress("UNCHECKED_CAST")
+    fun <K : Any, V : Any> empty() = EMPTY as PersistentMap<K, V>
+
+    /** Creates the smallest subtree that tells two entries with different keys apart */
+    private fun <K, V> merge(first: Entry<K, V>, second: Entry<K, V>, shift: Int): Node<K, V> {
+      if (shift >= MAX_SHIFT) return CollisionNode(listOf(first, second))
+
+      val firstIndex = slotFor(first.hash, shift)
+      val secondIndex = slotFor(second.hash, shift)
+      return when {
+        firstIndex == secondIndex -> BitmapNode(1 shl firstIndex,
+            arrayOf<Any?>(merge(first, second, shift + BITS_PER_LEVEL)))
+        firstIndex < secondIndex -> BitmapNode((1 shl firstIndex) or (1 shl secondIndex),
+            arrayOf<Any?>(first, second))
+        else -> BitmapNode((1 shl firstIndex) or (1 shl secondIndex),
+            arrayOf<Any?>(second, first))
+      }
+    }
+
+    private fun slotFor(hash: Int, shift: Int) = (hash ushr shift) and LEVEL_MASK
+
+    private fun bitFor(hash: Int, shift: Int) = 1 shl slotFor(hash, shift)
+  }
+
+  /* Nodes */
+
+  private class Entry<out K, out V>(val hash: Int, val key: K, val value: V)
+
+  private abstract class Node<K, V> {
+    abstract fun get(key: K, hash: Int, shift: Int): V?
+    abstract fun put(entry: Entry<K, V>, shift: Int): Node<K, V>
+    /** Returns null when the last entry of the node was removed */
+    abstract fun remove(key: K, hash: Int, shift: Int): Node<K, V>?
+    /** Returns the only entry of the node, if there is just one, so that parents can inline it */
+    abstract fun singleEntry(): Entry<K, V>?
+    abstract fun collect(into: MutableList<V>)
+  }
+
+  /** Node with up to 32 slots, each holding either an entry or a child node */
+  @Suppress("UNCHECKED_CAST")
+  private class BitmapNode<K, V>(
+      private val bitmap: Int,
+      private val slots: Array<Any?>) : Node<K, V>() {
+
+    override fun get(key: K, hash: Int, shift: Int): V? {
+      val bit = bitFor(hash, shift)
+      if (bitmap and bit == 0) return null
+
+      val slot = slots[indexOf(bit)]
+      return when (slot) {
+        is Entry<*, *> -> if (slot.key == key) slot.value as V else null
+        else -> (slot as Node<K, V>).get(key, hash, shift + BITS_PER_LEVEL)
+      }
+    }
+
+    override fun put(entry: Entry<K, V>, shift: Int): Node<K, V> {
+      val bit = bitFor(entry.hash, shift)
+      val index = indexOf(bit)
+      if (bitmap and bit == 0) {
+        return BitmapNode(bitmap or bit, slots.inserting(index, entry))
+      }
+
+      val slot = slots[index]
+      val replacement = when (slot) {
+        is Entry<*, *> ->
+          if (slot.key == entry.key) entry
+          else merge(slot as Entry<K, V>, entry, shift + BITS_PER_LEVEL)
+        else -> (slot as Node<K, V>).put(entry, shift + BITS_PER_LEVEL)
+      }
+      return BitmapNode(bitmap, slots.replacing(index, replacement))
+    }
+
+    override fun remove(key: K, hash: Int, shift: Int): Node<K, V>? {
+      val bit = bitFor(hash, shift)
+      if (bitmap and bit == 0) return this
+
+      val index = indexOf(bit)
+      val slot = slots[index]
+      if (slot is Entry<*, *>) {
+        if (slot.key != key) return this
+        if (bitmap == bit) return null
+        return BitmapNode(bitmap and bit.inv(), slots.removing(index))
+      }
+
+      val child = (slot as Node<K, V>).remove(key, hash, shift + BITS_PER_LEVEL)
+      return when {
+        child == null && bitmap == bit -> null
+        child == null -> BitmapNode(bitmap and bit.inv(), slots.removing(index))
+        else -> BitmapNode(bitmap, slots.replacing(index, child.singleEntry() ?: child))
+      }
+    }
+
+    override fun singleEntry(): Entry<K, V>? =
+        if (slots.size == 1) slots[0] as? Entry<K, V> else null
+
+    override fun collect(into: MutableList<V>) {
+      slots.forEach {
+        if (it is Entry<*, *>) into.add(it.value as V) else (it as Node<K, V>).collect(into)
+      }
+    }
+
+    private fun indexOf(bit: Int) = Integer.bitCount(bitmap and (bit - 1))
+  }
+
+  /** Node for entries whose keys share the entire hash code */
+  private class CollisionNode<K, V>(private val entries: List<Entry<K, V>>) : Node<K, V>() {
+
+    override fun get(key: K, hash: Int, shift: Int): V? =
+        entries.firstOrNull { it.key == key }?.value
+
+    override fun put(entry: Entry<K, V>, shift: Int): Node<K, V> =
+        CollisionNode(entries.filter { it.key != entry.key } + entry)
+
+    override fun remove(key: K, hash: Int, shift: Int): Node<K, V>? {
+      val remaining = entries.filter { it.key != key }
+      return if (remaining.isEmpty()) null else CollisionNode(remaining)
+    }
+
+    override fun singleEntry(): Entry<K, V>? = entries.singleOrNull()
+
+    override fun collect(into: MutableList<V>) {
+      entries.forEach { into.add(it.value) }
+    }
+  }
+}
+
+/* Extension Functions */
+
+private fun Array<Any?>.inserting(index: Int, value: Any?): Array<Any?> {
+  val copy = arrayOfNulls<Any>(size + 1)
+  System.arraycopy(this, 0, copy, 0, index)
+  copy[index] = value
+  System.arraycopy(this, index, copy, index + 1, size - index)
+  return copy
+}
+
+private fun Array<Any?>.replacing(index: Int, value: Any?): Array<Any?> {
+  val copy = copyOf()
+  copy[index] = value
+  return copy
+}
+
+private fun Array<Any?>.removing(index: Int): Array<Any?> {
+  val copy = arrayOfNulls<Any>(size - 1)
+  System.arraycopy(this, 0, copy, 0, index)
+  System.arraycopy(this, index + 1, copy, index, size - index - 1)
+  return copy
+}
@@ -7,9 +7,26 @@ interface Platform {
   fun getWifiAddress(): InetAddress
   fun runOnTeardown(action: () -> Unit): Disposable?
   fun createConnection(): PlatformConnection
+
+  /**
+   * Network interfaces which are up & capable of multicast, for discoveries across all of them.
+   * Platforms unable to enumerate their interfaces return an empty list,
+   * in which case discoveries fall back to getWifiAddress().
+   */
+  fun getMulticastInterfaces(): List<MulticastInterface> = emptyList()
 }
 
 interface PlatformConnection {
   fun initialize()
   fun teardown()
 }
+
+/**
+ * A network interface able to send & receive multicast packets.
+ *
+ * @property name     Name of the interface, e.g. "eth0"
+ * @property address  Address of the interface that engines bind to
+ */
+data class MulticastInterface(
+    val name: String,
+    val address: InetAddress)
@@ -3,12 +3,24 @@
 package de.mannodermaus.rxbonjour
 
 import io.reactivex.Completable
+import io.reactivex.Flowable
 import io.reactivex.Observable
+import io.reactivex.Scheduler
+import io.reactivex.Single
+import io.reactivex.schedulers.Schedulers
+import java.net.InetAddress
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 /* Extensions & Constants */
 
 private val TYPE_PATTERN = Regex("_[a-zA-Z0-9\\-_]+\\.(_tcp|_udp)(\\.[a-zA-Z0-9\\-]+\\.)?")
 
+private val LOCAL_DOMAIN_SUFFIX = ".local"
+
+// TTL of host records recommended by RFC 6762, used when drivers can't report one
+private val DEFAULT_CACHE_TTL_SECONDS = 120L
+
 /* Classes */
 
 /**
@@ -19,7 +31,22 @@ private val TYPE_PATTERN = Regex("_[a-zA-Z0-9\\-_]+\\.(_tcp|_udp)(\\.[a-zA-Z0-9\
  */
 class RxBonjour private constructor(
     private val platform: Platform,
-    private val driver: Driver) {
+    private val driver: Driver,
+    sharing: SharingConfig?,
+    caching: CachingConfig?,
+    private val scheduling: SchedulingConfig?,
+    private val metrics: BonjourMetrics,
+    private val trace: BonjourTrace?,
+    private val allInterfaces: Boolean) {
+
+  private val metered = metrics !== BonjourMetrics.NONE
+  private val meter = EngineMeter(metrics)
+
+  private val cache = caching?.let { ServiceCache(it.defaultTtl, it.unit, it.scheduler) }
+
+  private val sharedDiscoveries = sharing?.let {
+    SharedDiscoveries(it.gracePeriod, it.unit, it.scheduler, this::createDiscovery)
+  }
 
   /**
    * Starts a Bonjour service discovery for the provided service type with the given {@link Driver}.
@@ -30,60 +57,465 @@ class RxBonjour private constructor(
    * it is highly encouraged to verify this input
    * using {@link #isBonjourType(String)} <b>before</b> calling this method!
    *
+   * <p>
+   * If the instance was built with {@link Builder#shareDiscoveries(Long, TimeUnit, Scheduler)},
+   * all subscribers to the same type are served by a single discovery,
+   * and subscribers arriving late will immediately receive the services known up to that point.
+   * <p>
+   * If the instance was built with {@link Builder#cacheServices(Long, TimeUnit, Scheduler)},
+   * services resolved by earlier discoveries are emitted right away, until they expire.
+   * <p>
+   * If the instance was built with {@link Builder#discoverOnAllInterfaces()},
+   * the discovery runs on every multicast-capable network interface of the platform.
+   *
    * @param type    Type of service to discover
    * @return An {@link Observable} of {@link BonjourEvent}s for the specific type
    */
   fun newDiscovery(type: String): Observable<BonjourEvent> =
       if (type.isBonjourType()) {
-        // New Discovery request for the Driver
+        sharedDiscoveries?.get(type) ?: createDiscovery(type)
+
+      } else {
+        // Not a Bonjour type
+        Observable.error(IllegalBonjourTypeException(type))
+      }
+
+  /**
+   * Starts a Bonjour service discovery for the provided service type, like newDiscovery() does,
+   * but resolves the services found with a higher priority first.
+   * This is useful when only some of many services are of interest right away,
+   * e.g. those matching a search query. Drivers which don't resolve services
+   * in a queue ignore the priority.
+   * <p>
+   * Since its resolve order is specific to the caller, this discovery is never shared,
+   * even if the instance was built with {@link Builder#shareDiscoveries(Long, TimeUnit, Scheduler)}.
+   *
+   * @param type      Type of service to discover
+   * @param priority  Ranking of services which haven't been resolved yet
+   * @return An {@link Observable} of {@link BonjourEvent}s for the specific type
+   */
+  fun newDiscovery(type: String, priority: ResolvePriority): Observable<BonjourEvent> =
+      if (type.isBonjourType()) {
         val discovery = driver.createDiscovery(type)
-        val connection = platform.createConnection()
-
-        Observable.defer<BonjourEvent> {
-          Observable.create { emitter ->
-            // Initialization
-            discovery.initialize()
-            connection.initialize()
-
-            // Destruction
-            val disposable = platform.runOnTeardown {
-              discovery.teardown()
-              connection.teardown()
-            }
-            emitter.setDisposable(disposable)
+        (discovery as? PrioritizedDiscoveryEngine)?.setResolvePriority(priority)
+        createDiscovery(discovery, listOf(type), tagServices = false)
 
-            // Lifetime
-            val callback = object : DiscoveryCallback {
-              override fun discoveryFailed(cause: Exception?) {
-                // Abort stream
-                emitter.onError(DiscoveryFailedException(driver.name, cause))
-              }
+      } else {
+        // Not a Bonjour type
+        Observable.error(IllegalBonjourTypeException(type))
+      }
 
-              override fun serviceResolved(service: BonjourService) {
-                // Convert to event
-                emitter.onNext(BonjourEvent.Added(service))
-              }
+  /**
+   * Starts a Bonjour service discovery for the provided service type, which doesn't resolve
+   * the services it finds. Instead, it emits a {@link BonjourEvent.Found} for each of them
+   * right away, which can be resolved on demand using {@link #resolve(BonjourEvent.Found)}.
+   * This saves a lot of network traffic if only a few of many services are of interest.
+   * Lost services are still reported through {@link BonjourEvent.Removed}.
+   * <p>
+   * Drivers which can't skip resolution still resolve every service,
+   * but the stream only reports them as found nonetheless.
+   * Lazy discoveries are neither shared nor backed by the cache.
+   *
+   * @param type    Type of service to discover
+   * @return An {@link Observable} of {@link BonjourEvent}s for the specific type
+   */
+  fun newLazyDiscovery(type: String): Observable<BonjourEvent> =
+      if (type.isBonjourType()) {
+        val discovery = driver.createDiscovery(type)
+        (discovery as? LazyDiscoveryEngine)?.setResolveLazily(true)
+        createDiscovery(discovery, listOf(type), tagServices = true, lazy = true)
 
-              override fun serviceLost(service: BonjourService) {
-                // Convert to event
-                emitter.onNext(BonjourEvent.Removed(service))
-              }
+      } else {
+        // Not a Bonjour type
+        Observable.error(IllegalBonjourTypeException(type))
+      }
+
+  /**
+   * Resolves a service found by a lazy discovery.
+   * <p>
+   * If the driver can't resolve single services, this runs a discovery for the service's type
+   * until the service is resolved. Either way, consider applying a timeout to the returned
+   * {@link Single}, in case the service disappears in the meantime.
+   *
+   * @param found   Event of the service to resolve
+   * @return A {@link Single} of the resolved service
+   */
+  fun resolve(found: BonjourEvent.Found): Single<BonjourService> {
+    val type = found.service.type
+    val name = found.service.name
+    val driver = driver
+
+    return if (driver is ResolvingDriver) {
+      createResolve(driver.createResolve(), type, name)
+
+    } else {
+      // Fall back to a regular discovery
+      newDiscovery(type)
+          .filter { it !is BonjourEvent.Removed && it.service.name == name }
+          .map { it.service.copy(type = type) }
+          .firstOrError()
+    }
+  }
+
+  /**
+   * Starts a Bonjour service discovery for several service types at once.
+   * <p>
+   * If the driver's engines support it, all types are browsed by a single engine,
+   * which can combine their queries. Otherwise, this falls back to one discovery per type.
+   * Either way, the type of each event's service is replaced with the requested type
+   * it was discovered for, so that events can be told apart by type.
+   * <p>
+   * The stream will immediately end with an {@link IllegalBonjourTypeException}
+   * if any of the input types does not obey Bonjour type specifications.
+   *
+   * @param types   Types of service to discover
+   * @return An {@link Observable} of {@link BonjourEvent}s for all of the types
+   */
+  fun newDiscovery(types: Collection<String>): Observable<BonjourEvent> {
+    val distinctTypes = types.distinct()
+    val invalidType = distinctTypes.firstOrNull { !it.isBonjourType() }
+
+    return when {
+      // Not a Bonjour type
+      invalidType != null -> Observable.error(IllegalBonjourTypeException(invalidType))
+      distinctTypes.isEmpty() -> Observable.empty()
+      else -> createMultiTypeDiscovery(distinctTypes)
+    }
+  }
+
+  /**
+   * Starts a Bonjour service discovery for the provided service type, like newDiscovery() does,
+   * but for subscribers which may fall behind the rate of events,
+   * e.g. during a burst of announcements.
+   * Events that haven't been requested yet are held according to the given strategy,
+   * so that memory stays bounded no matter how slow the subscriber is.
+   *
+   * @param type      Type of service to discover
+   * @param strategy  Strategy for holding on to events that haven't been requested yet
+   * @return A {@link Flowable} of {@link BonjourEvent}s for the specific type
+   */
+  fun newDiscoveryFlowable(type: String, strategy: DiscoveryBackpressure): Flowable<BonjourEvent> =
+      DiscoveryFlowable(newDiscovery(type), strategy)
+
+  /**
+   * Backpressure-aware variant of newDiscovery() for several service types at once.
+   *
+   * @param types     Types of service to discover
+   * @param strategy  Strategy for holding on to events that haven't been requested yet
+   * @return A {@link Flowable} of {@link BonjourEvent}s for all of the types
+   */
+  fun newDiscoveryFlowable(types: Collection<String>,
+      strategy: DiscoveryBackpressure): Flowable<BonjourEvent> =
+      DiscoveryFlowable(newDiscovery(types), strategy)
+
+  /**
+   * Starts a Bonjour service discovery for the provided service type, like newDiscovery() does,
+   * but keeps track of the discovered services itself.
+   * <p>
+   * The stream starts with an empty snapshot, and emits a new one whenever a service
+   * is added, removed or changed. Each snapshot carries the changes since the previous one,
+   * and shares its structure with it, so that large sets don't need to be copied for every event.
+   *
+   * @param type    Type of service to discover
+   * @return An {@link Observable} of {@link ServiceSet}s for the specific type
+   */
+  fun newServiceSet(type: String): Observable<ServiceSet> =
+      newDiscovery(type).toServiceSets()
+
+  /**
+   * Variant of newServiceSet() for several service types at once.
+   *
+   * @param types   Types of service to discover
+   * @return An {@link Observable} of {@link ServiceSet}s for all of the types
+   */
+  fun newServiceSet(types: Collection<String>): Observable<ServiceSet> =
+      newDiscovery(types).toServiceSets()
+
+  private fun createDiscovery(type: String): Observable<BonjourEvent> =
+      if (allInterfaces) {
+        createInterfaceDiscovery(type)
+      } else {
+        // New Discovery request for the Driver
+        createDiscovery(driver.createDiscovery(type), listOf(type), tagServices = false)
+      }
+
+  private fun createInterfaceDiscovery(type: String): Observable<BonjourEvent> =
+      Observable.defer<BonjourEvent> {
+        val interfaces = platform.getMulticastInterfaces()
+        if (interfaces.size <= 1) {
+          // Nothing to fan out to
+          createDiscovery(driver.createDiscovery(type), listOf(type), tagServices = false,
+              address = interfaces.firstOrNull()?.address)
+
+        } else {
+          // One engine per interface, merging their results by type & name.
+          // The engines only fill the cache, which is replayed once for all of them
+          val merger = InterfaceMerger()
+          Observable.merge(interfaces.map { networkInterface ->
+            createDiscovery(driver.createDiscovery(type), listOf(type), tagServices = false,
+                address = networkInterface.address, replayCache = false)
+                .map { event -> Pair(networkInterface.name, event) }
+          }).concatMapIterable { (name, event) -> merger.merge(name, event) }
+              .replayingCache(type)
+        }
+      }
+
+  /** Emits the cached services of the given type up-front, to be confirmed by the events */
+  private fun Observable<BonjourEvent>.replayingCache(type: String): Observable<BonjourEvent> {
+    val cache = cache ?: return this
+    return Observable.create { emitter ->
+      val tracker = ServiceTracker(emitter)
+      val replay = cache.replay(type, tracker, store = false)
+      replay.start()
+
+      val upstream = subscribe({ event ->
+        when (event) {
+          is BonjourEvent.Removed -> replay.lost(event.service)
+          is BonjourEvent.Found -> tracker.found(event.service.type, event.service.name)
+          else -> replay.resolved(event.service)
+        }
+      }, { emitter.onError(it) })
+      emitter.setCancellable {
+        upstream.dispose()
+        replay.dispose()
+      }
+    }
+  }
+
+  private fun createMultiTypeDiscovery(types: List<String>): Observable<BonjourEvent> =
+      Observable.defer<BonjourEvent> {
+        val driver = driver
+        if (driver is MultiTypeDriver) {
+          createDiscovery(driver.createDiscovery(types.first()), types, tagServices = true)
+
+        } else {
+          // Driver can't handle more than one type per engine
+          Observable.merge(types.map { type -> newDiscovery(type).map { it.withType(type) } })
+        }
+      }
+
+  private fun createDiscovery(discovery: DiscoveryEngine, types: List<String>,
+      tagServices: Boolean, lazy: Boolean = false, address: InetAddress? = null,
+      replayCache: Boolean = true): Observable<BonjourEvent> =
+      tracedDiscovery(types) { stream ->
+        createDiscovery(discovery, types, tagServices, lazy, address, replayCache, stream)
+      }
+
+  private fun createDiscovery(discovery: DiscoveryEngine, types: List<String>,
+      tagServices: Boolean, lazy: Boolean, address: InetAddress?, replayCache: Boolean,
+      stream: StreamTrace?): Observable<BonjourEvent> {
+    val connection = platform.createConnection()
+    val lifecycle = meter.lifecycleOf(discovery)
+
+    return Observable.defer<BonjourEvent> {
+      // The engine is only started once it's initialized
+      lifecycle.initializeAsync().andThen(Observable.create<BonjourEvent> { emitter ->
+        // Initialization
+        stream?.record(TraceStage.ENGINE_INITIALIZED)
+        connection.initialize()
+        if (discovery is MultiTypeDiscoveryEngine) {
+          types.drop(1).forEach { discovery.addType(it) }
+        }
+
+        // Cached services, if enabled
+        val tracker = ServiceTracker(emitter)
+        val replays = types.associate { Pair(it, if (lazy) null else cache?.replay(it, tracker)) }
+
+        // Destruction
+        val disposable = runOnTeardown {
+          stream?.record(TraceStage.STREAM_DISPOSED)
+          lifecycle.teardownAsync().onErrorComplete().subscribe()
+          connection.teardown()
+          replays.values.forEach { it?.dispose() }
+        }
+        emitter.setDisposable(disposable)
+
+        // Lifetime
+        val callback = object : DiscoveryCallback {
+          // Measured only if anybody is interested
+          private val discoverStart = if (metered) System.nanoTime() else 0L
+          private val firstResolved = if (metered) AtomicBoolean() else null
+
+          override fun discoveryFailed(cause: Exception?) {
+            // Abort stream
+            stream?.record(TraceStage.FAILED, cause)
+            emitter.onError(DiscoveryFailedException(driver.name, cause))
+          }
+
+          override fun serviceResolved(service: BonjourService) {
+            resolve(service, null, null)
+          }
+
+          override fun serviceResolved(service: BonjourService, ttl: Long, unit: TimeUnit) {
+            resolve(service, ttl, unit)
+          }
+
+          override fun serviceFound(type: String, name: String) {
+            val requestedType = typeOf(type) ?: return
+            tracker.found(if (tagServices) requestedType else type, name)
+          }
+
+          override fun serviceLost(service: BonjourService) {
+            // Convert to event
+            val type = typeOf(service) ?: return
+            stream?.record(TraceStage.SERVICE_LOST, service.name)
+            val tagged = if (tagServices) service.copy(type = type) else service
+            val replay = replays[type]
+            if (replay != null) {
+              replay.lost(tagged)
+            } else {
+              tracker.lost(tagged)
+            }
+          }
+
+          private fun resolve(service: BonjourService, ttl: Long?, unit: TimeUnit?) {
+            if (lazy) {
+              // Engine couldn't skip the resolve, so pretend it didn't happen
+              serviceFound(service.type, service.name)
+              return
+            }
+
+            // Convert to event
+            val type = typeOf(service) ?: return
+            stream?.record(TraceStage.SERVICE_RESOLVED, service.name)
+            if (firstResolved?.compareAndSet(false, true) == true) {
+              metrics.firstServiceResolved(type, System.nanoTime() - discoverStart)
             }
 
-            try {
-              val address = platform.getWifiAddress()
-              discovery.discover(address, callback)
-            } catch (ex: Exception) {
-              callback.discoveryFailed(ex)
+            val tagged = if (tagServices) service.copy(type = type) else service
+            val replay = replays[type]
+            when {
+              replay == null -> tracker.resolved(tagged)
+              ttl != null && unit != null -> replay.resolved(tagged, ttl, unit)
+              else -> replay.resolved(tagged)
             }
           }
+
+          override fun resolveCompleted(type: String, name: String, latencyNanos: Long) {
+            stream?.record(TraceStage.RESOLVE_COMPLETED, name)
+            metrics.serviceResolved(typeOf(type) ?: type, name, latencyNanos)
+          }
+
+          override fun resolveFailed(type: String, name: String, cause: Exception?) {
+            stream?.record(TraceStage.RESOLVE_FAILED, name)
+            metrics.resolveFailed(typeOf(type) ?: type, name, cause)
+          }
+
+          override fun trace(stage: TraceStage, detail: Any?) {
+            stream?.record(stage, detail)
+          }
+
+          private fun typeOf(service: BonjourService) = typeOf(service.type)
+
+          private fun typeOf(type: String): String? =
+              if (types.size == 1) {
+                types[0]
+              } else {
+                // Drivers may report types in a different format
+                val key = type.toTypeKey()
+                types.firstOrNull { it.toTypeKey() == key }
+              }
+        }
+
+        try {
+          if (replayCache) replays.values.forEach { it?.start() }
+          val engineAddress = address ?: platform.getWifiAddress()
+          stream?.record(TraceStage.ADDRESS_RESOLVED, engineAddress)
+          stream?.record(TraceStage.ENGINE_STARTED)
+          discovery.discover(engineAddress, callback)
+        } catch (ex: Exception) {
+          callback.discoveryFailed(ex)
+        }
+      })
+    }.metered(types).onSchedulers()
+  }
+
+  private fun createResolve(resolve: ResolveEngine, type: String,
+      name: String): Single<BonjourService> {
+    val connection = platform.createConnection()
+    val lifecycle = meter.lifecycleOf(resolve)
+
+    return Single.defer<BonjourService> {
+      // The engine is only started once it's initialized
+      lifecycle.initializeAsync().andThen(Single.create<BonjourService> { emitter ->
+        // Initialization
+        connection.initialize()
+
+        // Destruction
+        val disposable = runOnTeardown {
+          lifecycle.teardownAsync().onErrorComplete().subscribe()
+          connection.teardown()
+        }
+        emitter.setDisposable(disposable)
+
+        // Lifetime
+        val callback = object : ResolveCallback {
+          private val start = if (metered) System.nanoTime() else 0L
+
+          override fun resolveFailed(cause: Exception?) {
+            metrics.resolveFailed(type, name, cause)
+            emitter.onError(ResolveFailedException(driver.name, cause))
+          }
+
+          override fun serviceResolved(service: BonjourService) {
+            if (metered) metrics.serviceResolved(type, name, System.nanoTime() - start)
+
+            // Keep the type in the format it was found with
+            emitter.onSuccess(service.copy(type = type))
+          }
+        }
+
+        try {
+          val address = platform.getWifiAddress()
+          resolve.resolve(address, type, name, callback)
+        } catch (ex: Exception) {
+          callback.resolveFailed(ex)
         }
+      })
+    }.onSchedulers()
+  }
+
+  // Teardown may block, so it's moved to the I/O scheduler if the instance has one
+  private fun runOnTeardown(action: () -> Unit) =
+      platform.runOnTeardown {
+        val io = scheduling?.io
+        if (io != null) io.scheduleDirect { action() } else action()
+      }
+
+  // Streams are only traced if anybody is interested, every subscription with an ID of its own
+  private fun tracedDiscovery(subject: Any,
+      create: (StreamTrace?) -> Observable<BonjourEvent>): Observable<BonjourEvent> {
+    val trace = trace ?: return create(null)
+    return Observable.defer<BonjourEvent> {
+      val stream = trace.startStream(subject)
+      create(stream).doOnNext { stream.record(TraceStage.EVENT_DELIVERED, it) }
+    }
+  }
+
+  private fun tracedBroadcast(subject: Any, create: (StreamTrace?) -> Completable): Completable {
+    val trace = trace ?: return create(null)
+    return Completable.defer { create(trace.startStream(subject)) }
+  }
 
+  // Events are only intercepted if anybody is interested
+  private fun Observable<BonjourEvent>.metered(types: List<String>): Observable<BonjourEvent> =
+      if (metered) {
+        this.doOnNext {
+          metrics.eventEmitted(if (types.size == 1) types[0] else it.service.type, it)
+        }
       } else {
-        // Not a Bonjour type
-        Observable.error(IllegalBonjourTypeException(type))
+        this
       }
 
+  private fun <T> Observable<T>.onSchedulers(): Observable<T> =
+      scheduling?.let { this.subscribeOn(it.io).observeOn(it.eventLoop) } ?: this
+
+  private fun <T> Single<T>.onSchedulers(): Single<T> =
+      scheduling?.let { this.subscribeOn(it.io).observeOn(it.eventLoop) } ?: this
+
+  private fun Completable.onSchedulers(): Completable =
+      scheduling?.let { this.subscribeOn(it.io).observeOn(it.eventLoop) } ?: this
+
   /**
    * Starts a Bonjour service broadcast with the given configuration.
    * <p>
@@ -105,35 +537,10 @@ class RxBonjour private constructor(
       if (config.type.isBonjourType()) {
         // New Broadcast request for the Driver
         val broadcast = driver.createBroadcast()
-        val connection = platform.createConnection()
-
-        Completable.defer {
-          Completable.create { emitter ->
-            // Initialization
-            broadcast.initialize()
-            connection.initialize()
-
-            // Destruction
-            val disposable = platform.runOnTeardown {
-              broadcast.teardown()
-              connection.teardown()
-            }
-            emitter.setDisposable(disposable)
-
-            // Lifetime
-            val callback = object : BroadcastCallback {
-              override fun broadcastFailed(cause: Exception?) {
-                emitter.onError(BroadcastFailedException(driver.name, cause))
-              }
-            }
-
-            try {
-              val address = config.address ?: platform.getWifiAddress()
-              broadcast.start(address, config, callback)
-            } catch (ex: Exception) {
-              callback.broadcastFailed(ex)
-            }
-          }
+        createBroadcast(broadcast, config.type) { callback ->
+          val address = config.address ?: platform.getWifiAddress()
+          callback.trace(TraceStage.ADDRESS_RESOLVED, address)
+          broadcast.start(address, config, callback)
         }
 
       } else {
@@ -141,6 +548,120 @@ class RxBonjour private constructor(
         Completable.error(IllegalBonjourTypeException(config.type))
       }
 
+  /**
+   * Prepares a Bonjour service broadcast with the given configuration,
+   * whose TXT records can be changed while it's running. Use the returned handle's
+   * {@link BonjourBroadcast#getCompletable()} to start the broadcast,
+   * and {@link BonjourBroadcast#updateTxtRecords(Map)} to change its records.
+   * <p>
+   * The handle's stream behaves like the one returned by {@link #newBroadcast(BonjourBroadcastConfig)}.
+   *
+   * @param config    Configuration of the service to advertise
+   * @return A handle to the broadcast
+   */
+  fun newUpdatableBroadcast(config: BonjourBroadcastConfig): BonjourBroadcast =
+      BonjourBroadcast(config.txtRecords ?: emptyMap()) { attach ->
+        if (config.type.isBonjourType()) {
+          val broadcast = driver.createBroadcast()
+          createBroadcast(broadcast, config.type) { callback ->
+            val address = config.address ?: platform.getWifiAddress()
+            callback.trace(TraceStage.ADDRESS_RESOLVED, address)
+
+            // Use the latest records, which may have changed since the handle was created
+            val txtRecords = attach(broadcast)
+            broadcast.start(address, config.copy(txtRecords = txtRecords), callback)
+          }
+
+        } else {
+          // Not a Bonjour type
+          Completable.error(IllegalBonjourTypeException(config.type))
+        }
+      }
+
+  /**
+   * Starts a Bonjour service broadcast for several services at once.
+   * <p>
+   * If the driver's engines support it, all services are advertised by a single engine,
+   * which aggregates their probes & announcements into as few packets as possible.
+   * Otherwise, this falls back to one broadcast per service.
+   * Either way, the broadcasts of all services end together, like those of a single one do.
+   * <p>
+   * The stream will immediately end with an {@link IllegalBonjourTypeException}
+   * if any of the configurations' types does not obey Bonjour type specifications.
+   *
+   * @param configs   Configurations of the services to advertise
+   * @return A {@link Completable} holding the state of the broadcasts, valid until unsubscription
+   */
+  fun newBroadcast(configs: Collection<BonjourBroadcastConfig>): Completable {
+    val invalidConfig = configs.firstOrNull { !it.type.isBonjourType() }
+
+    return when {
+      // Not a Bonjour type
+      invalidConfig != null -> Completable.error(IllegalBonjourTypeException(invalidConfig.type))
+      configs.isEmpty() -> Completable.complete()
+      // Driver can't handle more than one service per engine
+      driver !is MultiServiceBroadcastDriver -> Completable.merge(configs.map { newBroadcast(it) })
+      else -> Completable.defer {
+        val broadcast = driver.createBroadcast()
+        createBroadcast(broadcast, configs.map { it.type }) { callback ->
+          val address = platform.getWifiAddress()
+          callback.trace(TraceStage.ADDRESS_RESOLVED, address)
+          broadcast.start(address, configs.toList(), callback)
+        }
+      }
+    }
+  }
+
+  private fun createBroadcast(broadcast: BroadcastEngine, subject: Any,
+      start: (BroadcastCallback) -> Unit): Completable =
+      tracedBroadcast(subject) { stream -> createBroadcast(broadcast, stream, start) }
+
+  private fun createBroadcast(broadcast: BroadcastEngine, stream: StreamTrace?,
+      start: (BroadcastCallback) -> Unit): Completable {
+    val connection = platform.createConnection()
+    val lifecycle = meter.lifecycleOf(broadcast)
+
+    return Completable.defer {
+      // The engine is only started once it's initialized
+      lifecycle.initializeAsync().andThen(Completable.create { emitter ->
+        // Initialization
+        stream?.record(TraceStage.ENGINE_INITIALIZED)
+        connection.initialize()
+
+        // Destruction
+        val disposable = runOnTeardown {
+          stream?.record(TraceStage.STREAM_DISPOSED)
+          lifecycle.teardownAsync().onErrorComplete().subscribe()
+          connection.teardown()
+        }
+        emitter.setDisposable(disposable)
+
+        // Lifetime
+        val callback = object : BroadcastCallback {
+          override fun broadcastFailed(cause: Exception?) {
+            stream?.record(TraceStage.FAILED, cause)
+            emitter.onError(BroadcastFailedException(driver.name, cause))
+          }
+
+          override fun broadcastRegistered(type: String, name: String, latencyNanos: Long) {
+            stream?.record(TraceStage.SERVICE_REGISTERED, name)
+            metrics.broadcastRegistered(type, name, latencyNanos)
+          }
+
+          override fun trace(stage: TraceStage, detail: Any?) {
+            stream?.record(stage, detail)
+          }
+        }
+
+        try {
+          start(callback)
+        } catch (ex: Exception) {
+          callback.broadcastFailed(ex)
+        }
+      })
+    }.onSchedulers()
+  }
+
   /**
    * Configuration and Creation of RxBonjour instances.
    * Supply a Platform & a Driver to the Builder (provided by separate artifacts)
@@ -149,18 +670,126 @@ class RxBonjour private constructor(
   class Builder {
     private var platform: Platform? = null
     private var driver: Driver? = null
+    private var sharing: SharingConfig? = null
+    private var caching: CachingConfig? = null
+    private var scheduling: SchedulingConfig? = null
+    private var metrics: BonjourMetrics = BonjourMetrics.NONE
+    private var trace: BonjourTrace? = null
+    private var allInterfaces = false
 
     fun platform(platform: Platform) = also { this.platform = platform }
     fun driver(driver: Driver) = also { this.driver = driver }
 
+    /**
+     * Opt into shared discoveries: subscribers to the same service type share one discovery,
+     * which is torn down once the last subscriber is gone and the grace period has passed.
+     *
+     * @param gracePeriod Time to keep an unobserved discovery alive, waiting for new subscribers
+     * @param unit        Unit of the grace period
+     * @param scheduler   Scheduler on which the delayed teardown is executed
+     */
+    @JvmOverloads
+    fun shareDiscoveries(gracePeriod: Long = 0L, unit: TimeUnit = TimeUnit.MILLISECONDS,
+        scheduler: Scheduler = Schedulers.computation()) = also {
+      require(gracePeriod >= 0L, { "The grace period for shared discoveries can't be negative" })
+      this.sharing = SharingConfig(gracePeriod, unit, scheduler)
+    }
+
+    /**
+     * Opt into caching of resolved services: new discoveries immediately emit the services
+     * resolved by earlier ones, before live results arrive. Cached services expire after
+     * the time-to-live reported by the driver, or the default TTL if the driver doesn't know it.
+     *
+     * @param defaultTtl  Time-to-live of services resolved by drivers without TTL information
+     * @param unit        Unit of the default TTL
+     * @param scheduler   Scheduler providing the current time & executing expiry checks
+     */
+    @JvmOverloads
+    fun cacheServices(defaultTtl: Long = DEFAULT_CACHE_TTL_SECONDS,
+        unit: TimeUnit = TimeUnit.SECONDS, scheduler: Scheduler = Schedulers.computation()) = also {
+      require(defaultTtl > 0L, { "The default TTL for cached services must be positive" })
+      this.caching = CachingConfig(defaultTtl, unit, scheduler)
+    }
+
+    /**
+     * Opt into RxBonjour's own threading: engines are started & torn down on the I/O scheduler,
+     * and events are delivered on the event loop, instead of the threads of the subscriber
+     * & the driver. By default, both are the ones shared by all instances through BonjourSchedulers.
+     *
+     * @param eventLoop   Scheduler delivering events & results. Should be a single thread
+     * @param io          Scheduler running blocking work, such as teardown
+     */
+    @JvmOverloads
+    fun schedulers(eventLoop: Scheduler = BonjourSchedulers.eventLoop(),
+        io: Scheduler = BonjourSchedulers.io()) = also {
+      this.scheduling = SchedulingConfig(eventLoop, io)
+    }
+
+    /**
+     * Reports timed events of discoveries, resolves & broadcasts to the given metrics,
+     * including the ones measured by the driver. Nothing is measured by default.
+     *
+     * @param metrics Receiver of the events
+     */
+    fun metrics(metrics: BonjourMetrics) = also { this.metrics = metrics }
+
+    /**
+     * Records the steps of every discovery & broadcast into the given trace,
+     * tagged with an ID per subscription. Nothing is recorded by default.
+     *
+     * @param trace Ring buffer receiving the events, to be dumped on demand
+     */
+    fun trace(trace: BonjourTrace) = also { this.trace = trace }
+
+    /**
+     * Opt into discoveries across all network interfaces: every discovery of a single type
+     * runs one engine per multicast-capable interface reported by the platform, in parallel.
+     * Their results are merged by type & name, and BonjourService#getInterfaces() names
+     * the interfaces each service is seen on. Platforms reporting less than two interfaces
+     * keep using a single engine.
+     */
+    fun discoverOnAllInterfaces() = also { this.allInterfaces = true }
+
     fun create(): RxBonjour {
       require(platform != null, { "You need to provide a platform() to RxBonjour's builder" })
       require(driver != null, { "You need to provide a driver() to RxBonjour's builder" })
-      return RxBonjour(platform!!, driver!!)
+      return RxBonjour(platform!!, driver!!, sharing, caching, scheduling, metrics,
+          trace, allInterfaces)
     }
   }
+
+  private class SharingConfig(
+      val gracePeriod: Long,
+      val unit: TimeUnit,
+      val scheduler: Scheduler)
+
+  private class CachingConfig(
+      val defaultTtl: Long,
+      val unit: TimeUnit,
+      val scheduler: Scheduler)
+
+  private class SchedulingConfig(
+      val eventLoop: Scheduler,
+      val io: Scheduler)
 }
 
 /* Extension Functions */
 
 fun String.isBonjourType() = this.matches(TYPE_PATTERN)
+
+// Normalized form of a type, ignoring the domain & surrounding dots
+internal fun String.toTypeKey() = this.toLowerCase().trim('.').removeSuffix(LOCAL_DOMAIN_SUFFIX)
+
+private fun BonjourEvent.withType(type: String): BonjourEvent =
+    when (this) {
+      is BonjourEvent.Added -> BonjourEvent.Added(service.copy(type = type))
+      is BonjourEvent.Removed -> BonjourEvent.Removed(service.copy(type = type))
+      is BonjourEvent.Updated ->
+        BonjourEvent.Updated(previous.copy(type = type), service.copy(type = type))
+      is BonjourEvent.Found -> BonjourEvent.Found(type, service.name)
+    }
+
+private fun Observable<BonjourEvent>.toServiceSets(): Observable<ServiceSet> =
+    this.scan(ServiceSet.EMPTY, { set, event -> set.after(event) })
+        // Events that don't change anything return the same snapshot
+        .distinctUntilChanged { previous, next -> previous === next }
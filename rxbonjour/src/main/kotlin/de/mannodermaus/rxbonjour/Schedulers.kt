@@ -2,22 +2,84 @@ package de.mannodermaus.rxbonjour
 
 import io.reactivex.CompletableTransformer
 import io.reactivex.ObservableTransformer
+import io.reactivex.Scheduler
 import io.reactivex.schedulers.Schedulers
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
+private val EVENT_LOOP_THREAD_NAME = "RxBonjour-EventLoop"
+private val IO_THREAD_NAME_PREFIX = "RxBonjour-IO-"
+private val DEFAULT_IO_POOL_SIZE = 4
+private val IO_KEEP_ALIVE_SECONDS = 30L
+
+/**
+ * Threads dedicated to RxBonjour, keeping its work away from the computation threads
+ * of the application's own pipelines:
+ * <ul>
+ *   <li>A single event loop thread, which delivers events & callbacks. Nothing blocks on it</li>
+ *   <li>A bounded I/O pool for blocking work, e.g. starting & tearing down engines</li>
+ * </ul>
+ * Both are created on first use and shared by all RxBonjour instances. Their threads are daemons,
+ * and the threads of the I/O pool are released while idle.
+ */
 class BonjourSchedulers private constructor() {
   companion object {
+    private val defaultEventLoop by lazy {
+      Schedulers.from(Executors.newSingleThreadExecutor(
+          BonjourThreadFactory { EVENT_LOOP_THREAD_NAME }))
+    }
+
+    private val defaultIo by lazy { newIo(DEFAULT_IO_POOL_SIZE) }
+
+    /** The scheduler of the shared event loop thread */
+    @JvmStatic
+    fun eventLoop(): Scheduler = defaultEventLoop
+
+    /** The scheduler of the shared I/O pool */
+    @JvmStatic
+    fun io(): Scheduler = defaultIo
+
+    /**
+     * Creates a separate I/O pool, e.g. for an RxBonjour instance
+     * that needs more threads for blocking work than the shared pool offers.
+     *
+     * @param poolSize  Maximum number of threads in the pool. Further work is queued
+     */
+    @JvmStatic
+    fun newIo(poolSize: Int): Scheduler {
+      require(poolSize > 0, { "The size of the I/O pool must be positive" })
+      val executor = ThreadPoolExecutor(poolSize, poolSize,
+          IO_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, LinkedBlockingQueue<Runnable>(),
+          BonjourThreadFactory { IO_THREAD_NAME_PREFIX + it })
+      executor.allowCoreThreadTimeOut(true)
+      return Schedulers.from(executor)
+    }
+
+    /** Subscribes on the I/O pool & delivers the result on the event loop */
     @JvmStatic
     fun completableAsync(): CompletableTransformer =
         CompletableTransformer {
-          it.subscribeOn(Schedulers.computation())
-              .observeOn(Schedulers.computation())
+          it.subscribeOn(io())
+              .observeOn(eventLoop())
         }
 
+    /** Subscribes on the I/O pool & delivers the events on the event loop */
     @JvmStatic
     fun <T> observableAsync(): ObservableTransformer<T, T> =
         ObservableTransformer {
-          it.subscribeOn(Schedulers.computation())
-              .observeOn(Schedulers.computation())
+          it.subscribeOn(io())
+              .observeOn(eventLoop())
         }
   }
+
+  private class BonjourThreadFactory(private val nameOf: (Int) -> String) : ThreadFactory {
+    private val count = AtomicInteger()
+
+    override fun newThread(runnable: Runnable) =
+        Thread(runnable, nameOf(count.incrementAndGet())).also { it.isDaemon = true }
+  }
 }
@@ -0,0 +1,58 @@
+package de.mannodermaus.rxbonjour
+
+/**
+ * Immutable snapshot of the services known to a discovery at one point in time,
+ * along with the changes that led to it from the previous snapshot.
+ * <p>
+ * Consecutive snapshots share their structure, so that deriving one from another
+ * costs O(changes) rather than O(n), and holding on to old snapshots is cheap.
+ * Lookups run in effectively constant time, while iterating over a snapshot visits every service.
+ */
+class ServiceSet internal constructor(
+    private val services: PersistentMap<ServiceKey, BonjourService>,
+    /** Services that weren't part of the previous snapshot */
+    val added: List<BonjourService>,
+    /** Services of the previous snapshot that are gone from this one */
+    val removed: List<BonjourService>,
+    /** New versions of services whose address or records changed since the previous snapshot */
+    val changed: List<BonjourService>) : AbstractSet<BonjourService>() {
+
+  override val size get() = services.size
+
+  override fun isEmpty() = services.isEmpty()
+
+  override fun contains(element: BonjourService) = services[element.key()] == element
+
+  override fun iterator() = services.values().iterator()
+
+  /**
+   * Looks up the current version of a service.
+   *
+   * @param type  Type of the service, with or without its domain
+   * @param name  Name of the service
+   * @return The service with the given type & name, or null if it isn't part of this snapshot
+   */
+  fun find(type: String, name: String): BonjourService? =
+      services[ServiceKey(type.toTypeKey(), name)]
+
+  /** Returns the snapshot after the given event, or this one if the event doesn't change it */
+  internal fun after(event: BonjourEvent): ServiceSet {
+    val key = event.service.key()
+    val previous = services[key]
+    val current = event.currentService
+
+    return when {
+      previous == current -> this
+      current == null ->
+        ServiceSet(services.remove(key), emptyList(), listOf(previous!!), emptyList())
+      previous == null ->
+        ServiceSet(services.put(key, current), listOf(current), emptyList(), emptyList())
+      else ->
+        ServiceSet(services.put(key, current), emptyList(), emptyList(), listOf(current))
+    }
+  }
+
+  internal companion object {
+    val EMPTY = ServiceSet(PersistentMap.empty(), emptyList(), emptyList(), emptyList())
+  }
+}
@@ -0,0 +1,192 @@
+package de.mannodermaus.rxbonjour
+
+import io.reactivex.Observable
+import io.reactivex.ObservableEmitter
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import java.util.ArrayDeque
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+/**
+ * Registry of discovery streams shared between all subscribers to the same service type.
+ * Each type is backed by at most one upstream discovery at a time, which is connected
+ * when the first subscriber arrives and torn down once the last one has left
+ * and the configured grace period has elapsed without any new subscriber.
+ */
+internal class SharedDiscoveries(
+    private val gracePeriod: Long,
+    private val unit: TimeUnit,
+    private val scheduler: Scheduler,
+    private val upstreamFactory: (String) -> Observable<BonjourEvent>) {
+
+  // Keyed by the normalized type, so that different spellings of a type share a discovery
+  private val entries = HashMap<String, SharedDiscovery>()
+
+  fun get(type: String): Observable<BonjourEvent> =
+      Observable.create { emitter ->
+        // Retry if the entry was terminated between lookup & attachment
+        do {
+          val entry = obtain(type)
+        } while (!entry.attach(emitter))
+      }
+
+  private fun obtain(type: String): SharedDiscovery =
+      synchronized(entries) {
+        entries.getOrPut(type.toTypeKey()) { SharedDiscovery(type) }
+      }
+
+  private fun remove(entry: SharedDiscovery) {
+    val key = entry.type.toTypeKey()
+    synchronized(entries) {
+      if (entries[key] === entry) entries.remove(key)
+    }
+  }
+
+  /**
+   * A single shared discovery. Its lock only guards its state: the upstream is connected &
+   * disconnected outside of it, and subscribers are called from a serial drain outside of it,
+   * so that they may subscribe & dispose from within their callbacks.
+   */
+  private inner class SharedDiscovery(val type: String) {
+
+    // Services currently known to the upstream, replayed to late subscribers
+    private val known = LinkedHashMap<ServiceKey, BonjourService>()
+    private val emitters = CopyOnWriteArrayList<ObservableEmitter<BonjourEvent>>()
+    // Subscribers which haven't caught up on the known services yet
+    private val joining = HashSet<ObservableEmitter<BonjourEvent>>()
+    private val deliveries = ArrayDeque<() -> Unit>()
+    private var draining = false
+    private var upstream: Disposable? = null
+    private var connecting = false
+    private var pendingTeardown: Disposable? = null
+    private var terminated = false
+
+    /** Returns false if this entry is already terminated and can't accept new subscribers */
+    fun attach(emitter: ObservableEmitter<BonjourEvent>): Boolean {
+      val connect = synchronized(this) {
+        if (terminated) return false
+
+        pendingTeardown?.dispose()
+        pendingTeardown = null
+        emitters.add(emitter)
+        joining.add(emitter)
+
+        (upstream == null && !connecting).also { if (it) connecting = true }
+      }
+      emitter.setCancellable { detach(emitter) }
+
+      // Catch up on the current state first, in line with the events of the upstream
+      deliver {
+        val services = synchronized(this) {
+          if (!joining.remove(emitter)) return@deliver
+          ArrayList(known.values)
+        }
+        services.forEach { emitter.onNext(BonjourEvent.Added(it)) }
+      }
+
+      if (connect) {
+        val disposable = upstreamFactory(type).subscribe({ onEvent(it) }, { onError(it) })
+        val connected = synchronized(this) {
+          connecting = false
+          if (!terminated) upstream = disposable
+          !terminated
+        }
+        if (!connected) disposable.dispose()
+      }
+      return true
+    }
+
+    private fun detach(emitter: ObservableEmitter<BonjourEvent>) {
+      val upstream = synchronized(this) {
+        joining.remove(emitter)
+        if (!emitters.remove(emitter) || emitters.isNotEmpty() || terminated) return
+
+        if (gracePeriod <= 0L) {
+          disconnect()
+        } else {
+          pendingTeardown = scheduler.scheduleDirect({ disconnectIfUnused() }, gracePeriod, unit)
+          null
+        }
+      }
+      upstream?.dispose()
+    }
+
+    private fun disconnectIfUnused() {
+      val upstream = synchronized(this) {
+        if (emitters.isNotEmpty() || terminated) return
+        disconnect()
+      }
+      upstream?.dispose()
+    }
+
+    private fun onEvent(event: BonjourEvent) {
+      deliver {
+        val targets = synchronized(this) {
+          if (terminated) return@deliver
+
+          val key = event.service.key()
+          when (event) {
+            is BonjourEvent.Added -> known.put(key, event.service)
+            is BonjourEvent.Updated -> known.put(key, event.service)
+            is BonjourEvent.Removed -> known.remove(key)
+            // Lazy discoveries aren't shared
+            is BonjourEvent.Found -> Unit
+          }
+          emitters.filter { it !in joining }
+        }
+        targets.forEach { it.onNext(event) }
+      }
+    }
+
+    private fun onError(error: Throwable) {
+      deliver {
+        val targets = synchronized(this) {
+          if (terminated) return@deliver
+
+          terminate()
+          ArrayList(emitters).also { emitters.clear() }
+        }
+        targets.forEach { it.onError(error) }
+      }
+    }
+
+    /**
+     * Runs the given delivery once all earlier ones are done. Whoever finds the queue idle
+     * drains it, so deliveries never overlap, and those made from within one run after it.
+     */
+    private fun deliver(delivery: () -> Unit) {
+      synchronized(this) {
+        deliveries.offer(delivery)
+        if (draining) return
+        draining = true
+      }
+
+      try {
+        while (true) {
+          val next = synchronized(this) {
+            deliveries.poll().also { if (it == null) draining = false }
+          } ?: return
+          next()
+        }
+      } catch (ex: Throwable) {
+        // Let the next delivery pick up the rest
+        synchronized(this) { draining = false }
+        throw ex
+      }
+    }
+
+    /** Terminates this entry & returns the upstream, to be disposed outside of the lock */
+    private fun disconnect(): Disposable? {
+      terminate()
+      return upstream.also { upstream = null }
+    }
+
+    private fun terminate() {
+      terminated = true
+      known.clear()
+      joining.clear()
+      remove(this)
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package de.mannodermaus.rxbonjour
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+private val DEFAULT_TRACE_CAPACITY = 4096
+
+private val NANOS_PER_MILLI = 1_000_000.0
+
+/**
+ * Steps on the way from subscribing to a stream to the delivery of its events.
+ * Stages marked as driver stages are only recorded by drivers that support tracing.
+ */
+enum class TraceStage {
+  /** A discovery or broadcast was subscribed to. Detail: the types it's about */
+  STREAM_STARTED,
+  /** The engine of a stream finished its initialization */
+  ENGINE_INITIALIZED,
+  /** The platform returned the address to use. Detail: the address */
+  ADDRESS_RESOLVED,
+  /** The engine was handed the address & callback to start with */
+  ENGINE_STARTED,
+  /** Driver stage: the underlying mDNS instance or socket is ready. Detail: the address */
+  DRIVER_CONNECTED,
+  /** Driver stage: browsing for a type started. Detail: the type */
+  QUERY_SENT,
+  /** Driver stage: a service was found, but not resolved yet. Detail: its name */
+  SERVICE_FOUND,
+  /** Driver stage: a service is being resolved. Detail: its name */
+  RESOLVE_STARTED,
+  /** Driver stage: a service was resolved. Detail: its name */
+  RESOLVE_COMPLETED,
+  /** Driver stage: a service couldn't be resolved. Detail: its name */
+  RESOLVE_FAILED,
+  /** A resolved service reached RxBonjour. Detail: its name */
+  SERVICE_RESOLVED,
+  /** A lost service reached RxBonjour. Detail: its name */
+  SERVICE_LOST,
+  /** An event reached the subscriber, on the event loop if configured. Detail: the event */
+  EVENT_DELIVERED,
+  /** Driver stage: a broadcast service was registered. Detail: its name */
+  SERVICE_REGISTERED,
+  /** The stream failed. Detail: the cause */
+  FAILED,
+  /** The stream was disposed, and its engine is about to be torn down */
+  STREAM_DISPOSED
+}
+
+/**
+ * A single step recorded by a BonjourTrace.
+ *
+ * @property sequence   Position of the event among all events recorded by the trace
+ * @property streamId   ID of the discovery or broadcast the event belongs to
+ * @property timeNanos  Time of the event, according to System#nanoTime()
+ * @property stage      Step the stream reached
+ * @property detail     Subject of the step, e.g. a service name. Converted to a String when dumped
+ */
+data class TraceEvent(
+    val sequence: Long,
+    val streamId: Long,
+    val timeNanos: Long,
+    val stage: TraceStage,
+    val detail: Any?)
+
+/**
+ * Fixed-size record of the latest trace events of all streams of an RxBonjour instance.
+ * Every subscription to a discovery or broadcast is assigned a stream ID,
+ * which tags the events recorded by RxBonjour & its driver for that subscription.
+ * Once full, the oldest events are overwritten.
+ * <p>
+ * Recording is lock-free, so the trace can stay attached in production,
+ * and be dumped on demand, e.g. when a user reports a device showing up late.
+ * Without a trace, RxBonjour records nothing at all.
+ *
+ * @param capacity Maximum number of events kept
+ */
+class BonjourTrace @JvmOverloads constructor(private val capacity: Int = DEFAULT_TRACE_CAPACITY) {
+
+  init {
+    require(capacity > 0, { "The capacity of a trace must be positive" })
+  }
+
+  private val events = AtomicReferenceArray<TraceEvent?>(capacity)
+  private val sequence = AtomicLong()
+  private val streams = AtomicLong()
+
+  /** Records an event for the given stream */
+  fun record(streamId: Long, stage: TraceStage, detail: Any? = null) {
+    val sequence = sequence.getAndIncrement()
+    events.set((sequence % capacity).toInt(),
+        TraceEvent(sequence, streamId, System.nanoTime(), stage, detail))
+  }
+
+  /**
+   * Returns the events currently held, oldest first.
+   * Events recorded while dumping may or may not be included.
+   */
+  fun dump(): List<TraceEvent> =
+      (0 until capacity).mapNotNull { events.get(it) }.sortedBy { it.sequence }
+
+  /** Returns the events currently held for the given stream, oldest first */
+  fun dump(streamId: Long): List<TraceEvent> = dump().filter { it.streamId == streamId }
+
+  /**
+   * Formats the events currently held, one per line, with the time elapsed
+   * since the start of their stream, or since the oldest event held of it.
+   */
+  fun dumpToString(): String {
+    val starts = HashMap<Long, Long>()
+    return dump().joinToString(separator = "\n") { event ->
+      val start = starts.getOrPut(event.streamId) { event.timeNanos }
+      val elapsed = "%.3f".format((event.timeNanos - start) / NANOS_PER_MILLI)
+      "#${event.streamId} +${elapsed}ms ${event.stage}" + (event.detail?.let { " $it" } ?: "")
+    }
+  }
+
+  /** Drops all events held */
+  fun clear() {
+    for (i in 0 until capacity) {
+      events.set(i, null)
+    }
+  }
+
+  internal fun startStream(detail: Any?): StreamTrace {
+    val stream = StreamTrace(this, streams.incrementAndGet())
+    stream.record(TraceStage.STREAM_STARTED, detail)
+    return stream
+  }
+}
+
+/** Events of a single stream */
+internal class StreamTrace(private val trace: BonjourTrace, val id: Long) {
+  fun record(stage: TraceStage, detail: Any? = null) = trace.record(id, stage, detail)
+}
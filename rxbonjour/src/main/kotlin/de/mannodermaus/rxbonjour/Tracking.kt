@@ -0,0 +1,100 @@
+package de.mannodermaus.rxbonjour
+
+import io.reactivex.ObservableEmitter
+
+/**
+ * Services as seen by a single subscriber, used to reduce reports about a service
+ * to the event that brings the subscriber up to date. Not thread-safe
+ */
+internal class KnownServices {
+
+  private val services = HashMap<ServiceKey, BonjourService>()
+
+  operator fun get(key: ServiceKey): BonjourService? = services[key]
+
+  /**
+   * Records the new state of a service & returns the event describing the change,
+   * or null if the subscriber already knows about this state.
+   *
+   * @param key     Identity of the service
+   * @param current Current version of the service, or null if it's gone
+   */
+  fun transition(key: ServiceKey, current: BonjourService?): BonjourEvent? {
+    val previous = services[key]
+    return when {
+      previous == current -> null
+      current == null -> BonjourEvent.Removed(services.remove(key)!!)
+      previous == null -> BonjourEvent.Added(current).also { services.put(key, current) }
+      else -> BonjourEvent.Updated(previous, current).also { services.put(key, current) }
+    }
+  }
+
+  fun clear() = services.clear()
+}
+
+/**
+ * Entry point for everything a discovery reports about services. Drivers re-resolve services
+ * whenever their records change, so repeated reports are compared against the last known state,
+ * and only actual changes are emitted.
+ */
+internal class ServiceTracker(private val emitter: ObservableEmitter<BonjourEvent>) {
+
+  private val known = KnownServices()
+
+  fun resolved(service: BonjourService) {
+    synchronized(this) {
+      known.transition(service.key(), service)?.let { emitter.onNext(it) }
+    }
+  }
+
+  fun found(type: String, name: String) {
+    val event = BonjourEvent.Found(type, name)
+    synchronized(this) {
+      // Only the first sighting is of interest
+      if (known.transition(event.service.key(), event.service) != null) emitter.onNext(event)
+    }
+  }
+
+  fun lost(service: BonjourService) {
+    synchronized(this) {
+      known.transition(service.key(), null)?.let { emitter.onNext(it) }
+    }
+  }
+}
+
+/**
+ * Combines the events of discoveries running on several network interfaces into a single view,
+ * in which every service appears once, tagged with the interfaces it's seen on.
+ * A service is added when the first interface sees it, updated as interfaces come & go,
+ * and removed once the last interface lost it. Not thread-safe
+ */
+internal class InterfaceMerger {
+
+  private val known = KnownServices()
+  // Latest version of each service, per interface it's seen on
+  private val sightings = HashMap<ServiceKey, LinkedHashMap<String, BonjourService>>()
+
+  fun merge(interfaceName: String, event: BonjourEvent): List<BonjourEvent> {
+    val key = event.service.key()
+    val current = event.currentService
+    val services = sightings.getOrPut(key) { LinkedHashMap() }
+
+    if (current != null) {
+      // Re-insert, so that the most recent version is the last one
+      services.remove(interfaceName)
+      services.put(interfaceName, current)
+    } else {
+      services.remove(interfaceName)
+    }
+
+    val merged = services.values.lastOrNull()?.copy(interfaces = LinkedHashSet(services.keys))
+    if (merged == null) sightings.remove(key)
+    return listOfNotNull(known.transition(key, merged))
+  }
+}
+
+/* Extension Functions */
+
+/** The version of the service after this event, or null if it's gone */
+internal val BonjourEvent.currentService: BonjourService?
+  get() = if (this is BonjourEvent.Removed) null else service
@@ -0,0 +1,117 @@
+package de.mannodermaus.rxbonjour
+
+import io.reactivex.Observable
+import io.reactivex.ObservableTransformer
+import io.reactivex.Observer
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import io.reactivex.schedulers.Schedulers
+import java.util.concurrent.TimeUnit
+
+class BonjourTransformers private constructor() {
+  companion object {
+    /**
+     * Collapses bursts of events for the same service into their net change.
+     * The first event of a service opens a window of the given length, during which further
+     * events for the same service replace it. When the window closes, the last event is emitted,
+     * unless it doesn't change what the subscriber already knows about the service:
+     * an Added & Removed pair cancels out, and so does re-adding an unchanged service.
+     *
+     * @param window    Length of the window opened per service
+     * @param unit      Unit of the window
+     * @param scheduler Scheduler on which windows are closed & events are emitted
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun coalesce(window: Long, unit: TimeUnit, scheduler: Scheduler = Schedulers.computation())
+        : ObservableTransformer<BonjourEvent, BonjourEvent> {
+      require(window > 0L, { "The coalescing window must be positive" })
+      return ObservableTransformer { CoalescingObservable(it, window, unit, scheduler) }
+    }
+  }
+}
+
+internal class CoalescingObservable(
+    private val upstream: Observable<BonjourEvent>,
+    private val window: Long,
+    private val unit: TimeUnit,
+    private val scheduler: Scheduler) : Observable<BonjourEvent>() {
+
+  override fun subscribeActual(observer: Observer<in BonjourEvent>) {
+    upstream.subscribe(CoalescingObserver(observer))
+  }
+
+  private inner class CoalescingObserver(
+      private val downstream: Observer<in BonjourEvent>) : Observer<BonjourEvent>, Disposable {
+
+    private val pending = LinkedHashMap<ServiceKey, BonjourEvent>()
+    private val windows = HashMap<ServiceKey, Disposable>()
+    // Services the subscriber currently knows about
+    private val delivered = KnownServices()
+    private var upstream: Disposable? = null
+    private var terminated = false
+
+    override fun onSubscribe(d: Disposable) {
+      upstream = d
+      downstream.onSubscribe(this)
+    }
+
+    override fun onNext(event: BonjourEvent) {
+      synchronized(this) {
+        if (terminated) return
+        val key = event.service.key()
+        pending.put(key, event)
+        if (key !in windows) {
+          windows.put(key, scheduler.scheduleDirect({ closeWindow(key) }, window, unit))
+        }
+      }
+    }
+
+    override fun onError(e: Throwable) {
+      synchronized(this) {
+        if (terminated) return
+        terminate()
+        downstream.onError(e)
+      }
+    }
+
+    override fun onComplete() {
+      synchronized(this) {
+        if (terminated) return
+
+        // Don't hold back the final state of any service
+        pending.keys.toList().forEach { emitNetChange(it) }
+        terminate()
+        downstream.onComplete()
+      }
+    }
+
+    override fun dispose() {
+      synchronized(this) { terminate() }
+      upstream?.dispose()
+    }
+
+    override fun isDisposed() = synchronized(this) { terminated }
+
+    private fun closeWindow(key: ServiceKey) {
+      synchronized(this) {
+        if (terminated) return
+        windows.remove(key)
+        emitNetChange(key)
+      }
+    }
+
+    private fun emitNetChange(key: ServiceKey) {
+      val event = pending.remove(key) ?: return
+      delivered.transition(key, event.currentService)?.let { downstream.onNext(it) }
+    }
+
+    private fun terminate() {
+      terminated = true
+      windows.values.forEach { it.dispose() }
+      windows.clear()
+      pending.clear()
+      delivered.clear()
+    }
+  }
+}
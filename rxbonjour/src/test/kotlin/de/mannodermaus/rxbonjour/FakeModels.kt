@@ -1,8 +1,11 @@
 package de.mannodermaus.rxbonjour
 
+import io.reactivex.Completable
+import io.reactivex.CompletableEmitter
 import io.reactivex.disposables.Disposable
 import org.mockito.Mockito.mock
 import java.net.InetAddress
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 
 /*
@@ -17,6 +20,13 @@ enum class DiscoveryState {
   TornDown
 }
 
+enum class ResolveState {
+  New,
+  Initialized,
+  Resolving,
+  TornDown
+}
+
 enum class BroadcastState {
   New,
   Initialized,
@@ -27,18 +37,86 @@ enum class BroadcastState {
 class FakeDriver : Driver {
   val discoveryEngine: FakeDiscoveryEngine = FakeDiscoveryEngine()
   val broadcastEngine: FakeBroadcastEngine = FakeBroadcastEngine()
+  var discoveriesCreated = 0
+  var broadcastsCreated = 0
 
   override val name: String = "fake"
-  override fun createDiscovery(type: String) = discoveryEngine
+  override fun createDiscovery(type: String) = discoveryEngine.also { discoveriesCreated++ }
+  override fun createBroadcast(): BroadcastEngine = broadcastEngine.also { broadcastsCreated++ }
+}
+
+class FakeMultiTypeDriver : MultiTypeDriver {
+  val discoveryEngine: FakeMultiTypeDiscoveryEngine = FakeMultiTypeDiscoveryEngine()
+  var discoveriesCreated = 0
+
+  override val name: String = "fake-multi"
+  override fun createDiscovery(type: String) = discoveryEngine.also {
+    discoveriesCreated++
+    it.types.add(type)
+  }
+
+  override fun createBroadcast(): BroadcastEngine = FakeBroadcastEngine()
+}
+
+open class FakeMultiServiceDriver : MultiServiceBroadcastDriver {
+  val broadcastEngine: FakeMultiServiceBroadcastEngine = FakeMultiServiceBroadcastEngine()
+
+  override val name: String = "fake-multi-service"
+  override fun createDiscovery(type: String) = FakeDiscoveryEngine()
+  override fun createBroadcast(): MultiServiceBroadcastEngine = broadcastEngine
+}
+
+class FakeUpdatableDriver : Driver {
+  val broadcastEngine: FakeUpdatableBroadcastEngine = FakeUpdatableBroadcastEngine()
+
+  override val name: String = "fake-updatable"
+  override fun createDiscovery(type: String) = FakeDiscoveryEngine()
   override fun createBroadcast(): BroadcastEngine = broadcastEngine
 }
 
-class FakeDiscoveryEngine : DiscoveryEngine {
+class FakeMultiInterfaceDriver : Driver {
+  val discoveryEngines: MutableList<FakeDiscoveryEngine> = mutableListOf()
+
+  override val name: String = "fake-multi-interface"
+  override fun createDiscovery(type: String) = FakeDiscoveryEngine().also { discoveryEngines += it }
+  override fun createBroadcast(): BroadcastEngine = FakeBroadcastEngine()
+}
+
+class FakeAsyncDriver : Driver {
+  val discoveryEngine: FakeAsyncDiscoveryEngine = FakeAsyncDiscoveryEngine()
+
+  override val name: String = "fake-async"
+  override fun createDiscovery(type: String) = discoveryEngine
+  override fun createBroadcast(): BroadcastEngine = FakeBroadcastEngine()
+}
+
+class FakeResolvingDriver : ResolvingDriver {
+  val discoveryEngine: FakeDiscoveryEngine = FakeDiscoveryEngine()
+  val resolveEngine: FakeResolveEngine = FakeResolveEngine()
+
+  override val name: String = "fake-resolving"
+  override fun createDiscovery(type: String) = discoveryEngine
+  override fun createBroadcast(): BroadcastEngine = FakeBroadcastEngine()
+  override fun createResolve() = resolveEngine
+}
+
+open class FakeDiscoveryEngine : PrioritizedDiscoveryEngine, LazyDiscoveryEngine {
   private var state: DiscoveryState = DiscoveryState.New
   private var callback: DiscoveryCallback? = null
+  var priority: ResolvePriority? = null
+  var lazy = false
+  var address: InetAddress? = null
 
   fun state() = state
 
+  override fun setResolvePriority(priority: ResolvePriority) {
+    this.priority = priority
+  }
+
+  override fun setResolveLazily(lazy: Boolean) {
+    this.lazy = lazy
+  }
+
   override fun initialize() {
     state = DiscoveryState.Initialized
   }
@@ -46,6 +124,7 @@ class FakeDiscoveryEngine : DiscoveryEngine {
   override fun discover(address: InetAddress, callback: DiscoveryCallback) {
     this.state = DiscoveryState.Discovering
     this.callback = callback
+    this.address = address
   }
 
   override fun teardown() {
@@ -62,15 +141,108 @@ class FakeDiscoveryEngine : DiscoveryEngine {
     callback?.serviceResolved(service)
   }
 
+  fun emitResolved(service: BonjourService, ttl: Long, unit: TimeUnit) {
+    require(state == DiscoveryState.Discovering)
+    callback?.serviceResolved(service, ttl, unit)
+  }
+
+  fun emitFound(type: String, name: String) {
+    require(state == DiscoveryState.Discovering)
+    callback?.serviceFound(type, name)
+  }
+
   fun emitLost(service: BonjourService) {
     require(state == DiscoveryState.Discovering)
     callback?.serviceLost(service)
   }
+
+  fun emitResolveCompleted(type: String, name: String, latencyNanos: Long) {
+    require(state == DiscoveryState.Discovering)
+    callback?.resolveCompleted(type, name, latencyNanos)
+  }
+
+  fun emitResolveFailed(type: String, name: String, cause: Exception?) {
+    require(state == DiscoveryState.Discovering)
+    callback?.resolveFailed(type, name, cause)
+  }
+
+  fun emitTrace(stage: TraceStage, detail: Any?) {
+    require(state == DiscoveryState.Discovering)
+    callback?.trace(stage, detail)
+  }
 }
 
-class FakeBroadcastEngine : BroadcastEngine {
-  private var state: BroadcastState = BroadcastState.New
-  private var callback: BroadcastCallback? = null
+class FakeAsyncDiscoveryEngine : FakeDiscoveryEngine(), AsyncEngine {
+  private var initialization: CompletableEmitter? = null
+  var blockingCalls = 0
+
+  override fun initialize() {
+    blockingCalls++
+  }
+
+  override fun teardown() {
+    blockingCalls++
+  }
+
+  override fun initializeAsync(): Completable = Completable.create { initialization = it }
+
+  override fun teardownAsync(): Completable = Completable.fromAction { super.teardown() }
+
+  fun completeInitialization() {
+    initialization?.onComplete()
+  }
+}
+
+class FakeMultiTypeDiscoveryEngine : FakeDiscoveryEngine(), MultiTypeDiscoveryEngine {
+  val types: MutableSet<String> = mutableSetOf()
+
+  override fun addType(type: String) {
+    types += type
+  }
+
+  override fun removeType(type: String) {
+    types -= type
+  }
+}
+
+class FakeResolveEngine : ResolveEngine {
+  private var state: ResolveState = ResolveState.New
+  private var callback: ResolveCallback? = null
+  var name: String? = null
+
+  fun state() = state
+
+  override fun initialize() {
+    state = ResolveState.Initialized
+  }
+
+  override fun resolve(address: InetAddress, type: String, name: String,
+      callback: ResolveCallback) {
+    this.state = ResolveState.Resolving
+    this.callback = callback
+    this.name = name
+  }
+
+  override fun teardown() {
+    state = ResolveState.TornDown
+  }
+
+  fun emitFailure(error: Exception) {
+    require(state == ResolveState.Resolving)
+    callback?.resolveFailed(error)
+  }
+
+  fun emitResolved(service: BonjourService) {
+    require(state == ResolveState.Resolving)
+    callback?.serviceResolved(service)
+  }
+}
+
+open class FakeBroadcastEngine : BroadcastEngine {
+  protected var state: BroadcastState = BroadcastState.New
+  protected var callback: BroadcastCallback? = null
+  var config: BonjourBroadcastConfig? = null
+  var starts = 0
 
   fun state() = state
 
@@ -82,6 +254,8 @@ class FakeBroadcastEngine : BroadcastEngine {
       callback: BroadcastCallback) {
     this.state = BroadcastState.Broadcasting
     this.callback = callback
+    this.config = config
+    this.starts++
   }
 
   override fun teardown() {
@@ -92,6 +266,31 @@ class FakeBroadcastEngine : BroadcastEngine {
     require(state == BroadcastState.Broadcasting)
     callback?.broadcastFailed(error)
   }
+
+  fun emitRegistered(type: String, name: String, latencyNanos: Long) {
+    require(state == BroadcastState.Broadcasting)
+    callback?.broadcastRegistered(type, name, latencyNanos)
+  }
+}
+
+class FakeMultiServiceBroadcastEngine : FakeBroadcastEngine(), MultiServiceBroadcastEngine {
+  val configs: MutableList<BonjourBroadcastConfig> = mutableListOf()
+
+  override fun start(address: InetAddress, configs: List<BonjourBroadcastConfig>,
+      callback: BroadcastCallback) {
+    this.state = BroadcastState.Broadcasting
+    this.callback = callback
+    this.configs += configs
+  }
+}
+
+class FakeUpdatableBroadcastEngine : FakeBroadcastEngine(), UpdatableBroadcastEngine {
+  val updates: MutableList<TxtRecords> = mutableListOf()
+
+  override fun updateTxtRecords(txtRecords: TxtRecords) {
+    require(state == BroadcastState.Broadcasting)
+    updates += txtRecords
+  }
 }
 
 /*
@@ -106,11 +305,13 @@ enum class ConnectionState {
 }
 
 class FakePlatform(
-    private val address: InetAddress = mock(InetAddress::class.java)) : Platform {
+    private val address: InetAddress = mock(InetAddress::class.java),
+    private val interfaces: List<MulticastInterface> = emptyList()) : Platform {
   val connection: FakePlatformConnection = FakePlatformConnection()
 
   override fun createConnection() = connection
   override fun getWifiAddress() = address
+  override fun getMulticastInterfaces() = interfaces
 
   override fun runOnTeardown(action: () -> Unit): Disposable? {
     return object : Disposable {
@@ -141,3 +342,51 @@ class FakePlatformConnection : PlatformConnection {
     state = ConnectionState.TornDown
   }
 }
+
+/*
+ * Fake Implementation of the Metrics interface,
+ * recording every call for assertions during unit testing.
+ */
+
+class FakeMetrics : BonjourMetrics {
+  val initialized: MutableList<Engine> = mutableListOf()
+  val tornDown: MutableList<Engine> = mutableListOf()
+  val activeEngines: MutableList<Int> = mutableListOf()
+  val firstResolved: MutableList<String> = mutableListOf()
+  val resolved: MutableList<Pair<String, String>> = mutableListOf()
+  val failed: MutableList<Pair<String, String>> = mutableListOf()
+  val events: MutableList<Pair<String, BonjourEvent>> = mutableListOf()
+  val registered: MutableList<Pair<String, String>> = mutableListOf()
+
+  override fun engineInitialized(engine: Engine, durationNanos: Long) {
+    initialized += engine
+  }
+
+  override fun engineTornDown(engine: Engine, durationNanos: Long) {
+    tornDown += engine
+  }
+
+  override fun activeEnginesChanged(count: Int) {
+    activeEngines += count
+  }
+
+  override fun firstServiceResolved(type: String, durationNanos: Long) {
+    firstResolved += type
+  }
+
+  override fun serviceResolved(type: String, name: String, latencyNanos: Long) {
+    resolved += type to name
+  }
+
+  override fun resolveFailed(type: String, name: String, cause: Exception?) {
+    failed += type to name
+  }
+
+  override fun eventEmitted(type: String, event: BonjourEvent) {
+    events += type to event
+  }
+
+  override fun broadcastRegistered(type: String, name: String, latencyNanos: Long) {
+    registered += type to name
+  }
+}
@@ -1,5 +1,6 @@
 package de.mannodermaus.rxbonjour
 
+import io.reactivex.schedulers.TestScheduler
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.Assertions.assertThrows
@@ -8,6 +9,9 @@ import org.junit.jupiter.api.DisplayName
 import org.junit.jupiter.api.Nested
 import org.junit.jupiter.api.Test
 import org.mockito.Mockito.mock
+import java.net.InetAddress
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
 
 class RxBonjourTests {
 
@@ -101,7 +105,7 @@ class RxBonjourTests {
       assertEquals(ConnectionState.Initialized, platform.connection.state())
 
       // 3. Discover service
-      val service = mock(BonjourService::class.java)
+      val service = BonjourService(VALID_BONJOUR_TYPE, "Service", null, null, 80)
       driver.discoveryEngine.emitResolved(service)
 
       observer.assertValueCount(1)
@@ -120,6 +124,1004 @@ class RxBonjourTests {
       assertEquals(DiscoveryState.TornDown, driver.discoveryEngine.state())
       assertEquals(ConnectionState.TornDown, platform.connection.state())
     }
+
+    @Test
+    @DisplayName("Changes to known services are emitted as updates")
+    fun changesEmittedAsUpdates() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val service = BonjourService(VALID_BONJOUR_TYPE, "Service", null, null, 80)
+      val updated = service.copy(txtRecords = mapOf("version" to "2"))
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(service)
+      driver.discoveryEngine.emitResolved(service)
+      driver.discoveryEngine.emitResolved(updated)
+
+      observer.assertValueCount(2)
+      observer.assertValueAt(1, {
+        it is BonjourEvent.Updated && it.previous == service && it.service == updated
+      })
+    }
+
+    @Test
+    @DisplayName("Unknown services aren't reported as lost")
+    fun unknownServicesNotLost() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val service = BonjourService(VALID_BONJOUR_TYPE, "Service", null, null, 80)
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitLost(service)
+
+      observer.assertEmpty()
+    }
+
+    @Test
+    @DisplayName("Services are lost even if the driver spells their type differently")
+    fun servicesLostWithDifferentTypeSpelling() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      // NsdManager resolves & loses the same service with these types
+      val resolved = BonjourService("._http._tcp", "Service", null, null, 80)
+      val lost = resolved.copy(type = "_http._tcp.")
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(resolved)
+      driver.discoveryEngine.emitLost(lost)
+
+      observer.assertValueCount(2)
+      observer.assertValueAt(0, { it is BonjourEvent.Added && it.service == resolved })
+      observer.assertValueAt(1, { it is BonjourEvent.Removed && it.service == resolved })
+    }
+  }
+
+  @Nested
+  @DisplayName("RxBonjour#newDiscovery() with a resolve priority")
+  class PrioritizedDiscoveryTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+    private val PRIORITY = object : ResolvePriority {
+      override fun priorityOf(type: String, name: String) = if (name.startsWith("Printer")) 1 else 0
+    }
+
+    @Test
+    @DisplayName("Emit Error if not a Bonjour Type")
+    fun emitErrorIfNotBonjourType() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      rxb.newDiscovery("Totally Not Valid", PRIORITY).test()
+          .assertError({ it is IllegalBonjourTypeException })
+      assertEquals(0, driver.discoveriesCreated)
+    }
+
+    @Test
+    @DisplayName("Priority is handed to the engine")
+    fun priorityHandedToEngine() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val service = BonjourService(VALID_BONJOUR_TYPE, "Printer", null, null, 80)
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE, PRIORITY).test()
+      assertEquals(PRIORITY, driver.discoveryEngine.priority)
+
+      driver.discoveryEngine.emitResolved(service)
+      observer.assertValueCount(1)
+    }
+
+    @Test
+    @DisplayName("Prioritized discoveries aren't shared")
+    fun notShared() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform())
+          .shareDiscoveries()
+          .create()
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      rxb.newDiscovery(VALID_BONJOUR_TYPE, PRIORITY).test()
+      assertEquals(2, driver.discoveriesCreated)
+    }
+  }
+
+  @Nested
+  @DisplayName("RxBonjour#newLazyDiscovery()")
+  class LazyDiscoveryTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+
+    @Test
+    @DisplayName("Emit Error if not a Bonjour Type")
+    fun emitErrorIfNotBonjourType() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      rxb.newLazyDiscovery("Totally Not Valid").test()
+          .assertError({ it is IllegalBonjourTypeException })
+      assertEquals(0, driver.discoveriesCreated)
+    }
+
+    @Test
+    @DisplayName("Found services are reported once, then lost")
+    fun foundThenLost() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val engine = driver.discoveryEngine
+
+      val observer = rxb.newLazyDiscovery(VALID_BONJOUR_TYPE).test()
+      assertTrue(engine.lazy)
+
+      engine.emitFound("_http._tcp.local.", "Printer")
+      engine.emitFound("_http._tcp.local.", "Printer")
+      engine.emitLost(BonjourService("_http._tcp.local.", "Printer", null, null, 0))
+
+      observer.assertValueCount(2)
+      val found = observer.values()[0]
+      assertTrue(found is BonjourEvent.Found)
+      assertEquals(VALID_BONJOUR_TYPE, found.service.type)
+      assertEquals("Printer", found.service.name)
+      assertTrue(observer.values()[1] is BonjourEvent.Removed)
+    }
+
+    @Test
+    @DisplayName("Services resolved by the engine anyway are reported as found")
+    fun resolvedReportedAsFound() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val observer = rxb.newLazyDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(
+          BonjourService(VALID_BONJOUR_TYPE, "Printer", null, null, 80))
+
+      observer.assertValueCount(1)
+      assertTrue(observer.values()[0] is BonjourEvent.Found)
+    }
+
+    @Test
+    @DisplayName("Resolving goes through the driver's resolve engine")
+    fun resolveThroughEngine() {
+      val driver = FakeResolvingDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val engine = driver.resolveEngine
+
+      val observer = rxb.resolve(BonjourEvent.Found(VALID_BONJOUR_TYPE, "Printer")).test()
+      assertEquals(ResolveState.Resolving, engine.state())
+      assertEquals("Printer", engine.name)
+
+      engine.emitResolved(BonjourService("_http._tcp.local.", "Printer", null, null, 631))
+      observer.assertValueCount(1)
+      observer.assertNoErrors()
+      assertEquals(VALID_BONJOUR_TYPE, observer.values()[0].type)
+      assertEquals(631, observer.values()[0].port)
+      assertEquals(ResolveState.TornDown, engine.state())
+    }
+
+    @Test
+    @DisplayName("Emit Error if the resolve fails")
+    fun emitErrorIfResolveFails() {
+      val driver = FakeResolvingDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val observer = rxb.resolve(BonjourEvent.Found(VALID_BONJOUR_TYPE, "Printer")).test()
+      driver.resolveEngine.emitFailure(RuntimeException())
+
+      observer.assertError({ it is ResolveFailedException })
+      assertEquals(ResolveState.TornDown, driver.resolveEngine.state())
+    }
+
+    @Test
+    @DisplayName("Falls back to a discovery for other drivers")
+    fun resolveThroughDiscovery() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val engine = driver.discoveryEngine
+
+      val observer = rxb.resolve(BonjourEvent.Found(VALID_BONJOUR_TYPE, "Printer")).test()
+      engine.emitResolved(BonjourService(VALID_BONJOUR_TYPE, "Scanner", null, null, 80))
+      observer.assertEmpty()
+
+      engine.emitResolved(BonjourService(VALID_BONJOUR_TYPE, "Printer", null, null, 631))
+      observer.assertValueCount(1)
+      assertEquals(631, observer.values()[0].port)
+      assertEquals(DiscoveryState.TornDown, engine.state())
+    }
+  }
+
+  @Nested
+  @DisplayName("RxBonjour with dedicated schedulers")
+  class SchedulerTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+
+    @Test
+    @DisplayName("Throws if the I/O pool is empty")
+    fun throwsIfPoolEmpty() {
+      assertThrows(IllegalArgumentException::class.java, { BonjourSchedulers.newIo(0) })
+    }
+
+    @Test
+    @DisplayName("Engines run on the I/O scheduler & events are delivered on the event loop")
+    fun discoveryOnSchedulers() {
+      val driver = FakeDriver()
+      val eventLoop = TestScheduler()
+      val io = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform())
+          .schedulers(eventLoop, io)
+          .create()
+      val engine = driver.discoveryEngine
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      assertEquals(DiscoveryState.New, engine.state())
+      io.triggerActions()
+      assertEquals(DiscoveryState.Discovering, engine.state())
+
+      engine.emitResolved(BonjourService(VALID_BONJOUR_TYPE, "Printer", null, null, 80))
+      observer.assertNoValues()
+      eventLoop.triggerActions()
+      observer.assertValueCount(1)
+
+      // Teardown doesn't block the disposing thread
+      observer.dispose()
+      assertEquals(DiscoveryState.Discovering, engine.state())
+      io.triggerActions()
+      assertEquals(DiscoveryState.TornDown, engine.state())
+    }
+  }
+
+  @Nested
+  @DisplayName("RxBonjour with asynchronous engines")
+  class AsyncEngineTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+
+    @Test
+    @DisplayName("Discovery starts once the engine is initialized")
+    fun discoveryStartsAfterInitialization() {
+      val driver = FakeAsyncDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val engine = driver.discoveryEngine
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      assertEquals(DiscoveryState.New, engine.state())
+
+      engine.completeInitialization()
+      assertEquals(DiscoveryState.Discovering, engine.state())
+      engine.emitResolved(BonjourService(VALID_BONJOUR_TYPE, "Printer", null, null, 80))
+      observer.assertValueCount(1)
+
+      observer.dispose()
+      assertEquals(DiscoveryState.TornDown, engine.state())
+      assertEquals(0, engine.blockingCalls)
+    }
+
+    @Test
+    @DisplayName("Engines disposed during initialization aren't torn down")
+    fun disposedDuringInitialization() {
+      val driver = FakeAsyncDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val engine = driver.discoveryEngine
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test().dispose()
+      engine.completeInitialization()
+
+      assertEquals(DiscoveryState.New, engine.state())
+      assertEquals(0, engine.blockingCalls)
+    }
+  }
+
+  @Nested
+  @DisplayName("RxBonjour#newDiscovery() with shared discoveries")
+  class SharedDiscoveryTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+
+    @Test
+    @DisplayName("Subscribers to the same type share one discovery")
+    fun subscribersShareOneDiscovery() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform).shareDiscoveries().create()
+
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      val second = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      assertEquals(1, driver.discoveriesCreated)
+
+      val service = BonjourService(VALID_BONJOUR_TYPE, "Service", null, null, 80)
+      driver.discoveryEngine.emitResolved(service)
+
+      first.assertValueCount(1)
+      second.assertValueCount(1)
+    }
+
+    @Test
+    @DisplayName("Late subscribers receive the services known so far")
+    fun lateSubscribersReceiveKnownServices() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform).shareDiscoveries().create()
+
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      val kept = BonjourService(VALID_BONJOUR_TYPE, "Kept", null, null, 80)
+      val lost = BonjourService(VALID_BONJOUR_TYPE, "Lost", null, null, 80)
+      driver.discoveryEngine.emitResolved(kept)
+      driver.discoveryEngine.emitResolved(lost)
+      driver.discoveryEngine.emitLost(lost)
+      first.assertValueCount(3)
+
+      val late = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      late.assertValueCount(1)
+      late.assertValueAt(0, { it is BonjourEvent.Added && it.service == kept })
+    }
+
+    @Test
+    @DisplayName("Discovery is torn down after the grace period")
+    fun tearDownAfterGracePeriod() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform)
+          .shareDiscoveries(5, TimeUnit.SECONDS, scheduler)
+          .create()
+
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      val second = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      first.dispose()
+      second.dispose()
+      assertEquals(DiscoveryState.Discovering, driver.discoveryEngine.state())
+
+      scheduler.advanceTimeBy(4, TimeUnit.SECONDS)
+      assertEquals(DiscoveryState.Discovering, driver.discoveryEngine.state())
+
+      scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+      assertEquals(DiscoveryState.TornDown, driver.discoveryEngine.state())
+      assertEquals(ConnectionState.TornDown, platform.connection.state())
+    }
+
+    @Test
+    @DisplayName("Resubscribing within the grace period keeps the discovery alive")
+    fun resubscribeWithinGracePeriod() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform)
+          .shareDiscoveries(5, TimeUnit.SECONDS, scheduler)
+          .create()
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test().dispose()
+      scheduler.advanceTimeBy(3, TimeUnit.SECONDS)
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      scheduler.advanceTimeBy(10, TimeUnit.SECONDS)
+
+      assertEquals(1, driver.discoveriesCreated)
+      assertEquals(DiscoveryState.Discovering, driver.discoveryEngine.state())
+      observer.assertNoErrors()
+    }
+
+    @Test
+    @DisplayName("Errors are delivered to all subscribers")
+    fun errorsDeliveredToAllSubscribers() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform).shareDiscoveries().create()
+
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      val second = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitFailure(RuntimeException("driver crashed"))
+
+      first.assertError({ it is DiscoveryFailedException })
+      second.assertError({ it is DiscoveryFailedException })
+    }
+
+    @Test
+    @DisplayName("Different spellings of a type share one discovery")
+    fun typeSpellingsShareOneDiscovery() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).shareDiscoveries()
+          .create()
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      rxb.newDiscovery("_HTTP._tcp.local.").test()
+      assertEquals(1, driver.discoveriesCreated)
+    }
+
+    @Test
+    @DisplayName("Subscribers aren't called while other subscribers are blocked")
+    fun subscribersCalledOutsideOfLock() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).shareDiscoveries()
+          .create()
+      val service = BonjourService(VALID_BONJOUR_TYPE, "Service", null, null, 80)
+      var joined = false
+
+      // Subscribing from another thread while handling an event must not block
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE)
+          .doOnNext {
+            val other = thread { rxb.newDiscovery(VALID_BONJOUR_TYPE).test() }
+            other.join(TimeUnit.SECONDS.toMillis(5))
+            joined = !other.isAlive
+          }
+          .test()
+      driver.discoveryEngine.emitResolved(service)
+
+      first.assertValueCount(1)
+      assertTrue(joined)
+    }
+  }
+
+  @Nested
+  @DisplayName("RxBonjour#newDiscovery() with cached services")
+  class CachedServiceTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+    private val SERVICE = BonjourService(VALID_BONJOUR_TYPE, "Cached", null, null, 80)
+
+    @Test
+    @DisplayName("New discoveries immediately emit cached services")
+    fun newDiscoveriesEmitCachedServices() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform)
+          .cacheServices(scheduler = scheduler)
+          .create()
+
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(SERVICE, 10, TimeUnit.SECONDS)
+      first.dispose()
+
+      val second = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      second.assertValueCount(1)
+      second.assertValueAt(0, { it is BonjourEvent.Added && it.service == SERVICE })
+
+      // Live confirmation of the same service is swallowed
+      driver.discoveryEngine.emitResolved(SERVICE, 10, TimeUnit.SECONDS)
+      second.assertValueCount(1)
+    }
+
+    @Test
+    @DisplayName("Cached services are scoped to their type")
+    fun cachedServicesScopedToType() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform)
+          .cacheServices(scheduler = TestScheduler())
+          .create()
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(SERVICE)
+
+      rxb.newDiscovery("_ssh._tcp").test().assertEmpty()
+    }
+
+    @Test
+    @DisplayName("Expired services aren't emitted")
+    fun expiredServicesNotEmitted() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform)
+          .cacheServices(scheduler = scheduler)
+          .create()
+
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(SERVICE, 10, TimeUnit.SECONDS)
+      first.dispose()
+      scheduler.advanceTimeBy(10, TimeUnit.SECONDS)
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test().assertEmpty()
+    }
+
+    @Test
+    @DisplayName("Drivers without TTL information use the default TTL")
+    fun defaultTtl() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform)
+          .cacheServices(30, TimeUnit.SECONDS, scheduler)
+          .create()
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(SERVICE)
+
+      scheduler.advanceTimeBy(29, TimeUnit.SECONDS)
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test().assertValueCount(1)
+
+      scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test().assertEmpty()
+    }
+
+    @Test
+    @DisplayName("Lost services are evicted")
+    fun lostServicesEvicted() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform)
+          .cacheServices(scheduler = TestScheduler())
+          .create()
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(SERVICE)
+      driver.discoveryEngine.emitLost(SERVICE)
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test().assertEmpty()
+    }
+
+    @Test
+    @DisplayName("Unconfirmed cached services are removed once they expire")
+    fun unconfirmedServicesRemovedOnExpiry() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform)
+          .cacheServices(scheduler = scheduler)
+          .create()
+
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(SERVICE, 10, TimeUnit.SECONDS)
+      first.dispose()
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      scheduler.advanceTimeBy(10, TimeUnit.SECONDS)
+
+      observer.assertValueCount(2)
+      observer.assertValueAt(1, { it is BonjourEvent.Removed && it.service == SERVICE })
+    }
+  }
+
+  @Nested
+  @DisplayName("RxBonjour#newDiscovery() with multiple types")
+  class MultiTypeDiscoveryTests {
+
+    private val HTTP_TYPE = "_http._tcp"
+    private val SSH_TYPE = "_ssh._tcp"
+
+    @Test
+    @DisplayName("Emit Error if any type isn't a Bonjour Type")
+    fun emitErrorIfAnyTypeNotBonjourType() {
+      val driver = FakeMultiTypeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform).create()
+
+      rxb.newDiscovery(listOf(HTTP_TYPE, "Totally Not Valid")).test()
+          .assertError({
+            it is IllegalBonjourTypeException
+                && it.message!!.contains("Totally Not Valid")
+          })
+      assertEquals(0, driver.discoveriesCreated)
+    }
+
+    @Test
+    @DisplayName("All types are browsed by a single engine")
+    fun singleEngineForAllTypes() {
+      val driver = FakeMultiTypeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform).create()
+
+      rxb.newDiscovery(listOf(HTTP_TYPE, SSH_TYPE, HTTP_TYPE)).test()
+
+      assertEquals(1, driver.discoveriesCreated)
+      assertEquals(setOf(HTTP_TYPE, SSH_TYPE), driver.discoveryEngine.types)
+      assertEquals(DiscoveryState.Discovering, driver.discoveryEngine.state())
+    }
+
+    @Test
+    @DisplayName("Events are tagged with the requested type")
+    fun eventsTaggedWithRequestedType() {
+      val driver = FakeMultiTypeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform).create()
+
+      val observer = rxb.newDiscovery(listOf(HTTP_TYPE, SSH_TYPE)).test()
+      val service = BonjourService("_ssh._tcp.local.", "Server", null, null, 22)
+      driver.discoveryEngine.emitResolved(service)
+      driver.discoveryEngine.emitLost(service)
+
+      observer.assertValueCount(2)
+      observer.assertValueAt(0, { it is BonjourEvent.Added && it.service.type == SSH_TYPE })
+      observer.assertValueAt(1, { it is BonjourEvent.Removed && it.service.type == SSH_TYPE })
+    }
+
+    @Test
+    @DisplayName("Services of other types are ignored")
+    fun servicesOfOtherTypesIgnored() {
+      val driver = FakeMultiTypeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform).create()
+
+      val observer = rxb.newDiscovery(listOf(HTTP_TYPE, SSH_TYPE)).test()
+      driver.discoveryEngine.emitResolved(BonjourService("_ftp._tcp", "Files", null, null, 21))
+
+      observer.assertEmpty()
+    }
+
+    @Test
+    @DisplayName("Falls back to one discovery per type for other drivers")
+    fun fallbackToDiscoveryPerType() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform).create()
+
+      val observer = rxb.newDiscovery(listOf(HTTP_TYPE, SSH_TYPE)).test()
+      assertEquals(2, driver.discoveriesCreated)
+
+      // The fake driver shares its engine, which now reports to the last discovery
+      driver.discoveryEngine.emitResolved(BonjourService("_ssh._tcp.local.", "Server", null, null, 22))
+      observer.assertValueCount(1)
+      observer.assertValueAt(0, { it is BonjourEvent.Added && it.service.type == SSH_TYPE })
+
+      observer.dispose()
+      assertEquals(DiscoveryState.TornDown, driver.discoveryEngine.state())
+    }
+  }
+
+  @Nested
+  @DisplayName("RxBonjour#newDiscoveryFlowable()")
+  class FlowableDiscoveryTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+    private val FIRST = BonjourService(VALID_BONJOUR_TYPE, "First", null, null, 80)
+    private val SECOND = BonjourService(VALID_BONJOUR_TYPE, "Second", null, null, 80)
+    private val THIRD = BonjourService(VALID_BONJOUR_TYPE, "Third", null, null, 80)
+
+    @Test
+    @DisplayName("Throws if the capacity isn't positive")
+    fun throwsIfCapacityNotPositive() {
+      assertThrows(IllegalArgumentException::class.java, { DiscoveryBackpressure.dropOldest(0) })
+    }
+
+    @Test
+    @DisplayName("Events are delivered as requested")
+    fun eventsDeliveredAsRequested() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val subscriber = rxb.newDiscoveryFlowable(VALID_BONJOUR_TYPE,
+          DiscoveryBackpressure.dropOldest(16)).test(1)
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitResolved(SECOND)
+      subscriber.assertValueCount(1)
+
+      subscriber.requestMore(1)
+      subscriber.assertValueCount(2)
+      subscriber.assertValueAt(1, { it is BonjourEvent.Added && it.service == SECOND })
+    }
+
+    @Test
+    @DisplayName("Latest per service keeps the newest event of each service")
+    fun latestPerService() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val updated = FIRST.copy(port = 8080)
+
+      val subscriber = rxb.newDiscoveryFlowable(VALID_BONJOUR_TYPE,
+          DiscoveryBackpressure.latestPerService()).test(1)
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitResolved(updated)
+      driver.discoveryEngine.emitResolved(SECOND)
+      driver.discoveryEngine.emitLost(updated)
+      subscriber.assertValueCount(1)
+
+      subscriber.requestMore(10)
+      subscriber.assertValueCount(3)
+      subscriber.assertValueAt(1, { it is BonjourEvent.Removed && it.service == updated })
+      subscriber.assertValueAt(2, { it is BonjourEvent.Added && it.service == SECOND })
+    }
+
+    @Test
+    @DisplayName("Latest per service adds updated services the subscriber hasn't seen yet")
+    fun latestPerServiceFoldsUpdatesIntoAdded() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val updated = FIRST.copy(port = 8080)
+
+      val subscriber = rxb.newDiscoveryFlowable(VALID_BONJOUR_TYPE,
+          DiscoveryBackpressure.latestPerService()).test(0)
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitResolved(updated)
+
+      subscriber.requestMore(10)
+      subscriber.assertValueCount(1)
+      subscriber.assertValueAt(0, { it is BonjourEvent.Added && it.service == updated })
+    }
+
+    @Test
+    @DisplayName("Latest per service drops services the subscriber never saw")
+    fun latestPerServiceDropsUnseenServices() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val subscriber = rxb.newDiscoveryFlowable(VALID_BONJOUR_TYPE,
+          DiscoveryBackpressure.latestPerService()).test(0)
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitLost(FIRST)
+      driver.discoveryEngine.emitResolved(SECOND)
+
+      subscriber.requestMore(10)
+      subscriber.assertValueCount(1)
+      subscriber.assertValueAt(0, { it is BonjourEvent.Added && it.service == SECOND })
+    }
+
+    @Test
+    @DisplayName("Drop oldest keeps the most recent events")
+    fun dropOldest() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val subscriber = rxb.newDiscoveryFlowable(VALID_BONJOUR_TYPE,
+          DiscoveryBackpressure.dropOldest(2)).test(0)
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitResolved(SECOND)
+      driver.discoveryEngine.emitResolved(THIRD)
+
+      subscriber.requestMore(10)
+      subscriber.assertValueCount(2)
+      subscriber.assertValueAt(0, { it.service == SECOND })
+      subscriber.assertValueAt(1, { it.service == THIRD })
+    }
+
+    @Test
+    @DisplayName("Coalescing cancels out services the subscriber never saw")
+    fun coalesce() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val subscriber = rxb.newDiscoveryFlowable(VALID_BONJOUR_TYPE,
+          DiscoveryBackpressure.coalesce()).test(0)
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitLost(FIRST)
+      driver.discoveryEngine.emitResolved(SECOND)
+
+      subscriber.requestMore(10)
+      subscriber.assertValueCount(1)
+      subscriber.assertValueAt(0, { it is BonjourEvent.Added && it.service == SECOND })
+
+      // Subscriber has seen this one, so its removal survives
+      val subscriber2 = rxb.newDiscoveryFlowable(VALID_BONJOUR_TYPE,
+          DiscoveryBackpressure.coalesce()).test(1)
+      driver.discoveryEngine.emitResolved(SECOND)
+      driver.discoveryEngine.emitResolved(THIRD)
+      driver.discoveryEngine.emitLost(THIRD)
+      driver.discoveryEngine.emitLost(SECOND)
+
+      subscriber2.requestMore(10)
+      subscriber2.assertValueCount(2)
+      subscriber2.assertValueAt(1, { it is BonjourEvent.Removed && it.service == SECOND })
+    }
+
+    @Test
+    @DisplayName("Errors cut ahead of pending events")
+    fun errorsCutAhead() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val subscriber = rxb.newDiscoveryFlowable(VALID_BONJOUR_TYPE,
+          DiscoveryBackpressure.dropOldest(16)).test(0)
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitFailure(RuntimeException("driver crashed"))
+
+      subscriber.assertNoValues()
+      subscriber.assertError({ it is DiscoveryFailedException })
+    }
+
+    @Test
+    @DisplayName("Cancellation tears down the discovery")
+    fun cancellationTearsDown() {
+      val driver = FakeDriver()
+      val platform = FakePlatform()
+      val rxb = RxBonjour.Builder().driver(driver).platform(platform).create()
+
+      val subscriber = rxb.newDiscoveryFlowable(VALID_BONJOUR_TYPE,
+          DiscoveryBackpressure.latestPerService()).test()
+      assertEquals(DiscoveryState.Discovering, driver.discoveryEngine.state())
+
+      subscriber.cancel()
+      assertEquals(DiscoveryState.TornDown, driver.discoveryEngine.state())
+      assertEquals(ConnectionState.TornDown, platform.connection.state())
+    }
+  }
+
+  @Nested
+  @DisplayName("BonjourTransformers#coalesce()")
+  class CoalescingTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+    private val FIRST = BonjourService(VALID_BONJOUR_TYPE, "First", null, null, 80)
+    private val SECOND = BonjourService(VALID_BONJOUR_TYPE, "Second", null, null, 80)
+
+    @Test
+    @DisplayName("Throws if the window isn't positive")
+    fun throwsIfWindowNotPositive() {
+      assertThrows(IllegalArgumentException::class.java,
+          { BonjourTransformers.coalesce(0, TimeUnit.SECONDS, TestScheduler()) })
+    }
+
+    @Test
+    @DisplayName("Events are held back until the window closes")
+    fun eventsHeldBack() {
+      val driver = FakeDriver()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE)
+          .compose(BonjourTransformers.coalesce(1, TimeUnit.SECONDS, scheduler))
+          .test()
+      driver.discoveryEngine.emitResolved(FIRST)
+      scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS)
+      driver.discoveryEngine.emitResolved(SECOND)
+      observer.assertEmpty()
+
+      // Windows are opened per service
+      scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS)
+      observer.assertValueCount(1)
+      observer.assertValueAt(0, { it is BonjourEvent.Added && it.service == FIRST })
+
+      scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS)
+      observer.assertValueCount(2)
+      observer.assertValueAt(1, { it is BonjourEvent.Added && it.service == SECOND })
+    }
+
+    @Test
+    @DisplayName("Churn within the window collapses into the net change")
+    fun churnCollapses() {
+      val driver = FakeDriver()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE)
+          .compose(BonjourTransformers.coalesce(1, TimeUnit.SECONDS, scheduler))
+          .test()
+
+      // Added & Removed cancel each other out
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitLost(FIRST)
+      scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+      observer.assertEmpty()
+
+      driver.discoveryEngine.emitResolved(SECOND)
+      scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+      observer.assertValueCount(1)
+
+      // Flapping of a known service doesn't change anything
+      driver.discoveryEngine.emitLost(SECOND)
+      driver.discoveryEngine.emitResolved(SECOND)
+      driver.discoveryEngine.emitLost(SECOND)
+      driver.discoveryEngine.emitResolved(SECOND)
+      scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+      observer.assertValueCount(1)
+
+      // ...unless it ends up gone
+      driver.discoveryEngine.emitLost(SECOND)
+      driver.discoveryEngine.emitResolved(SECOND)
+      driver.discoveryEngine.emitLost(SECOND)
+      scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+      observer.assertValueCount(2)
+      observer.assertValueAt(1, { it is BonjourEvent.Removed && it.service == SECOND })
+    }
+
+    @Test
+    @DisplayName("Changed services are emitted again")
+    fun changedServicesEmitted() {
+      val driver = FakeDriver()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val moved = FIRST.copy(port = 8080)
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE)
+          .compose(BonjourTransformers.coalesce(1, TimeUnit.SECONDS, scheduler))
+          .test()
+      driver.discoveryEngine.emitResolved(FIRST)
+      scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+      driver.discoveryEngine.emitLost(FIRST)
+      driver.discoveryEngine.emitResolved(moved)
+      scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+
+      observer.assertValueCount(2)
+      observer.assertValueAt(1, {
+        it is BonjourEvent.Updated && it.previous == FIRST && it.service == moved
+      })
+    }
+
+    @Test
+    @DisplayName("Disposal tears down the discovery & drops pending events")
+    fun disposalTearsDown() {
+      val driver = FakeDriver()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE)
+          .compose(BonjourTransformers.coalesce(1, TimeUnit.SECONDS, scheduler))
+          .test()
+      driver.discoveryEngine.emitResolved(FIRST)
+      observer.dispose()
+      scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+
+      observer.assertEmpty()
+      assertEquals(DiscoveryState.TornDown, driver.discoveryEngine.state())
+    }
+  }
+
+  @Nested
+  @DisplayName("RxBonjour#newServiceSet()")
+  class ServiceSetTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+    private val FIRST = BonjourService(VALID_BONJOUR_TYPE, "First", null, null, 80)
+    private val SECOND = BonjourService(VALID_BONJOUR_TYPE, "Second", null, null, 80)
+
+    @Test
+    @DisplayName("Snapshots carry the changes since the previous one")
+    fun snapshotsCarryChanges() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val moved = FIRST.copy(port = 8080)
+
+      val observer = rxb.newServiceSet(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitResolved(SECOND)
+      driver.discoveryEngine.emitResolved(moved)
+      driver.discoveryEngine.emitLost(SECOND)
+
+      observer.assertValueCount(5)
+      observer.assertValueAt(0, { it.isEmpty() })
+      observer.assertValueAt(1, { it == setOf(FIRST) && it.added == listOf(FIRST) })
+      observer.assertValueAt(2, { it == setOf(FIRST, SECOND) && it.added == listOf(SECOND) })
+      observer.assertValueAt(3, { it == setOf(moved, SECOND) && it.changed == listOf(moved) })
+      observer.assertValueAt(4, { it == setOf(moved) && it.removed == listOf(SECOND) })
+    }
+
+    @Test
+    @DisplayName("Events that don't change the set are skipped")
+    fun redundantEventsSkipped() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val observer = rxb.newServiceSet(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitLost(FIRST)
+      driver.discoveryEngine.emitResolved(FIRST)
+      driver.discoveryEngine.emitResolved(FIRST)
+
+      observer.assertValueCount(2)
+    }
+
+    @Test
+    @DisplayName("Earlier snapshots stay untouched")
+    fun earlierSnapshotsUntouched() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val services = (0 until 2000).map { BonjourService(VALID_BONJOUR_TYPE, "$it", null, null, 80) }
+
+      val observer = rxb.newServiceSet(VALID_BONJOUR_TYPE).test()
+      services.forEach { driver.discoveryEngine.emitResolved(it) }
+      services.filterIndexed { index, _ -> index % 2 == 0 }.forEach {
+        driver.discoveryEngine.emitLost(it)
+      }
+
+      val full = observer.values()[2000]
+      val half = observer.values().last()
+      assertEquals(2000, full.size)
+      assertEquals(services.toSet(), full)
+      assertEquals(1000, half.size)
+      assertEquals(services.filterIndexed { index, _ -> index % 2 == 1 }.toSet(), half)
+      assertEquals(services[1], half.find(VALID_BONJOUR_TYPE, "1"))
+      assertEquals(null, half.find(VALID_BONJOUR_TYPE, "0"))
+    }
+
+    @Test
+    @DisplayName("Services are found regardless of how their type is spelled")
+    fun findIgnoresTypeSpelling() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val observer = rxb.newServiceSet(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(FIRST)
+
+      val snapshot = observer.values().last()
+      assertEquals(FIRST, snapshot.find("_http._tcp.local.", "First"))
+      assertEquals(FIRST, snapshot.find("_HTTP._tcp", "First"))
+      assertEquals(null, snapshot.find("_ssh._tcp.local.", "First"))
+    }
   }
 
   @Nested
@@ -183,6 +1185,379 @@ class RxBonjourTests {
       assertEquals(BroadcastState.TornDown, driver.broadcastEngine.state())
       assertEquals(ConnectionState.TornDown, platform.connection.state())
     }
+
+    @Test
+    @DisplayName("Emit Error if any of several services isn't a Bonjour Type")
+    fun emitErrorIfAnyNotBonjourType() {
+      val driver = FakeMultiServiceDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+
+      val configs = listOf(VALID_BROADCAST, VALID_BROADCAST.copy(type = "Totally Not Valid"))
+      rxb.newBroadcast(configs).test()
+          .assertError({ it is IllegalBonjourTypeException })
+      assertEquals(BroadcastState.New, driver.broadcastEngine.state())
+    }
+
+    @Test
+    @DisplayName("Several services are advertised by a single engine")
+    fun severalServicesOneEngine() {
+      val driver = FakeMultiServiceDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val configs = listOf(VALID_BROADCAST.copy(name = "First"),
+          VALID_BROADCAST.copy(name = "Second"))
+
+      val observer = rxb.newBroadcast(configs).test()
+      assertEquals(BroadcastState.Broadcasting, driver.broadcastEngine.state())
+      assertEquals(configs, driver.broadcastEngine.configs)
+
+      observer.dispose()
+      assertEquals(BroadcastState.TornDown, driver.broadcastEngine.state())
+    }
+
+    @Test
+    @DisplayName("Falls back to one broadcast per service for other drivers")
+    fun severalServicesFallback() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val configs = listOf(VALID_BROADCAST.copy(name = "First"),
+          VALID_BROADCAST.copy(name = "Second"))
+
+      val observer = rxb.newBroadcast(configs).test()
+      assertEquals(BroadcastState.Broadcasting, driver.broadcastEngine.state())
+      assertEquals(2, driver.broadcastsCreated)
+
+      val expected = RuntimeException("driver crashed")
+      driver.broadcastEngine.emitFailure(expected)
+      observer.assertError({ it is BroadcastFailedException && it.cause == expected })
+    }
+
+    @Test
+    @DisplayName("TXT records are updated by the running broadcast")
+    fun txtRecordsUpdatedInPlace() {
+      val driver = FakeUpdatableDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val broadcast = rxb.newUpdatableBroadcast(VALID_BROADCAST)
+
+      val observer = broadcast.completable.test()
+      broadcast.updateTxtRecords(mapOf("load" to "42"))
+
+      assertEquals(1, driver.broadcastEngine.starts)
+      assertEquals(listOf(mapOf("load" to "42")), driver.broadcastEngine.updates)
+      assertEquals(mapOf("load" to "42"), broadcast.txtRecords)
+
+      observer.dispose()
+      observer.assertNoErrors()
+      assertEquals(BroadcastState.TornDown, driver.broadcastEngine.state())
+    }
+
+    @Test
+    @DisplayName("TXT records updated before the start are used by it")
+    fun txtRecordsUpdatedBeforeStart() {
+      val driver = FakeUpdatableDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val broadcast = rxb.newUpdatableBroadcast(VALID_BROADCAST)
+
+      broadcast.updateTxtRecords(mapOf("load" to "42"))
+      broadcast.completable.test()
+
+      assertEquals(mapOf("load" to "42"), driver.broadcastEngine.config?.txtRecords)
+      assertTrue(driver.broadcastEngine.updates.isEmpty())
+    }
+
+    @Test
+    @DisplayName("Other drivers register the service anew with updated TXT records")
+    fun txtRecordsUpdatedByReRegistration() {
+      val driver = FakeDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform()).create()
+      val broadcast = rxb.newUpdatableBroadcast(VALID_BROADCAST)
+
+      val observer = broadcast.completable.test()
+      broadcast.updateTxtRecords(mapOf("load" to "42"))
+
+      assertEquals(2, driver.broadcastEngine.starts)
+      assertEquals(BroadcastState.Broadcasting, driver.broadcastEngine.state())
+      assertEquals(mapOf("load" to "42"), driver.broadcastEngine.config?.txtRecords)
+
+      // Failures of the new registration end the stream
+      val expected = RuntimeException("driver crashed")
+      driver.broadcastEngine.emitFailure(expected)
+      observer.assertError({ it is BroadcastFailedException && it.cause == expected })
+    }
+  }
+
+  @Nested
+  @DisplayName("Metrics")
+  class MetricsTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+
+    @Test
+    @DisplayName("Engines are measured & counted while active")
+    fun enginesMeasured() {
+      val driver = FakeDriver()
+      val metrics = FakeMetrics()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform())
+          .metrics(metrics)
+          .create()
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      assertEquals(listOf<Engine>(driver.discoveryEngine), metrics.initialized)
+      assertEquals(listOf(1), metrics.activeEngines)
+
+      observer.dispose()
+      assertEquals(listOf<Engine>(driver.discoveryEngine), metrics.tornDown)
+      assertEquals(listOf(1, 0), metrics.activeEngines)
+    }
+
+    @Test
+    @DisplayName("Only the first service of a discovery is timed, but every event is counted")
+    fun firstResolvedAndEvents() {
+      val driver = FakeDriver()
+      val metrics = FakeMetrics()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform())
+          .metrics(metrics)
+          .create()
+      val engine = driver.discoveryEngine
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      val service = BonjourService(VALID_BONJOUR_TYPE, "Printer", null, null, 80)
+      engine.emitResolved(service)
+      engine.emitResolved(service.copy(name = "Scanner"))
+      engine.emitLost(service)
+
+      observer.assertValueCount(3)
+      assertEquals(listOf(VALID_BONJOUR_TYPE), metrics.firstResolved)
+      assertEquals(3, metrics.events.size)
+      assertTrue(metrics.events.all { it.first == VALID_BONJOUR_TYPE })
+    }
+
+    @Test
+    @DisplayName("Reports of the driver are forwarded")
+    fun driverReportsForwarded() {
+      val driver = FakeDriver()
+      val metrics = FakeMetrics()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform())
+          .metrics(metrics)
+          .create()
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolveCompleted(VALID_BONJOUR_TYPE, "Printer", 1000L)
+      driver.discoveryEngine.emitResolveFailed(VALID_BONJOUR_TYPE, "Scanner", null)
+      assertEquals(listOf(VALID_BONJOUR_TYPE to "Printer"), metrics.resolved)
+      assertEquals(listOf(VALID_BONJOUR_TYPE to "Scanner"), metrics.failed)
+
+      rxb.newBroadcast(BonjourBroadcastConfig(VALID_BONJOUR_TYPE, "Printer")).test()
+      driver.broadcastEngine.emitRegistered(VALID_BONJOUR_TYPE, "Printer", 1000L)
+      assertEquals(listOf(VALID_BONJOUR_TYPE to "Printer"), metrics.registered)
+    }
+  }
+
+  @Nested
+  @DisplayName("Tracing")
+  class TracingTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+
+    @Test
+    @DisplayName("Every subscription is traced under an ID of its own")
+    fun subscriptionsTracedSeparately() {
+      val driver = FakeDriver()
+      val trace = BonjourTrace()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform())
+          .trace(trace)
+          .create()
+
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitResolved(
+          BonjourService(VALID_BONJOUR_TYPE, "Printer", null, null, 80))
+      first.dispose()
+
+      val firstId = trace.dump().first().streamId
+      assertEquals(listOf(
+          TraceStage.STREAM_STARTED,
+          TraceStage.ENGINE_INITIALIZED,
+          TraceStage.ADDRESS_RESOLVED,
+          TraceStage.ENGINE_STARTED,
+          TraceStage.STREAM_DISPOSED),
+          trace.dump(firstId).map { it.stage })
+
+      // The fake engine only reports to the latest discovery
+      val secondId = trace.dump().last { it.streamId != firstId }.streamId
+      assertEquals(listOf(TraceStage.SERVICE_RESOLVED, TraceStage.EVENT_DELIVERED),
+          trace.dump(secondId).map { it.stage }.takeLast(2))
+      assertEquals("Printer", trace.dump(secondId)[4].detail)
+    }
+
+    @Test
+    @DisplayName("Steps reported by the driver are recorded")
+    fun driverStepsRecorded() {
+      val driver = FakeDriver()
+      val trace = BonjourTrace()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform())
+          .trace(trace)
+          .create()
+
+      rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngine.emitTrace(TraceStage.QUERY_SENT, VALID_BONJOUR_TYPE)
+      driver.discoveryEngine.emitResolveCompleted(VALID_BONJOUR_TYPE, "Printer", 1000L)
+
+      rxb.newBroadcast(BonjourBroadcastConfig(VALID_BONJOUR_TYPE, "Printer")).test()
+      driver.broadcastEngine.emitRegistered(VALID_BONJOUR_TYPE, "Printer", 1000L)
+
+      val events = trace.dump()
+      assertEquals(VALID_BONJOUR_TYPE, events.single { it.stage == TraceStage.QUERY_SENT }.detail)
+      assertEquals("Printer", events.single { it.stage == TraceStage.RESOLVE_COMPLETED }.detail)
+      assertEquals("Printer", events.single { it.stage == TraceStage.SERVICE_REGISTERED }.detail)
+      assertEquals(2, events.map { it.streamId }.distinct().size)
+    }
+
+    @Test
+    @DisplayName("Only the latest events are kept")
+    fun ringBufferOverwritesOldest() {
+      assertThrows(IllegalArgumentException::class.java, { BonjourTrace(0) })
+
+      val trace = BonjourTrace(3)
+      TraceStage.values().take(5).forEach { trace.record(1L, it) }
+      assertEquals(listOf(2L, 3L, 4L), trace.dump().map { it.sequence })
+      assertEquals(TraceStage.values()[4], trace.dump().last().stage)
+
+      trace.clear()
+      assertTrue(trace.dump().isEmpty())
+    }
+  }
+
+  @Nested
+  @DisplayName("Discovery on all Interfaces")
+  class InterfaceDiscoveryTests {
+
+    private val VALID_BONJOUR_TYPE = "_http._tcp"
+    private val SERVICE = BonjourService(VALID_BONJOUR_TYPE, "Printer", null, null, 80)
+
+    private val interfaces = listOf(
+        MulticastInterface("eth0", mock(InetAddress::class.java)),
+        MulticastInterface("wlan0", mock(InetAddress::class.java)))
+
+    @Test
+    @DisplayName("Every interface gets an engine of its own, and services appear once")
+    fun engineForEveryInterface() {
+      val driver = FakeMultiInterfaceDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform(interfaces = interfaces))
+          .discoverOnAllInterfaces()
+          .create()
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      assertEquals(interfaces.map { it.address }, driver.discoveryEngines.map { it.address })
+
+      driver.discoveryEngines[0].emitResolved(SERVICE)
+      driver.discoveryEngines[1].emitResolved(SERVICE)
+
+      observer.assertValueCount(2)
+      val added = observer.values()[0]
+      val updated = observer.values()[1]
+      assertTrue(added is BonjourEvent.Added)
+      assertEquals(setOf("eth0"), added.service.interfaces)
+      assertTrue(updated is BonjourEvent.Updated)
+      assertEquals(setOf("eth0", "wlan0"), updated.service.interfaces)
+    }
+
+    @Test
+    @DisplayName("Services are removed once every interface lost them")
+    fun removedFromLastInterface() {
+      val driver = FakeMultiInterfaceDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform(interfaces = interfaces))
+          .discoverOnAllInterfaces()
+          .create()
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngines.forEach { it.emitResolved(SERVICE) }
+
+      driver.discoveryEngines[0].emitLost(SERVICE)
+      val updated = observer.values()[2]
+      assertTrue(updated is BonjourEvent.Updated)
+      assertEquals(setOf("wlan0"), updated.service.interfaces)
+
+      driver.discoveryEngines[1].emitLost(SERVICE)
+      observer.assertValueCount(4)
+      assertTrue(observer.values()[3] is BonjourEvent.Removed)
+    }
+
+    @Test
+    @DisplayName("Platforms without several interfaces use a single engine")
+    fun singleEngineWithoutInterfaces() {
+      val driver = FakeMultiInterfaceDriver()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform())
+          .discoverOnAllInterfaces()
+          .create()
+
+      val observer = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      assertEquals(1, driver.discoveryEngines.size)
+
+      driver.discoveryEngines[0].emitResolved(SERVICE)
+      observer.assertValueCount(1)
+      assertTrue(observer.values()[0].service.interfaces.isEmpty())
+    }
+
+    @Test
+    @DisplayName("Cached services are replayed & expire once for all interfaces")
+    fun cachedServicesReplayedOnce() {
+      val driver = FakeMultiInterfaceDriver()
+      val scheduler = TestScheduler()
+      val rxb = RxBonjour.Builder().driver(driver).platform(FakePlatform(interfaces = interfaces))
+          .discoverOnAllInterfaces()
+          .cacheServices(scheduler = scheduler)
+          .create()
+
+      val first = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      driver.discoveryEngines[0].emitResolved(SERVICE, 10, TimeUnit.SECONDS)
+      first.dispose()
+
+      val second = rxb.newDiscovery(VALID_BONJOUR_TYPE).test()
+      second.assertValueCount(1)
+      second.assertValueAt(0, { it is BonjourEvent.Added && it.service == SERVICE })
+
+      scheduler.advanceTimeBy(10, TimeUnit.SECONDS)
+      second.assertValueCount(2)
+      second.assertValueAt(1, { it is BonjourEvent.Removed && it.service == SERVICE })
+    }
+  }
+}
+
+@DisplayName("PersistentMap")
+class PersistentMapTests {
+
+  /** Key with a fixed hash code, to force collisions */
+  private data class Colliding(val id: Int) {
+    override fun hashCode() = 42
+  }
+
+  @Test
+  @DisplayName("Colliding keys are kept apart")
+  fun collidingKeys() {
+    val map = (0 until 10).fold(PersistentMap.empty<Colliding, Int>()) { map, id ->
+      map.put(Colliding(id), id)
+    }
+    assertEquals(10, map.size)
+    assertEquals(7, map[Colliding(7)])
+
+    val removed = (0 until 9).fold(map) { map, id -> map.remove(Colliding(id)) }
+    assertEquals(1, removed.size)
+    assertEquals(listOf(9), removed.values())
+    assertEquals(10, map.size)
+  }
+
+  @Test
+  @DisplayName("Updates don't affect earlier versions")
+  fun updatesArePersistent() {
+    val first = PersistentMap.empty<String, Int>().put("a", 1).put("b", 2)
+    val second = first.put("a", 3).remove("b")
+
+    assertEquals(1, first["a"])
+    assertEquals(2, first["b"])
+    assertEquals(3, second["a"])
+    assertEquals(null, second["b"])
+    assertEquals(1, second.size)
+    assertTrue(second.remove("a").isEmpty())
   }
 }
 
@@ -15,7 +15,7 @@ import butterknife.ButterKnife
 import butterknife.OnClick
 import butterknife.Unbinder
 import de.mannodermaus.rxbonjour.BonjourBroadcastConfig
-import de.mannodermaus.rxbonjour.BonjourEvent
+import de.mannodermaus.rxbonjour.BonjourService
 import de.mannodermaus.rxbonjour.RxBonjour
 import de.mannodermaus.rxbonjour.isBonjourType
 import de.mannodermaus.rxbonjour.platforms.android.AndroidPlatform
@@ -41,6 +41,8 @@ class MainActivity : AppCompatActivity() {
 
   lateinit var spinnerAdapter: DriverImplAdapter
   private val listAdapter = ServiceRecyclerAdapter()
+  // Items of the adapter by type & name, to apply changes without searching the list
+  private val listItems = HashMap<Pair<String, String>, BonjourService>()
 
   lateinit var unbinder: Unbinder
   private var nsdDisposable = Disposables.empty()
@@ -108,6 +110,7 @@ class MainActivity : AppCompatActivity() {
 
     // Clear the adapter's items, then start a new discovery
     listAdapter.clearItems()
+    listItems.clear()
 
     // Construct a new RxBonjour instance with the currently selected Driver.
     // Usually, you'd simply add the Driver inside the Builder
@@ -141,22 +144,26 @@ class MainActivity : AppCompatActivity() {
         .observeOn(AndroidSchedulers.mainThread())
         .subscribe()
 
-    nsdDisposable = rxBonjour.newDiscovery(type)
+    nsdDisposable = rxBonjour.newServiceSet(type)
         .subscribeOn(Schedulers.io())
         .observeOn(AndroidSchedulers.mainThread())
         .doOnSubscribe { progressBar.visibility = View.VISIBLE }
         .doOnComplete { progressBar.visibility = View.INVISIBLE }
         .doOnError { progressBar.visibility = View.INVISIBLE }
         .subscribe(
-            { event ->
-              // Depending on the type of event and the availability of the item, adjust the adapter
-              val item = event.service
-              Log.i(LOG_TAG, "Event: " + item)
-              when (event) {
-                is BonjourEvent.Added -> if (!listAdapter.containsItem(item)) listAdapter.addItem(
-                    item)
-                is BonjourEvent.Removed -> if (listAdapter.containsItem(
-                    item)) listAdapter.removeItem(item)
+            { services ->
+              // Apply only the changes since the last snapshot to the adapter
+              Log.i(LOG_TAG, "Added: ${services.added.size}, changed: ${services.changed.size}, " +
+                  "removed: ${services.removed.size}")
+              services.removed.forEach { item ->
+                listItems.remove(item.listKey())?.let { listAdapter.removeItem(it) }
+              }
+              services.changed.forEach { item ->
+                listItems.put(item.listKey(), item)?.let { listAdapter.replaceItem(it, item) }
+              }
+              services.added.forEach { item ->
+                listItems.put(item.listKey(), item)
+                listAdapter.addItem(item)
               }
             },
             { error ->
@@ -165,3 +172,7 @@ class MainActivity : AppCompatActivity() {
             })
   }
 }
+
+/* Extension Functions */
+
+private fun BonjourService.listKey() = Pair(this.type, this.name)